@@ -0,0 +1,34 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class Benchmarks {
+
+    /*
+    * Same command line as the stock JMH main, but results always come out as JSON
+    * so runs from different releases can be diffed by a script
+    */
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions cmdOptions;
+        try {
+            cmdOptions = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("[ERROR] " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+
+        var options = new OptionsBuilder()
+                .parent(cmdOptions)
+                .resultFormat(ResultFormatType.JSON)
+                .result(cmdOptions.getResult().orElse("benchmarks-results.json"))
+                .build();
+
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBufferBenchmark {
+
+    /*
+    * Parses a read's worth of pipelined frames, the way the listener sees input from a client that
+    * doesn't wait on its responses. Every invocation refills the input buffer with the same bytes
+    */
+    @Param({"1", "16", "128"})
+    int pipelineDepth;
+
+    @Param({"32", "1024"})
+    int valueSize;
+
+    //Fraction of the pipeline that's GETs, the rest are PUTs
+    @Param({"0.9"})
+    double readRatio;
+
+    private final BufferPool pool = new BufferPool(64L * 1024 * 1024);
+
+    private final List<Task> tasks = new ArrayList<>();
+
+    private ClientBuffer clientBuf;
+
+    private ByteBuffer pipelined;
+
+    @Setup
+    public void setup() {
+        clientBuf = new ClientBuffer(pool, new ServerMetrics.Listener());
+
+        byte[] value = new byte[valueSize];
+        int size = 0;
+        List<byte[]> keys = new ArrayList<>();
+
+        for(int i = 0; i < pipelineDepth; i++) {
+            byte[] key = ("key:" + i).getBytes();
+            keys.add(key);
+            size += KVMessage.requestSize(key, value);
+        }
+
+        pipelined = ByteBuffer.allocateDirect(size);
+        for(int i = 0; i < pipelineDepth; i++) {
+            //Spreads the GETs evenly through the pipeline instead of bunching them at the front
+            boolean read = Math.floor((i + 1) * readRatio) > Math.floor(i * readRatio);
+            var type = read ? KVMessage.MessageType.GET : KVMessage.MessageType.PUT;
+            KVMessage.writeRequest(pipelined, keys.get(i), read ? null : value, type);
+        }
+        pipelined.flip();
+    }
+
+    @TearDown
+    public void tearDown() {
+        clientBuf.release();
+    }
+
+    //Includes trading the input buffer up and back down, which the listener does for every read this big
+    @Benchmark
+    public int readMessages() throws Exception {
+        fill();
+        tasks.clear();
+        return clientBuf.readMessages(tasks, pipelineDepth);
+    }
+
+    @Benchmark
+    public boolean messageReady() throws Exception {
+        fill();
+        boolean ready = clientBuf.messageReady();
+        clientBuf.inputByteBuf.clear();
+        return ready;
+    }
+
+    private void fill() {
+        if(clientBuf.inputByteBuf.capacity() < pipelined.limit())
+            clientBuf.inputByteBuf = pool.grow(clientBuf.inputByteBuf, pipelined.limit());
+
+        clientBuf.inputByteBuf.clear();
+        clientBuf.inputByteBuf.put(pipelined.rewind());
+    }
+
+}
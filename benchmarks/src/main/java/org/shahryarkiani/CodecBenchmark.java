@@ -0,0 +1,80 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"16"})
+    int keySize;
+
+    @Param({"32", "1024", "16384"})
+    int valueSize;
+
+    private String key;
+
+    private String value;
+
+    private byte[] keyBytes;
+
+    private byte[] valueBytes;
+
+    private ByteBuffer reused;
+
+    private ByteBuffer encoded;
+
+    private ByteBuffer response;
+
+    @Setup
+    public void setup() {
+        key = "k".repeat(keySize);
+        value = "v".repeat(valueSize);
+        keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        valueBytes = value.getBytes(StandardCharsets.US_ASCII);
+
+        reused = ByteBuffer.allocateDirect(KVMessage.requestSize(keyBytes, valueBytes));
+
+        encoded = KVMessage.convertToMessage(key, value, KVMessage.MessageType.PUT);
+        encoded.flip();
+
+        response = ByteBuffer.allocateDirect(2 + valueSize);
+        KVMessage.writeResponse(response, valueBytes);
+        response.flip();
+    }
+
+    //The allocating path the client used to take for every request
+    @Benchmark
+    public ByteBuffer convertToMessage() {
+        return KVMessage.convertToMessage(key, value, KVMessage.MessageType.PUT);
+    }
+
+    //What the client does now, encoding into a buffer it keeps
+    @Benchmark
+    public ByteBuffer writeRequest() {
+        reused.clear();
+        KVMessage.writeRequest(reused, keyBytes, valueBytes, KVMessage.MessageType.PUT);
+        return reused;
+    }
+
+    @Benchmark
+    public byte[][] decodeMessage() {
+        encoded.rewind();
+        return KVMessage.decodeMessage(encoded);
+    }
+
+    @Benchmark
+    public String decodeResponse() {
+        response.rewind();
+        return KVMessage.decodeResponse(response);
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComparatorBenchmark {
+
+    //How many leading bytes the compared keys have in common, real keys tend to share long prefixes
+    @Param({"4", "32", "256"})
+    int sharedPrefix;
+
+    private byte[] a;
+
+    private byte[] b;
+
+    @Setup
+    public void setup() {
+        a = new byte[sharedPrefix + 8];
+        b = new byte[sharedPrefix + 8];
+        for(int i = 0; i < sharedPrefix; i++)
+            a[i] = b[i] = (byte) ('a' + i % 26);
+
+        a[sharedPrefix] = 1;
+        b[sharedPrefix] = 2;
+    }
+
+    //Both directions so the result can't be predicted from the last call
+    @Benchmark
+    public void compare(Blackhole bh) {
+        bh.consume(SkipListEngine.KEY_ORDER.compare(a, b));
+        bh.consume(SkipListEngine.KEY_ORDER.compare(b, a));
+    }
+
+}
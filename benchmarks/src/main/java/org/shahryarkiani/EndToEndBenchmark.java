@@ -0,0 +1,130 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    /*
+    * A real server on loopback and one KVClient per benchmark thread, so -t sets the connection count
+    * Every invocation pipelines pipelineDepth requests and waits for all of them, the "requests" counter
+    * in the results is the request rate, the primary score is the rate of those round trips
+    */
+    @Param({"2"})
+    int listeners;
+
+    @Param({"100000"})
+    int keyCount;
+
+    @Param({"100", "1024"})
+    int valueSize;
+
+    //Fraction of requests that are GETs, the rest are PUTs
+    @Param({"0.9", "0.5"})
+    double readRatio;
+
+    @Param({"1", "16"})
+    int pipelineDepth;
+
+    @Param({"SKIP_LIST"})
+    StorageEngine.Type engine;
+
+    int port;
+
+    String value;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        try(var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        var config = new KVServerConfig();
+        config.engineType = engine;
+
+        var server = new Thread(new KVServer(port, listeners, config), "kv-server");
+        server.setDaemon(true);
+        server.start();
+
+        value = "v".repeat(valueSize);
+
+        var client = connect();
+        Map<String, String> entries = new HashMap<>();
+        for(int i = 0; i < keyCount; i++) {
+            entries.put("key:" + i, value);
+            if(entries.size() == 1000) {
+                client.multiPut(entries);
+                entries.clear();
+            }
+        }
+        if(!entries.isEmpty())
+            client.multiPut(entries);
+        client.close();
+    }
+
+    //The server thread binds asynchronously, so keep trying for a bit
+    KVClient connect() throws InterruptedException {
+        RuntimeException last = null;
+        for(int attempt = 0; attempt < 50; attempt++) {
+            try {
+                return new KVClient("127.0.0.1", port);
+            } catch (RuntimeException e) {
+                last = e;
+                Thread.sleep(100);
+            }
+        }
+        throw last;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Connection {
+
+        public long requests;
+
+        KVClient client;
+
+        CompletableFuture<?>[] inFlight;
+
+        @Setup(Level.Trial)
+        public void connect(EndToEndBenchmark bench) throws InterruptedException {
+            client = bench.connect();
+            inFlight = new CompletableFuture<?>[bench.pipelineDepth];
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public void requests(Connection conn) {
+        var random = ThreadLocalRandom.current();
+
+        for(int i = 0; i < pipelineDepth; i++) {
+            String key = "key:" + random.nextInt(keyCount);
+
+            if(random.nextDouble() < readRatio)
+                conn.inFlight[i] = conn.client.getAsync(key);
+            else
+                conn.inFlight[i] = conn.client.putAsync(key, value);
+        }
+
+        CompletableFuture.allOf(conn.inFlight).join();
+        conn.requests += pipelineDepth;
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class HotKeysBenchmark {
+
+    /*
+    * GETs for a small hot set in a big skip list, straight from the engine and through a listener's hot key cache
+    * the way executeTask does them, sampling included. Nothing writes, so once the hot set is in every GET is a hit
+    */
+    @Param({"1000000"})
+    int keyCount;
+
+    @Param({"100"})
+    int hotKeys;
+
+    private VersionedEngine store;
+
+    private HotKeys cache;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        store = new VersionedEngine(new SkipListEngine());
+        cache = new HotKeys(store, 1024, 64, 32, new ServerMetrics.Listener());
+
+        byte[] value = new byte[100];
+        for(int i = 0; i < keyCount; i++)
+            store.put(StoreBenchmark.key(new byte[StoreBenchmark.KEY_LENGTH], i), value);
+    }
+
+    //A fresh key per GET like the listener gets from the client, the cache keeps the ones it fills with
+    private byte[] hotKey() {
+        int index = ThreadLocalRandom.current().nextInt(hotKeys) * (keyCount / hotKeys);
+        return StoreBenchmark.key(new byte[StoreBenchmark.KEY_LENGTH], index);
+    }
+
+    @Benchmark
+    public byte[] engineGet() {
+        return store.get(hotKey());
+    }
+
+    @Benchmark
+    public byte[] cachedGet() {
+        byte[] key = hotKey();
+        cache.sample(key);
+
+        int hash = ShardedHashEngine.hash(key);
+        byte[] stored = cache.get(key, hash);
+        if(stored != null)
+            return stored;
+
+        long version = cache.version(hash);
+        stored = store.get(key);
+        if(stored != null && cache.admits(hash))
+            cache.put(key, hash, version, stored);
+        return stored;
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class StoreBenchmark {
+
+    /*
+    * Point operations against a prefilled engine, uniformly random keys
+    * 100M keys needs a much bigger heap than the default fork gets, e.g.
+    *     -p keyCount=100000000 -jvmArgsAppend "-Xms48g -Xmx48g"
+    * Use -t to see how the engines hold up with more threads hitting them
+    * LSM gets a small memtable so most of the keys end up in segments in a temporary directory
+    */
+    @Param({"SKIP_LIST", "HASH", "OFF_HEAP", "LSM"})
+    StorageEngine.Type engine;
+
+    @Param({"1000000"})
+    int keyCount;
+
+    @Param({"100"})
+    int valueSize;
+
+    private StorageEngine store;
+
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        store = switch (engine) {
+            case SKIP_LIST -> new SkipListEngine();
+            case HASH -> new ShardedHashEngine(256);
+            case OFF_HEAP -> new OffHeapEngine(256);
+            case LSM -> new LsmEngine(Files.createTempDirectory("lsm-bench"), false, 8L * 1024 * 1024, 64L * 1024 * 1024, 10, 4);
+        };
+
+        value = new byte[valueSize];
+        for(int i = 0; i < keyCount; i++)
+            store.put(key(new byte[KEY_LENGTH], i), value);
+    }
+
+    //Reused for lookups, engines never hold on to a key they were only asked about
+    @State(Scope.Thread)
+    public static class ThreadKey {
+        final byte[] scratch = new byte[KEY_LENGTH];
+    }
+
+    @Benchmark
+    public byte[] get(ThreadKey threadKey) {
+        return store.get(key(threadKey.scratch, ThreadLocalRandom.current().nextInt(keyCount)));
+    }
+
+    //Keys past the ones that were loaded, for the LSM engine that's what the Bloom filters are for
+    @Benchmark
+    public byte[] getMissing(ThreadKey threadKey) {
+        return store.get(key(threadKey.scratch, keyCount + ThreadLocalRandom.current().nextInt(keyCount)));
+    }
+
+    //Overwrites an existing key, puts keep the key array so each one gets a fresh one like the listener gives it
+    @Benchmark
+    public void put() {
+        store.put(key(new byte[KEY_LENGTH], ThreadLocalRandom.current().nextInt(keyCount)), value);
+    }
+
+    //"key:" and ten digits, so every key has the same length and a shared prefix
+    static final int KEY_LENGTH = 14;
+
+    static byte[] key(byte[] dst, int index) {
+        dst[0] = 'k';
+        dst[1] = 'e';
+        dst[2] = 'y';
+        dst[3] = ':';
+
+        for(int i = KEY_LENGTH - 1; i >= 4; i--) {
+            dst[i] = (byte) ('0' + index % 10);
+            index /= 10;
+        }
+
+        return dst;
+    }
+
+}
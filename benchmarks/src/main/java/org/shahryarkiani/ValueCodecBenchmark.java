@@ -0,0 +1,50 @@
+package org.shahryarkiani;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValueCodecBenchmark {
+
+    //The JSON blobs compression is meant for, compress happens once per PUT and decompress per GET from a client that can't
+    @Param({"2048", "16384", "61440"})
+    int valueSize;
+
+    private byte[] value;
+
+    private byte[] stored;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        var json = new StringBuilder("[");
+        while(json.length() < valueSize) {
+            json.append("{\"id\":").append(random.nextInt(1_000_000))
+                    .append(",\"name\":\"user").append(random.nextInt(10_000))
+                    .append("\",\"active\":").append(random.nextBoolean())
+                    .append(",\"score\":").append(random.nextInt(100)).append("},");
+        }
+
+        value = json.substring(0, valueSize).getBytes(StandardCharsets.US_ASCII);
+        stored = ValueCodec.encode(value, 1);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return ValueCodec.encode(value, 1);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return ValueCodec.decode(stored);
+    }
+
+}
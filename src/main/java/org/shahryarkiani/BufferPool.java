@@ -0,0 +1,93 @@
+package org.shahryarkiani;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPool {
+
+    /*
+    * Direct buffers shared by every connection, in power of two sizes from 1KB up to MAX_POOLED
+    * A connection normally sits on the smallest size and only trades up while it has a big message
+    * or a deep pipeline in flight, then hands the big buffer back here once it's drained
+    *
+    * Each size keeps at most retainedBytes worth of free buffers around, anything past that
+    * is left for the GC so a burst doesn't pin memory forever
+    */
+    static final int MIN_SIZE = 1024;
+
+    //Fits the largest frame the protocol allows today with room to spare
+    static final int MAX_POOLED = 256 * 1024;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+
+    private final AtomicInteger[] freeCounts;
+
+    private final int[] maxFree;
+
+    public BufferPool(long retainedBytes) {
+        int classes = Integer.numberOfTrailingZeros(MAX_POOLED / MIN_SIZE) + 1;
+
+        List<ConcurrentLinkedQueue<ByteBuffer>> queues = new ArrayList<>(classes);
+        freeCounts = new AtomicInteger[classes];
+        maxFree = new int[classes];
+
+        for(int i = 0; i < classes; i++) {
+            queues.add(new ConcurrentLinkedQueue<>());
+            freeCounts[i] = new AtomicInteger();
+            maxFree[i] = (int) Math.max(1, Math.min(Integer.MAX_VALUE, retainedBytes / ((long) MIN_SIZE << i)));
+        }
+
+        free = List.copyOf(queues);
+    }
+
+    //Returns a cleared buffer with at least capacity bytes, bigger than MAX_POOLED is allocated and never pooled
+    public ByteBuffer acquire(int capacity) {
+        if(capacity > MAX_POOLED)
+            return ByteBuffer.allocateDirect(capacity);
+
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buf = free.get(sizeClass).poll();
+
+        if(buf == null)
+            return ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+
+        freeCounts[sizeClass].decrementAndGet();
+        return buf.clear();
+    }
+
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if(capacity > MAX_POOLED || Integer.bitCount(capacity) != 1 || capacity < MIN_SIZE)
+            return;
+
+        int sizeClass = sizeClass(capacity);
+        if(freeCounts[sizeClass].incrementAndGet() > maxFree[sizeClass]) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+
+        free.get(sizeClass).add(buf);
+    }
+
+    /*
+    * Trades buf for one that can hold at least capacity bytes, keeping whatever was written to it
+    * buf has to be in write mode, the returned buffer is positioned after the copied bytes
+    */
+    public ByteBuffer grow(ByteBuffer buf, int capacity) {
+        var bigger = acquire(capacity);
+        buf.flip();
+        bigger.put(buf);
+        release(buf);
+        return bigger;
+    }
+
+    private static int sizeClass(int capacity) {
+        if(capacity <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros((capacity - 1) / MIN_SIZE);
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.shahryarkiani;
+
+import java.util.Arrays;
+
+//byte[] doesn't have value equality, so maps keyed by store keys go through this
+record ByteKey(byte[] bytes, int hash) {
+
+    static ByteKey of(byte[] key) {
+        return new ByteKey(key, ShardedHashEngine.hash(key));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ByteKey other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,454 @@
+package org.shahryarkiani;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+public class CachingEngine implements StorageEngine {
+
+    public enum Policy {
+        //CLOCK, an approximate LRU, every new key gets in and pushes out whatever hasn't been read lately
+        LRU,
+        //W-TinyLFU, new keys land in a small window and only make it into the main space if they're read more
+        //often than what they'd push out, so a burst of one-off keys can't flush the working set
+        TINY_LFU
+    }
+
+    /*
+    * Wraps another engine and keeps it under a byte budget by evicting keys, for running the server as a cache
+    *
+    * Keys are split into segments by hash, each with its own share of the budget and its own lock,
+    * and only PUTs and DELETEs take it. A write that puts its segment over budget evicts from that same segment
+    * before returning, so there's never a big cleanup pass and never a lock shared by the whole store
+    *
+    * A GET doesn't lock anything, it sets its entry's referenced bit and bumps the frequency sketch.
+    * Eviction runs the CLOCK hand over the segment's queue: a referenced entry gets its bit cleared
+    * and another lap, the first unreferenced one is the victim
+    *
+    * Sizes are key + value + a guess at the per-entry overhead, so the budget is close, not exact
+    */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    //Share of each segment's budget that TINY_LFU uses for its admission window
+    private static final double WINDOW_FRACTION = 0.01;
+
+    private final StorageEngine inner;
+
+    private final Policy policy;
+
+    private final long maxBytes;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    //Only used by TINY_LFU
+    private final CountMinSketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    //New keys TINY_LFU turned away because they weren't read as often as the key they'd replace
+    private final LongAdder rejections = new LongAdder();
+
+    public CachingEngine(StorageEngine inner, long maxBytes, Policy policy, int segmentCount) {
+        this.inner = inner;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+
+        int count = 1;
+        while(count < segmentCount)
+            count <<= 1;
+
+        segments = new Segment[count];
+        for(int i = 0; i < count; i++)
+            segments[i] = new Segment(maxBytes / count);
+
+        segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+
+        //Sized for roughly how many small entries fit in the budget
+        sketch = policy == Policy.TINY_LFU ? new CountMinSketch((int) Math.min(1 << 24, maxBytes / 128)) : null;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] value = inner.get(key);
+        recordAccess(key, value != null);
+        return value;
+    }
+
+    @Override
+    public int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        int valueLength = inner.copyValue(key, reserve);
+        recordAccess(key, valueLength >= 0);
+        return valueLength;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        int hash = ShardedHashEngine.hash(key);
+        segmentFor(hash).put(new ByteKey(key, hash), value);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        int hash = ShardedHashEngine.hash(key);
+        return segmentFor(hash).remove(new ByteKey(key, hash));
+    }
+
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        int hash = ShardedHashEngine.hash(key);
+        return segmentFor(hash).update(new ByteKey(key, hash), update);
+    }
+
+    @Override
+    public long size() {
+        return inner.size();
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return inner.sharesValues();
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return inner.isOrdered();
+    }
+
+    //Scans and snapshots don't count as reads, they'd make every key look recently used
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        return inner.range(from, to);
+    }
+
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return inner.entries();
+    }
+
+    //Goes through put so every entry is tracked, and a snapshot bigger than the budget is trimmed as it loads
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        while(entries.hasNext()) {
+            var entry = entries.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    //Writes go straight through to inner, so there's nothing of our own to write out
+    @Override
+    public boolean persist() throws IOException {
+        return inner.persist();
+    }
+
+    public StorageEngine inner() {
+        return inner;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long usedBytes() {
+        long used = 0;
+        for(var segment : segments)
+            used += segment.windowBytes + segment.mainBytes;
+        return used;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long rejections() {
+        return rejections.sum();
+    }
+
+    private void recordAccess(byte[] key, boolean hit) {
+        int hash = ShardedHashEngine.hash(key);
+
+        if(hit) {
+            touch(key, hash);
+            return;
+        }
+
+        //Misses count too, a key that keeps getting asked for is worth admitting once somebody PUTs it
+        if(sketch != null)
+            sketch.increment(hash);
+        misses.increment();
+    }
+
+    /*
+    * A hit on key that was answered from a copy of its value outside the store, a listener's hot key cache.
+    * Those are the most read keys there are, if the reads didn't count here they'd look cold and be evicted first
+    */
+    public void touch(byte[] key, int hash) {
+        if(sketch != null)
+            sketch.increment(hash);
+
+        hits.increment();
+
+        var entry = segmentFor(hash).index.get(new ByteKey(key, hash));
+        //Skip the write when it's already set, so hot keys don't keep dirtying the cache line
+        if(entry != null && !entry.referenced)
+            entry.referenced = true;
+    }
+
+    private Segment segmentFor(int hash) {
+        if(segments.length == 1)
+            return segments[0];
+        return segments[hash >>> segmentShift];
+    }
+
+    private static int sizeOf(byte[] key, byte[] value) {
+        return key.length + value.length + ENTRY_OVERHEAD;
+    }
+
+    private static final class Entry {
+
+        final ByteKey key;
+
+        //Everything but referenced is only touched under the segment's lock
+        int size;
+
+        boolean inWindow;
+
+        //Removed from the index but still sitting in a queue, skipped when the hand gets to it
+        boolean dead;
+
+        volatile boolean referenced;
+
+        Entry(ByteKey key, int size, boolean inWindow) {
+            this.key = key;
+            this.size = size;
+            this.inWindow = inWindow;
+        }
+    }
+
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        //Read without the lock by GETs, only changed under it
+        private final ConcurrentHashMap<ByteKey, Entry> index = new ConcurrentHashMap<>();
+
+        //CLOCK order, the hand is the head. LRU only uses main
+        private final ArrayDeque<Entry> window = new ArrayDeque<>();
+
+        private final ArrayDeque<Entry> main = new ArrayDeque<>();
+
+        private final long windowBudget;
+
+        private final long mainBudget;
+
+        //Written under the lock, read without it for stats
+        private long windowBytes = 0;
+
+        private long mainBytes = 0;
+
+        private int deadEntries = 0;
+
+        Segment(long budget) {
+            windowBudget = policy == Policy.TINY_LFU ? (long) (budget * WINDOW_FRACTION) : 0;
+            mainBudget = budget - windowBudget;
+        }
+
+        void put(ByteKey key, byte[] value) {
+            int size = sizeOf(key.bytes(), value);
+
+            lock.lock();
+            try {
+                var entry = index.get(key);
+
+                //Can never fit, storing it would just evict everything else in the segment first
+                if(size > windowBudget + mainBudget) {
+                    if(entry != null)
+                        removeEntry(entry);
+                    rejections.increment();
+                    return;
+                }
+
+                inner.put(key.bytes(), value);
+
+                if(entry != null) {
+                    resize(entry, size - entry.size);
+                    entry.size = size;
+                    entry.referenced = true;
+                } else {
+                    entry = new Entry(key, size, windowBudget > 0);
+                    index.put(key, entry);
+                    (entry.inWindow ? window : main).addLast(entry);
+                    resize(entry, size);
+                }
+
+                rebalance();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        byte[] remove(ByteKey key) {
+            lock.lock();
+            try {
+                var entry = index.get(key);
+                if(entry == null)
+                    return inner.remove(key.bytes());
+
+                return removeEntry(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //Every write to a key holds its segment's lock, so the read and the write in between can't be interleaved with another
+        byte[] update(ByteKey key, UnaryOperator<byte[]> update) {
+            lock.lock();
+            try {
+                byte[] current = inner.get(key.bytes());
+                byte[] next = update.apply(current);
+
+                if(next == current)
+                    return current;
+
+                if(next == null)
+                    remove(key);
+                else
+                    put(key, next);
+
+                return next;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //Caller holds the lock, the entry stays in its queue until the hand skips over it
+        private byte[] removeEntry(Entry entry) {
+            index.remove(entry.key, entry);
+            resize(entry, -entry.size);
+            entry.dead = true;
+
+            if(++deadEntries > (window.size() + main.size()) / 2)
+                dropDeadEntries();
+
+            return inner.remove(entry.key.bytes());
+        }
+
+        //Moves window overflow into main (if TINY_LFU lets it in) and evicts from main until it's under budget
+        private void rebalance() {
+            while(windowBytes > windowBudget) {
+                var candidate = sweep(window);
+                if(candidate == null)
+                    break;
+
+                windowBytes -= candidate.size;
+
+                if(admit(candidate)) {
+                    candidate.inWindow = false;
+                    main.addLast(candidate);
+                    mainBytes += candidate.size;
+                } else {
+                    rejections.increment();
+                    evict(candidate);
+                }
+            }
+
+            while(mainBytes > mainBudget) {
+                var victim = sweep(main);
+                if(victim == null)
+                    break;
+
+                mainBytes -= victim.size;
+                evict(victim);
+            }
+        }
+
+        //Only called for TINY_LFU, the candidate gets in if it's more popular than what the hand would evict next
+        private boolean admit(Entry candidate) {
+            if(mainBytes + candidate.size <= mainBudget)
+                return true;
+
+            var victim = sweep(main);
+            if(victim == null)
+                return true;
+
+            //Put it back at the hand, it's still next in line if the candidate does get in
+            main.addFirst(victim);
+
+            return sketch.frequency(candidate.key.hash()) > sketch.frequency(victim.key.hash());
+        }
+
+        //Takes the next unreferenced live entry off the head of queue, giving referenced ones another lap
+        private Entry sweep(ArrayDeque<Entry> queue) {
+            //Two laps clears every bit, the limit only matters if GETs keep setting them while we go around
+            int limit = 2 * queue.size() + 1;
+
+            for(int i = 0; i < limit; i++) {
+                var entry = queue.pollFirst();
+                if(entry == null)
+                    return null;
+
+                if(entry.dead) {
+                    deadEntries--;
+                    continue;
+                }
+
+                if(entry.referenced) {
+                    entry.referenced = false;
+                    queue.addLast(entry);
+                    continue;
+                }
+
+                return entry;
+            }
+
+            //Still going around, take the next live entry whatever its bit says
+            Entry entry;
+            while((entry = queue.pollFirst()) != null) {
+                if(!entry.dead)
+                    return entry;
+                deadEntries--;
+            }
+
+            return null;
+        }
+
+        //The entry is already off its queue and out of the byte counts
+        private void evict(Entry entry) {
+            index.remove(entry.key, entry);
+            inner.remove(entry.key.bytes());
+            evictions.increment();
+        }
+
+        private void resize(Entry entry, int delta) {
+            if(entry.inWindow)
+                windowBytes += delta;
+            else
+                mainBytes += delta;
+        }
+
+        private void dropDeadEntries() {
+            window.removeIf(e -> e.dead);
+            main.removeIf(e -> e.dead);
+            deadEntries = 0;
+        }
+    }
+
+}
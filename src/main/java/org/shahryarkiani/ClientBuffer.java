@@ -1,31 +1,94 @@
 package org.shahryarkiani;
 
+import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
 
 public class ClientBuffer {
 
-    //This is what the client sent to the server
-    protected final ByteBuffer inputByteBuf;
+    /*
+    * Both buffers come from the shared pool and start at its smallest size, they're traded for a bigger one
+    * when a message or a batch of responses doesn't fit, and handed back once they're empty again
+    */
+
+    //This is what the client sent to the server, only touched by the listener thread
+    protected ByteBuffer inputByteBuf;
 
     //This is what the server needs to send to the client
-    protected final ByteBuffer outputByteBuf;
+    protected ByteBuffer outputByteBuf;
+
+    /*
+    * Output that goes out before outputByteBuf, big values are queued here as they are instead of being copied in
+    * Each one is ready to be read, pooled ones are earlier output buffers that were set aside for a value to follow
+    * Shared with the worker like outputByteBuf, so only touched while holding this object's lock
+    */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    //Bytes left to send in segments
+    private int segmentBytes = 0;
+
+    private final BufferPool pool;
+
+    //The owning listener's counters, flush counts the bytes it sends
+    private final ServerMetrics.Listener metrics;
+
+    //Handed to the engine so it can make room for a value it's about to copy in
+    final IntFunction<ByteBuffer> outputReserver = this::reserveOutput;
+
+    /*
+    * The worker writes responses into outputByteBuf while the batch runs, but they can only go out once
+    * the batch is finished (and logged), so only this many bytes at the front are allowed to be flushed
+    * outputByteBuf and this are shared with the worker, so both are only touched while holding this object's lock
+    */
+    private int flushableBytes = 0;
+
+    //Batches from this client still on the listener's worker, only touched by the listener thread
+    int pendingBatches = 0;
+
+    //Set while OP_READ is off because the client isn't reading its responses fast enough, listener thread only
+    boolean readPaused = false;
+
+    /*
+    * Whether the client's HELLO asked for values the way they're stored, compressed ones included
+    * Only set while reading the first message, so every batch after it sees it
+    */
+    boolean storedValues = false;
 
-    public ClientBuffer() {
-        inputByteBuf = ByteBuffer.allocateDirect(1024);
-        outputByteBuf = ByteBuffer.allocateDirect(1024);
+    //Whether anything has been read yet, HELLO has to come first
+    private boolean anyMessages = false;
+
+    //Values read from this client at least this big are stored compressed, 0 for never, see ValueCodec
+    private final int compressMinBytes;
+
+    public ClientBuffer(BufferPool pool, ServerMetrics.Listener metrics) {
+        this(pool, metrics, 0);
     }
 
+    public ClientBuffer(BufferPool pool, ServerMetrics.Listener metrics, int compressMinBytes) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.compressMinBytes = compressMinBytes;
+        inputByteBuf = pool.acquire(BufferPool.MIN_SIZE);
+        outputByteBuf = pool.acquire(BufferPool.MIN_SIZE);
+    }
 
-    public boolean messageReady() {
+
+    public boolean messageReady() throws ProtocolException {
 
         int bytesRead = inputByteBuf.position();
 
+        int msgLen = frameLength(0, bytesRead);
+
         //We don't have the message header
-        if(bytesRead < 4)
+        if(msgLen < 0)
             return false;
 
-        int msgLen = 4 + inputByteBuf.getShort(0) + inputByteBuf.getShort(2);
-
         //We don't have the complete message yet, so we can't process it
         if(bytesRead < msgLen)
             return false;
@@ -35,23 +98,518 @@ public class ClientBuffer {
 
     }
 
-    public KVMessage.MessageType getMessageType() {
-        return switch (inputByteBuf.getShort(2)) {
+    public KVMessage.MessageType getMessageType() throws ProtocolException {
+        return messageType(0);
+    }
+
+    /*
+    * Parses every complete message in inputByteBuf in one pass with absolute reads,
+    * then compacts once to drop them, instead of flipping and compacting around every message
+    *
+    * Keys still get copied, the store holds on to them and the batch runs on the worker after this buffer
+    * has been refilled, but values are only copied for PUTs and nothing else is allocated per message
+    *
+    * At most maxMessages are taken, the rest stay in the buffer for the next batch, so one read full of GETs
+    * can't turn into an unbounded pile of responses. A multi-key message counts as one, it's answered with one response
+    * With conditionalAlone set a conditional write always ends up in a batch by itself
+    * Returns how many messages were added to tasks, throws if the client sent something that isn't a valid message
+    */
+    public int readMessages(List<Task> tasks, int maxMessages) throws ProtocolException {
+        return readMessages(tasks, maxMessages, false);
+    }
+
+    public int readMessages(List<Task> tasks, int maxMessages, boolean conditionalAlone) throws ProtocolException {
+        int end = inputByteBuf.position();
+        int pos = 0;
+        int count = 0;
+
+        while(count < maxMessages) {
+            int msgLen = frameLength(pos, end - pos);
+
+            if(msgLen < 0 || end - pos < msgLen)
+                break;
+
+            var type = messageType(pos);
+
+            if(conditionalAlone && type.isConditional() && count > 0)
+                break;
+
+            if(type.isMultiKey()) {
+                tasks.add(readMultiKey(type, pos + KVMessage.EXTENDED_HEADER_LENGTH, pos + msgLen));
+            } else if(type == KVMessage.MessageType.SCAN || type == KVMessage.MessageType.PREFIX) {
+                tasks.add(readScan(type, pos + KVMessage.EXTENDED_HEADER_LENGTH, pos + msgLen));
+            } else if(type == KVMessage.MessageType.PUT_TTL || type == KVMessage.MessageType.PUT_IF_ABSENT) {
+                tasks.add(readExpiringPut(type, pos + KVMessage.EXTENDED_HEADER_LENGTH, pos + msgLen));
+            } else if(type == KVMessage.MessageType.CAS) {
+                tasks.add(readCompareAndSet(pos + KVMessage.EXTENDED_HEADER_LENGTH, pos + msgLen));
+            } else if(type == KVMessage.MessageType.INCR || type == KVMessage.MessageType.DECR) {
+                tasks.add(readIncrement(type, pos + KVMessage.EXTENDED_HEADER_LENGTH, pos + msgLen));
+            } else if(type == KVMessage.MessageType.HELLO) {
+                tasks.add(readHello(pos + KVMessage.EXTENDED_HEADER_LENGTH, pos + msgLen));
+            } else if(type == KVMessage.MessageType.STATS || type == KVMessage.MessageType.HOT_KEYS) {
+                if(msgLen != KVMessage.EXTENDED_HEADER_LENGTH)
+                    throw new ProtocolException(type + " doesn't take a body");
+                tasks.add(new Task(type, null, null));
+            } else {
+                int keyLength = 0xFFFF & inputByteBuf.getShort(pos);
+
+                byte[] key = new byte[keyLength];
+                inputByteBuf.get(pos + 4, key);
+
+                byte[] value = null;
+                if(type == KVMessage.MessageType.PUT) {
+                    value = new byte[msgLen - 4 - keyLength];
+                    inputByteBuf.get(pos + 4 + keyLength, value);
+                    value = storedValue(value);
+                }
+
+                tasks.add(new Task(type, key, value));
+            }
+
+            pos += msgLen;
+            count++;
+            anyMessages = true;
+
+            if(conditionalAlone && type.isConditional())
+                break;
+        }
+
+        if(pos > 0) {
+            inputByteBuf.flip();
+            inputByteBuf.position(pos);
+            inputByteBuf.compact();
+        }
+
+        resizeInput();
+
+        return count;
+    }
+
+    //Splits the body of a multi-key message between pos and end into one single key task per entry
+    private Task readMultiKey(KVMessage.MessageType type, int pos, int end) throws ProtocolException {
+        var partType = switch (type) {
+            case MGET -> KVMessage.MessageType.GET;
+            case MSET -> KVMessage.MessageType.PUT;
+            default -> KVMessage.MessageType.DELETE;
+        };
+
+        int headerLength = type == KVMessage.MessageType.MSET ? 4 : 2;
+        List<Task> parts = new ArrayList<>();
+
+        while(pos < end) {
+            if(end - pos < headerLength)
+                throw new ProtocolException("Truncated entry in " + type + " message");
+
+            int keyLength = 0xFFFF & inputByteBuf.getShort(pos);
+            int valueLength = 0;
+
+            //Empty keys aren't allowed anywhere, a 0 key length is what marks an extended message
+            if(keyLength == 0)
+                throw new ProtocolException("Empty key in " + type + " message");
+
+            if(type == KVMessage.MessageType.MSET) {
+                valueLength = 0xFFFF & inputByteBuf.getShort(pos + 2);
+
+                //Those lengths mean GET and DELETE everywhere else, including the log
+                if(valueLength == 0 || valueLength == 0xFFFF)
+                    throw new ProtocolException("Invalid value length in MSET message");
+            }
+
+            if(end - pos - headerLength < keyLength + valueLength)
+                throw new ProtocolException("Truncated entry in " + type + " message");
+
+            byte[] key = new byte[keyLength];
+            inputByteBuf.get(pos + headerLength, key);
+
+            byte[] value = null;
+            if(valueLength > 0) {
+                value = new byte[valueLength];
+                inputByteBuf.get(pos + headerLength + keyLength, value);
+                value = storedValue(value);
+            }
+
+            parts.add(new Task(partType, key, value));
+            pos += headerLength + keyLength + valueLength;
+        }
+
+        return new Task(type, parts);
+    }
+
+    /*
+    * SCAN and PREFIX both turn into a SCAN task over [key, value), a PREFIX just works out that range from its prefix
+    * A null value means the scan has no end
+    */
+    private Task readScan(KVMessage.MessageType type, int pos, int end) throws ProtocolException {
+        if(end - pos < 8)
+            throw new ProtocolException("Truncated " + type + " message");
+
+        int limit = inputByteBuf.getInt(pos);
+        int firstLength = 0xFFFF & inputByteBuf.getShort(pos + 4);
+
+        if(end - pos - 8 < firstLength)
+            throw new ProtocolException("Truncated " + type + " message");
+
+        int secondLength = 0xFFFF & inputByteBuf.getShort(pos + 6 + firstLength);
+
+        if(end - pos - 8 - firstLength != secondLength)
+            throw new ProtocolException("Malformed " + type + " message");
+
+        byte[] first = new byte[firstLength];
+        inputByteBuf.get(pos + 6, first);
+
+        byte[] second = new byte[secondLength];
+        inputByteBuf.get(pos + 8 + firstLength, second);
+
+        if(type == KVMessage.MessageType.SCAN)
+            return new Task(KVMessage.MessageType.SCAN, first, secondLength == 0 ? null : second, null, limit, 0, null);
+
+        //A cursor from before the prefix would return keys outside it
+        byte[] from = SkipListEngine.KEY_ORDER.compare(second, first) > 0 ? second : first;
+        return new Task(KVMessage.MessageType.SCAN, from, SkipListEngine.prefixEnd(first), null, limit, 0, null);
+    }
+
+    //The body between pos and end is a TTL and then a whole PUT message, PUT_IF_ABSENT's TTL can be 0 for none
+    private Task readExpiringPut(KVMessage.MessageType type, int pos, int end) throws ProtocolException {
+        if(end - pos < 12)
+            throw new ProtocolException("Truncated " + type + " message");
+
+        long ttlMillis = inputByteBuf.getLong(pos);
+        int keyLength = 0xFFFF & inputByteBuf.getShort(pos + 8);
+        int valueLength = 0xFFFF & inputByteBuf.getShort(pos + 10);
+
+        if(ttlMillis < 0 || (ttlMillis == 0 && type == KVMessage.MessageType.PUT_TTL))
+            throw new ProtocolException(type + " needs a positive TTL, got " + ttlMillis);
+
+        if(keyLength == 0 || valueLength == 0 || valueLength == 0xFFFF)
+            throw new ProtocolException("Invalid key or value length in " + type + " message");
+
+        if(end - pos - 12 != keyLength + valueLength)
+            throw new ProtocolException("Malformed " + type + " message");
+
+        byte[] key = new byte[keyLength];
+        inputByteBuf.get(pos + 12, key);
+
+        byte[] value = new byte[valueLength];
+        inputByteBuf.get(pos + 12 + keyLength, value);
+        value = storedValue(value);
+
+        //A TTL too big to add just never expires
+        long now = System.currentTimeMillis();
+        long expiresAt = ttlMillis == 0 ? 0 : ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
+
+        var conditional = type == KVMessage.MessageType.PUT_IF_ABSENT ? new Conditional(null, 0) : null;
+        return new Task(type, key, value, null, 0, expiresAt, conditional);
+    }
+
+    private Task readCompareAndSet(int pos, int end) throws ProtocolException {
+        if(end - pos < 6)
+            throw new ProtocolException("Truncated CAS message");
+
+        int keyLength = 0xFFFF & inputByteBuf.getShort(pos);
+        int expectedLength = 0xFFFF & inputByteBuf.getShort(pos + 2);
+        int valueLength = 0xFFFF & inputByteBuf.getShort(pos + 4);
+
+        //Same rule as every other value, they couldn't be stored or logged otherwise
+        if(keyLength == 0 || expectedLength == 0 || expectedLength == 0xFFFF || valueLength == 0 || valueLength == 0xFFFF)
+            throw new ProtocolException("Invalid key or value length in CAS message");
+
+        if(end - pos - 6 != keyLength + expectedLength + valueLength)
+            throw new ProtocolException("Malformed CAS message");
+
+        byte[] key = new byte[keyLength];
+        inputByteBuf.get(pos + 6, key);
+
+        byte[] expected = new byte[expectedLength];
+        inputByteBuf.get(pos + 6 + keyLength, expected);
+
+        byte[] value = new byte[valueLength];
+        inputByteBuf.get(pos + 6 + keyLength + expectedLength, value);
+        value = storedValue(value);
+
+        return new Task(KVMessage.MessageType.CAS, key, value, null, 0, 0, new Conditional(expected, 0));
+    }
+
+    //Turns on the features the client asked for, the listener answers with the ones that are on
+    private Task readHello(int pos, int end) throws ProtocolException {
+        if(anyMessages)
+            throw new ProtocolException("HELLO has to be the first message on a connection");
+
+        if(end - pos != 4)
+            throw new ProtocolException("Malformed HELLO message");
+
+        storedValues = (inputByteBuf.getInt(pos) & KVMessage.FEATURE_STORED_VALUES) != 0;
+        return new Task(KVMessage.MessageType.HELLO, null, null);
+    }
+
+    /*
+    * Values are in their stored form from here on, compressed if they're big enough, see ValueCodec
+    * Escaping can make a value 5 bytes longer, which only fails for one that was already close to the length limit
+    */
+    private byte[] storedValue(byte[] value) throws ProtocolException {
+        byte[] stored = ValueCodec.encode(value, compressMinBytes);
+        if(stored == value)
+            return value;
+
+        if(stored.length >= 0xFFFF)
+            throw new ProtocolException("Value of " + value.length + " bytes is too long to store once it's escaped");
+
+        if(ValueCodec.isCompressed(stored)) {
+            metrics.valuesCompressed.increment();
+            metrics.valueBytesSaved.add(value.length - stored.length);
+        }
+
+        return stored;
+    }
+
+    //INCR and DECR both turn into an INCR task, a DECR just negates its delta
+    private Task readIncrement(KVMessage.MessageType type, int pos, int end) throws ProtocolException {
+        if(end - pos < 10)
+            throw new ProtocolException("Truncated " + type + " message");
+
+        long delta = inputByteBuf.getLong(pos);
+        int keyLength = 0xFFFF & inputByteBuf.getShort(pos + 8);
+
+        if(keyLength == 0 || end - pos - 10 != keyLength)
+            throw new ProtocolException("Malformed " + type + " message");
+
+        if(type == KVMessage.MessageType.DECR) {
+            if(delta == Long.MIN_VALUE)
+                throw new ProtocolException("DECR delta out of range");
+            delta = -delta;
+        }
+
+        byte[] key = new byte[keyLength];
+        inputByteBuf.get(pos + 10, key);
+
+        return new Task(KVMessage.MessageType.INCR, key, null, null, 0, 0, new Conditional(null, delta));
+    }
+
+    //Grows the input buffer when the message at the front can't fit in it, and shrinks it back once it's empty
+    private void resizeInput() throws ProtocolException {
+        int buffered = inputByteBuf.position();
+
+        if(buffered == 0) {
+            if(inputByteBuf.capacity() > BufferPool.MIN_SIZE) {
+                pool.release(inputByteBuf);
+                inputByteBuf = pool.acquire(BufferPool.MIN_SIZE);
+            }
+            return;
+        }
+
+        int msgLen = frameLength(0, buffered);
+        if(msgLen > inputByteBuf.capacity())
+            inputByteBuf = pool.grow(inputByteBuf, msgLen);
+    }
+
+    //Length of the whole message starting at pos, or -1 if not enough of its header has arrived to tell
+    private int frameLength(int pos, int available) throws ProtocolException {
+        if(available < 4)
+            return -1;
+
+        int keyLength = 0xFFFF & inputByteBuf.getShort(pos);
+
+        if(keyLength == 0) {
+            if(available < KVMessage.EXTENDED_HEADER_LENGTH)
+                return -1;
+
+            int bodyLength = inputByteBuf.getInt(pos + 4);
+            if(bodyLength < 0 || bodyLength > KVMessage.MAX_BODY_LENGTH)
+                throw new ProtocolException("Message body length " + bodyLength + " is out of range");
+
+            return KVMessage.EXTENDED_HEADER_LENGTH + bodyLength;
+        }
+
+        //Key and value bytes, GETs and DELETEs don't carry a value
+        return switch (messageType(pos)) {
+            case PUT -> 4 + keyLength + (0xFFFF & inputByteBuf.getShort(pos + 2));
+            default -> 4 + keyLength;
+        };
+    }
+
+    private KVMessage.MessageType messageType(int pos) throws ProtocolException {
+        if(inputByteBuf.getShort(pos) == 0) {
+            int version = 0xFF & inputByteBuf.get(pos + 2);
+            if(version != KVMessage.PROTOCOL_VERSION)
+                throw new ProtocolException("Unsupported protocol version " + version);
+
+            var type = KVMessage.extendedType(inputByteBuf.get(pos + 3));
+            if(type == null)
+                throw new ProtocolException("Unknown opcode " + inputByteBuf.get(pos + 3));
+
+            return type;
+        }
+
+        return switch (inputByteBuf.getShort(pos + 2)) {
             case 0 -> KVMessage.MessageType.GET;
             case -1 -> KVMessage.MessageType.DELETE;
             default -> KVMessage.MessageType.PUT;
         };
     }
 
-    public byte[][] readMessage() {
-        inputByteBuf.flip();
+    /*
+    * Makes sure the output buffer has room for bytes more and returns it, it may be a different buffer than before
+    * Only call this while holding this object's lock
+    */
+    ByteBuffer reserveOutput(int bytes) {
+        //Doubling matters once a multi-key response goes past the pooled sizes, where buffers are sized exactly
+        if(outputByteBuf.remaining() < bytes)
+            outputByteBuf = pool.grow(outputByteBuf, Math.max(outputByteBuf.position() + bytes, 2 * outputByteBuf.capacity()));
 
-        var processedMessage = KVMessage.decodeMessage(inputByteBuf);
+        return outputByteBuf;
+    }
+
+    /*
+    * Queues value to be sent as is after everything written so far, so it never gets copied into the output buffer
+    * The output buffer up to here is set aside with it and a fresh one takes its place for whatever comes next
+    * The socket reads value whenever the flush happens, so nothing can ever write to it. Caller holds this object's lock
+    */
+    void appendValue(byte[] value) {
+        if(outputByteBuf.position() > 0) {
+            outputByteBuf.flip();
+            segmentBytes += outputByteBuf.remaining();
+            segments.add(new Segment(outputByteBuf, true));
+            outputByteBuf = pool.acquire(BufferPool.MIN_SIZE);
+        }
+
+        segments.add(new Segment(ByteBuffer.wrap(value), false));
+        segmentBytes += value.length;
+        metrics.bytesGathered.add(value.length);
+    }
+
+    //Copies out and clears whatever is in the output buffer, for a buffer that's only used to build responses and never has values appended
+    synchronized byte[] takeOutput() {
+        byte[] output = new byte[outputByteBuf.position()];
+        outputByteBuf.get(0, output);
+        outputByteBuf.clear();
+        return output;
+    }
+
+    //Bytes written for this client that haven't gone out yet, finished or not
+    public synchronized int pendingOutput() {
+        return segmentBytes + outputByteBuf.position();
+    }
+
+    public synchronized void markFlushable(int bytes) {
+        flushableBytes += bytes;
+    }
+
+    //Writes as much of the finished responses as the socket takes, returns true if none of them are left
+    public synchronized boolean flush(SocketChannel channel) throws IOException {
+        flushableBytes -= write(channel, flushableBytes);
+
+        //A batch still running on the worker may have more bytes behind these, but they can't go out yet anyway
+        return flushableBytes == 0;
+    }
+
+    /*
+    * Blocking version of flush for VIRTUAL_THREADS mode, where only the connection's own thread touches this buffer
+    * Doesn't take the lock, a virtual thread that blocks on the socket while holding a monitor pins its carrier
+    */
+    void writeFully(SocketChannel channel) throws IOException {
+        int pending;
+        while((pending = segmentBytes + outputByteBuf.position()) > 0)
+            write(channel, pending);
+
+        flushableBytes = 0;
+    }
+
+    /*
+    * One write of at most limit bytes from the front of the output, returns how many the socket took
+    * With values queued it's a single gathering write over them and the buffers around them
+    */
+    private int write(SocketChannel channel, int limit) throws IOException {
+        int written;
+
+        if(segments.isEmpty()) {
+            outputByteBuf.flip();
+
+            int end = outputByteBuf.limit();
+            outputByteBuf.limit(limit);
+
+            written = channel.write(outputByteBuf);
+
+            outputByteBuf.limit(end);
+            outputByteBuf.compact();
+        } else {
+            written = (int) channel.write(gatherSources(limit));
+            consume(written);
+        }
+
+        metrics.bytesOut.add(written);
+
+        //Drop back to the smallest buffer once a burst of responses has gone out
+        if(outputByteBuf.position() == 0 && outputByteBuf.capacity() > BufferPool.MIN_SIZE) {
+            pool.release(outputByteBuf);
+            outputByteBuf = pool.acquire(BufferPool.MIN_SIZE);
+        }
+
+        return written;
+    }
+
+    //Views of the first limit bytes of output, in order, the segments themselves only move once we know what was sent
+    private ByteBuffer[] gatherSources(int limit) {
+        var sources = new ByteBuffer[segments.size() + 1];
+        int count = 0;
+
+        for(var segment : segments) {
+            if(limit == 0)
+                break;
+
+            var view = segment.buffer().duplicate();
+            if(view.remaining() > limit)
+                view.limit(view.position() + limit);
+
+            limit -= view.remaining();
+            sources[count++] = view;
+        }
+
+        if(limit > 0)
+            sources[count++] = outputByteBuf.duplicate().flip().limit(limit);
+
+        return count == sources.length ? sources : Arrays.copyOf(sources, count);
+    }
+
+    //Drops bytes sent from the front of the output, handing set aside buffers back to the pool as they empty
+    private void consume(int bytes) {
+        while(bytes > 0 && !segments.isEmpty()) {
+            var segment = segments.peekFirst();
+            var buffer = segment.buffer();
+
+            int taken = Math.min(buffer.remaining(), bytes);
+            buffer.position(buffer.position() + taken);
+            segmentBytes -= taken;
+            bytes -= taken;
+
+            if(!buffer.hasRemaining()) {
+                segments.pollFirst();
+                if(segment.pooled())
+                    pool.release(buffer);
+            }
+        }
+
+        if(bytes > 0) {
+            outputByteBuf.flip();
+            outputByteBuf.position(bytes);
+            outputByteBuf.compact();
+        }
+    }
 
-        inputByteBuf.compact();
+    //Gives both buffers back to the pool, only once no batch can still be writing to this client
+    public synchronized void release() {
+        pool.release(inputByteBuf);
+        pool.release(outputByteBuf);
+        inputByteBuf = null;
+        outputByteBuf = null;
 
-        return processedMessage;
+        for(var segment : segments) {
+            if(segment.pooled())
+                pool.release(segment.buffer());
+        }
+        segments.clear();
+        segmentBytes = 0;
     }
 
+    //Part of the output ahead of outputByteBuf, pooled buffers go back to the pool once they're sent
+    private record Segment(ByteBuffer buffer, boolean pooled) {}
 
 }
@@ -0,0 +1,27 @@
+package org.shahryarkiani;
+
+/*
+* The operands of a CAS, PUT_IF_ABSENT or INCR that don't fit in Task, and what it did once it ran
+* The log records the value that was written rather than the request, so replaying it never depends on what was there.
+* Only the thread that runs the task touches the outcome, and it's logged on that same thread
+*/
+final class Conditional {
+
+    //CAS only
+    final byte[] expected;
+
+    //INCR only, a DECR is read as an INCR of minus its delta
+    final long delta;
+
+    //Whether it wrote anything, the value it wrote and the key's deadline afterwards, 0 if it has none
+    boolean applied;
+
+    byte[] written;
+
+    long expiresAt;
+
+    Conditional(byte[] expected, long delta) {
+        this.expected = expected;
+        this.delta = delta;
+    }
+}
@@ -0,0 +1,87 @@
+package org.shahryarkiani;
+
+public class CountMinSketch {
+
+    /*
+    * Approximate access counts for any number of keys in a fixed amount of memory, by key hash
+    * Each hash bumps one counter in each of 4 rows and the estimate is the smallest of the 4,
+    * collisions can only make a count too high, never too low
+    *
+    * Counters stop at maxCount, 15 unless asked for more, and every counter is halved once sampleSize increments have gone in,
+    * so the counts follow what's popular now rather than what was popular an hour ago
+    *
+    * Increments aren't atomic, racing threads can lose a count now and then, which an estimate can live with
+    */
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private final int maxCount;
+
+    //Odd constants to get a different index out of the same hash for every row
+    private static final int[] SEEDS = {0x97CB3127, 0xB1A83721, 0xC2B2AE3D, 0x27D4EB2F};
+
+    private final int[] table;
+
+    private final int widthMask;
+
+    private final int sampleSize;
+
+    private int additions = 0;
+
+    public CountMinSketch(int expectedKeys) {
+        this(expectedKeys, MAX_COUNT);
+    }
+
+    //Admission only needs to tell hot from cold, ranking keys against each other needs counts that go higher
+    public CountMinSketch(int expectedKeys, int maxCount) {
+        this.maxCount = maxCount;
+
+        int width = Integer.highestOneBit(Math.max(1024, Math.min(1 << 24, expectedKeys)) * 2 - 1);
+
+        table = new int[DEPTH * width];
+        widthMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    public void increment(int hash) {
+        boolean added = false;
+
+        for(int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            if(table[index] < maxCount) {
+                table[index]++;
+                added = true;
+            }
+        }
+
+        if(added && ++additions >= sampleSize)
+            halve();
+    }
+
+    public int frequency(int hash) {
+        int min = maxCount;
+
+        for(int row = 0; row < DEPTH; row++)
+            min = Math.min(min, table[indexOf(hash, row)]);
+
+        return min;
+    }
+
+    private synchronized void halve() {
+        if(additions < sampleSize)
+            return;
+
+        for(int i = 0; i < table.length; i++)
+            table[i] >>>= 1;
+
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+        return row * (widthMask + 1) + (h & widthMask);
+    }
+
+}
@@ -0,0 +1,358 @@
+package org.shahryarkiani;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+public class ExpiringEngine implements StorageEngine {
+
+    /*
+    * Wraps another engine and keeps a deadline for every key that was written with a TTL
+    *
+    * Expiry is lazy and active. A GET for a key past its deadline removes it and answers as if it wasn't there,
+    * and each listener's TimingWheel calls expire for the keys it scheduled once their deadline comes up,
+    * so keys nobody reads again still go away without anything scanning the store
+    *
+    * Writes to a key with a deadline go through compute on its deadline entry, so an expiry can't remove a value
+    * that was written after the deadline it was checking. Until the first TTL is set every call skips the map
+    * entirely, a store that never uses TTLs only pays for an isEmpty check
+    *
+    * That check is only safe if writes to one key can't overlap, otherwise a plain PUT could see no deadlines,
+    * a PUT_TTL of the same key could set one, and the PUT's value would then land under it and expire with it.
+    * The log applies writes one batch at a time, PARTITIONED listeners each write only their own keys and a follower
+    * has a single writer, so writesSerialized is usually true. Otherwise every write takes a lock striped by key hash
+    *
+    * Deadlines are wall clock millis, they're written to the log and snapshots and have to mean the same after a restart
+    */
+    private final StorageEngine inner;
+
+    private final ConcurrentHashMap<ByteKey, Long> deadlines = new ConcurrentHashMap<>();
+
+    private final LongAdder expired = new LongAdder();
+
+    private static final int STRIPES = 1024;
+
+    //Null when writesSerialized
+    private final Stripe[] writeLocks;
+
+    public ExpiringEngine(StorageEngine inner, boolean writesSerialized) {
+        this.inner = inner;
+
+        if(writesSerialized) {
+            writeLocks = null;
+            return;
+        }
+
+        writeLocks = new Stripe[STRIPES];
+        for(int i = 0; i < STRIPES; i++)
+            writeLocks[i] = new Stripe();
+    }
+
+    //Locks key's stripe if writes need it, pass what it returns to unlock
+    private ReentrantLock lock(byte[] key) {
+        if(writeLocks == null)
+            return null;
+
+        var lock = writeLocks[ShardedHashEngine.hash(key) & (STRIPES - 1)];
+        lock.lock();
+        return lock;
+    }
+
+    private static void unlock(ReentrantLock lock) {
+        if(lock != null)
+            lock.unlock();
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        byte[] value = inner.get(key);
+        if(value == null || !isExpired(key))
+            return value;
+
+        return null;
+    }
+
+    @Override
+    public int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        //Has to be checked first, once the value is copied into the response it's too late
+        if(isExpired(key))
+            return -1;
+
+        return inner.copyValue(key, reserve);
+    }
+
+    //A plain PUT clears the key's TTL, same as overwriting a key with SET in redis
+    @Override
+    public void put(byte[] key, byte[] value) {
+        var lock = lock(key);
+        try {
+            if(deadlines.isEmpty()) {
+                inner.put(key, value);
+                return;
+            }
+
+            deadlines.compute(ByteKey.of(key), (k, deadline) -> {
+                inner.put(key, value);
+                return null;
+            });
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    //A deadline that's already passed, which replaying an old log can hand us, just removes the key
+    public void putWithExpiry(byte[] key, byte[] value, long expiresAt) {
+        if(expiresAt <= System.currentTimeMillis()) {
+            remove(key);
+            return;
+        }
+
+        var lock = lock(key);
+        try {
+            deadlines.compute(ByteKey.of(key), (k, deadline) -> {
+                inner.put(key, value);
+                return expiresAt;
+            });
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        var lock = lock(key);
+        try {
+            if(deadlines.isEmpty())
+                return inner.remove(key);
+
+            byte[][] removed = new byte[1][];
+
+            deadlines.compute(ByteKey.of(key), (k, deadline) -> {
+                removed[0] = inner.remove(key);
+                //It was only still there because nothing had gotten around to expiring it
+                if(deadline != null && deadline <= System.currentTimeMillis())
+                    removed[0] = null;
+                return null;
+            });
+
+            return removed[0];
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /*
+    * A key past its deadline counts as missing, and one that's updated keeps its deadline,
+    * so incrementing a counter that was written with a TTL doesn't make it live forever
+    */
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        return update(key, update, 0);
+    }
+
+    //Same as update, but if it writes, the key gets expiresAt as its deadline instead of keeping the one it had
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update, long expiresAt) {
+        var lock = lock(key);
+        try {
+            if(deadlines.isEmpty() && expiresAt == 0)
+                return inner.update(key, update);
+
+            byte[][] result = new byte[1][];
+
+            deadlines.compute(ByteKey.of(key), (k, deadline) -> {
+                boolean pastDeadline = deadline != null && deadline <= System.currentTimeMillis();
+                byte[][] seen = new byte[1][];
+
+                //Handing back null for an expired key takes the stale value out along the way
+                result[0] = inner.update(key, current -> {
+                    seen[0] = pastDeadline ? null : current;
+                    return update.apply(seen[0]);
+                });
+
+                if(pastDeadline)
+                    expired.increment();
+
+                if(result[0] == null)
+                    return null;
+                if(result[0] != seen[0] && expiresAt > 0)
+                    return expiresAt;
+                return pastDeadline ? null : deadline;
+            });
+
+            return result[0];
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    //The key's deadline, 0 if it doesn't have one
+    public long deadlineOf(byte[] key) {
+        if(deadlines.isEmpty())
+            return 0;
+
+        Long deadline = deadlines.get(ByteKey.of(key));
+        return deadline == null ? 0 : deadline;
+    }
+
+    /*
+    * Removes key if its deadline is still expiresAt and has passed, returns whether it did
+    * Timers for a key that was written again since don't match its deadline anymore and do nothing
+    */
+    public boolean expire(byte[] key, long expiresAt) {
+        boolean[] removed = new boolean[1];
+
+        deadlines.computeIfPresent(ByteKey.of(key), (k, deadline) -> {
+            if(deadline != expiresAt || deadline > System.currentTimeMillis())
+                return deadline;
+
+            inner.remove(key);
+            expired.increment();
+            removed[0] = true;
+            return null;
+        });
+
+        return removed[0];
+    }
+
+    //Only for loading a snapshot, before any listener can see the store
+    public void restoreExpiry(byte[] key, long expiresAt) {
+        if(expiresAt <= System.currentTimeMillis())
+            inner.remove(key);
+        else
+            deadlines.put(ByteKey.of(key), expiresAt);
+    }
+
+    //Every key with a TTL and its deadline, weakly consistent like entries()
+    public Iterable<Map.Entry<byte[], Long>> expiries() {
+        return () -> new Iterator<>() {
+
+            private final Iterator<Map.Entry<ByteKey, Long>> iter = deadlines.entrySet().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], Long> next() {
+                var entry = iter.next();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey().bytes(), entry.getValue());
+            }
+        };
+    }
+
+    //The engine keys are actually stored in, for stats that depend on what it is
+    public StorageEngine inner() {
+        return inner;
+    }
+
+    public long keysWithExpiry() {
+        return deadlines.size();
+    }
+
+    //Both the ones a GET ran into and the ones a timer got to
+    public long expiredKeys() {
+        return expired.sum();
+    }
+
+    //Includes keys that have expired but haven't been removed yet
+    @Override
+    public long size() {
+        return inner.size();
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return inner.sharesValues();
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return inner.isOrdered();
+    }
+
+    //Expired keys are skipped but not removed, a scan shouldn't be turning into a pile of writes
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        var entries = inner.range(from, to);
+        if(deadlines.isEmpty())
+            return entries;
+
+        long now = System.currentTimeMillis();
+
+        return new Iterator<>() {
+
+            private Map.Entry<byte[], byte[]> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if(next == null)
+                    throw new NoSuchElementException();
+
+                var entry = next;
+                next = advance();
+                return entry;
+            }
+
+            private Map.Entry<byte[], byte[]> advance() {
+                while(entries.hasNext()) {
+                    var entry = entries.next();
+                    Long deadline = deadlines.get(ByteKey.of(entry.getKey()));
+                    if(deadline == null || deadline > now)
+                        return entry;
+                }
+                return null;
+            }
+        };
+    }
+
+    //Snapshots write expired entries too, their deadline goes in the snapshot with them and drops them on load
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return inner.entries();
+    }
+
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        inner.bulkLoad(count, entries, sorted);
+    }
+
+    //Deadlines aren't part of it, snapshots write those either way
+    @Override
+    public boolean persist() throws IOException {
+        return inner.persist();
+    }
+
+    //Removes key right away if it's past its deadline
+    private boolean isExpired(byte[] key) {
+        if(deadlines.isEmpty())
+            return false;
+
+        Long deadline = deadlines.get(ByteKey.of(key));
+        if(deadline == null || deadline > System.currentTimeMillis())
+            return false;
+
+        expire(key, deadline);
+        return true;
+    }
+
+    //A lock's state is allocated right after it, padding the lock keeps each stripe's state a cache line away from the next one's
+    @SuppressWarnings("serial")
+    private static final class Stripe extends ReentrantLock {
+        private long p0, p1, p2, p3, p4, p5, p6, p7;
+    }
+
+}
@@ -0,0 +1,215 @@
+package org.shahryarkiani;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class HotKeys {
+
+    /*
+    * One listener's idea of which keys are hot, and a small cache of their values in front of the store
+    *
+    * About one in sampleRate single key requests is counted in a count-min sketch, and the keys with the highest
+    * estimates are kept in a short list next to it. That list is what HOT_KEYS answers with, it shows which keys
+    * the load comes from and, in PARTITIONED mode, which listener it piles up on
+    *
+    * GETs for keys the sketch has counted a couple of times are cached in a direct mapped table with a slot per hash,
+    * so a hit is an array load and a key compare instead of a walk through the engine. A slot remembers its key's
+    * version in VersionedEngine from before the value was read, any write to the key from any listener moves that on
+    * and the slot stops being a hit. Values are cached the way they're stored, each client gets them served as usual
+    *
+    * The listener thread and its worker can both be running requests, so slots only ever hold immutable entries
+    * and are read and replaced without locks. Counting a sample takes a lock, but only once every sampleRate requests
+    */
+
+    //Samples a key needs before its value gets a slot, a key seen once is as likely to be a one-off as hot
+    private static final int ADMIT_SAMPLES = 2;
+
+    //Estimates are high enough to rank keys well before they're high enough to overflow anything
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    //Distinct sampled keys the sketch is sized for, what's hot stands out well before that
+    private static final int SKETCH_KEYS = 4096;
+
+    //The list HOT_KEYS reads is rebuilt after this many samples, or on the first sample this long after the last time
+    private static final int PUBLISH_SAMPLES = 256;
+
+    private static final long PUBLISH_MILLIS = 100;
+
+    private final ServerMetrics.Listener metrics;
+
+    //Both null when the cache is off
+    private final VersionedEngine versions;
+
+    private final Entry[] slots;
+
+    private final int slotMask;
+
+    //Null when sampling is off, the cache then takes every key that misses
+    private final CountMinSketch sketch;
+
+    private final int sampleRate;
+
+    //Requests left until the next sample, racy between the listener and its worker but it only has to be about right
+    private int countdown;
+
+    //The tracked keys, their hashes and their estimates as of when they were last sampled, all under the lock
+    private final byte[][] topKeys;
+
+    private final int[] topHashes;
+
+    private final int[] topSamples;
+
+    private int topSize = 0;
+
+    private int unpublished = 0;
+
+    private long publishedAt = 0;
+
+    private volatile List<SampledKey> published = List.of();
+
+    public HotKeys(VersionedEngine versions, int cacheEntries, int sampleRate, int tracked, ServerMetrics.Listener metrics) {
+        this.metrics = metrics;
+
+        if(versions != null && cacheEntries > 0) {
+            int size = Integer.highestOneBit(Math.min(1 << 24, cacheEntries) * 2 - 1);
+            this.versions = versions;
+            slots = new Entry[size];
+            slotMask = size - 1;
+        } else {
+            this.versions = null;
+            slots = null;
+            slotMask = 0;
+        }
+
+        this.sampleRate = Math.max(0, sampleRate);
+        sketch = sampleRate > 0 ? new CountMinSketch(SKETCH_KEYS, MAX_SAMPLES) : null;
+        countdown = sampleRate;
+
+        int size = sampleRate > 0 ? Math.max(1, tracked) : 0;
+        topKeys = new byte[size][];
+        topHashes = new int[size];
+        topSamples = new int[size];
+    }
+
+    public boolean caching() {
+        return slots != null;
+    }
+
+    public boolean sampling() {
+        return sketch != null;
+    }
+
+    //The cached stored value for key, null if it isn't cached or was written since
+    public byte[] get(byte[] key, int hash) {
+        Entry entry = slots[hash & slotMask];
+
+        if(entry == null || entry.hash() != hash || !Arrays.equals(entry.key(), key)) {
+            metrics.hotCacheMisses.increment();
+            return null;
+        }
+
+        if(entry.version() != versions.version(hash)) {
+            metrics.hotCacheStale.increment();
+            return null;
+        }
+
+        metrics.hotCacheHits.increment();
+        return entry.value();
+    }
+
+    //Whether a key that missed is hot enough to be given a slot
+    public boolean admits(int hash) {
+        return sketch == null || sketch.frequency(hash) >= ADMIT_SAMPLES;
+    }
+
+    //Has to be taken before the value is read from the store, see VersionedEngine
+    public long version(int hash) {
+        return versions.version(hash);
+    }
+
+    //Takes over the slot whatever is in it, stored has to be the store's value for key as of version
+    public void put(byte[] key, int hash, long version, byte[] stored) {
+        slots[hash & slotMask] = new Entry(key, hash, version, stored);
+    }
+
+    //Counts key about once every sampleRate calls
+    public void sample(byte[] key) {
+        if(sketch == null || --countdown > 0)
+            return;
+
+        //Randomized around sampleRate so keys requested in a fixed rotation don't always land on the same one
+        countdown = 1 + ThreadLocalRandom.current().nextInt(2 * sampleRate - 1);
+        record(key, ShardedHashEngine.hash(key));
+    }
+
+    private synchronized void record(byte[] key, int hash) {
+        sketch.increment(hash);
+        int samples = sketch.frequency(hash);
+
+        int coldest = 0;
+        for(int i = 0; i < topSize; i++) {
+            if(topHashes[i] == hash && Arrays.equals(topKeys[i], key)) {
+                topSamples[i] = samples;
+                publishIfDue();
+                return;
+            }
+
+            if(topSamples[i] < topSamples[coldest])
+                coldest = i;
+        }
+
+        if(topSize < topKeys.length) {
+            track(topSize++, key, hash, samples);
+        } else {
+            //Its estimate is from the last time it was sampled, the sketch may have aged it since
+            topSamples[coldest] = sketch.frequency(topHashes[coldest]);
+            if(samples > topSamples[coldest])
+                track(coldest, key, hash, samples);
+        }
+
+        publishIfDue();
+    }
+
+    private void publishIfDue() {
+        long now = System.currentTimeMillis();
+        if(++unpublished < PUBLISH_SAMPLES && now - publishedAt < PUBLISH_MILLIS)
+            return;
+
+        publish();
+        unpublished = 0;
+        publishedAt = now;
+    }
+
+    private void track(int i, byte[] key, int hash, int samples) {
+        topKeys[i] = key;
+        topHashes[i] = hash;
+        topSamples[i] = samples;
+    }
+
+    //Estimates are scaled back up by the sample rate, so they're roughly requests since the sketch last aged
+    private void publish() {
+        List<SampledKey> top = new ArrayList<>(topSize);
+        for(int i = 0; i < topSize; i++) {
+            topSamples[i] = sketch.frequency(topHashes[i]);
+            if(topSamples[i] > 0)
+                top.add(new SampledKey(topKeys[i], (long) topSamples[i] * sampleRate));
+        }
+
+        top.sort(Comparator.comparingLong(SampledKey::requests).reversed());
+        published = List.copyOf(top);
+    }
+
+    //The hottest keys as of the last publish, hottest first
+    public List<SampledKey> top() {
+        return published;
+    }
+
+    private record Entry(byte[] key, int hash, long version, byte[] value) {}
+
+    //A tracked key and about how many requests it's had lately
+    record SampledKey(byte[] key, long requests) {}
+
+}
@@ -4,63 +4,494 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
 public class KVClient {
 
+    /*
+    * Requests are pipelined, callers write as many frames as they want without waiting on the server
+    * The server answers in the order it read the frames, so every request parks a future at the back of inFlight
+    * and a reader thread completes them from the front as responses come in
+    *
+    * The blocking put/get/delete calls are just the async ones joined, and the multi calls send one
+    * extended MGET/MSET/MDEL message, so a whole batch is a single frame, write and response
+    */
+    private static final int INITIAL_REQUEST_SIZE = 1024;
+
+    //Big enough for any single key response, multi-key responses grow the buffer when they need to
+    private static final int RESPONSE_BUFFER_SIZE = 2 * 65536;
 
     private final SocketChannel serverConn;
 
-    private final ByteBuffer output;
+    private final ConcurrentLinkedQueue<PendingResponse<?>> inFlight = new ConcurrentLinkedQueue<>();
+
+    private final Thread responseReader;
+
+    //Only touched while holding the client's lock
+    private ByteBuffer requestBuf;
+
+    private volatile boolean closed = false;
+
+    //Whether the server sends values the way it stores them, they're decoded here then, see ValueCodec
+    private final boolean storedValues;
 
     public KVClient(String address, int port) {
+        this(address, port, false);
+    }
+
+    /*
+    * With compressedValues the server sends compressed values as they are and this client decodes them,
+    * which saves the server the work and the network the bytes. It's negotiated with a HELLO before anything else
+    * is sent, so it's off if the server doesn't support it
+    */
+    public KVClient(String address, int port, boolean compressedValues) {
         try {
             serverConn = SocketChannel.open(new InetSocketAddress(address, port));
-            output = ByteBuffer.allocate(1024);
+            requestBuf = ByteBuffer.allocateDirect(INITIAL_REQUEST_SIZE);
         } catch (IOException e) {
             System.err.println("[ERROR] Unable to initialize client");
             throw new RuntimeException(e);
         }
+
+        responseReader = new Thread(this::readResponses, "kv-client-reader");
+        responseReader.setDaemon(true);
+        responseReader.start();
+
+        storedValues = compressedValues && (hello(KVMessage.FEATURE_STORED_VALUES) & KVMessage.FEATURE_STORED_VALUES) != 0;
+    }
+
+    //Sends the features we want and waits for the ones the server turned on
+    private synchronized int hello(int features) {
+        ensureRequestCapacity(KVMessage.HELLO_REQUEST_SIZE);
+        KVMessage.writeHelloRequest(requestBuf, features);
+
+        var response = new CompletableFuture<Integer>();
+        inFlight.add(new PendingResponse<>(response, true, KVMessage::decodeHelloResponse));
+
+        writeRequests();
+        return response.join();
     }
 
     public String put(String key, String value) {
-        var message = KVMessage.convertToMessage(key, value, KVMessage.MessageType.PUT);
-        return sendRequest(message);
+        return putAsync(key, value).join();
     }
 
     public String get(String key) {
-        var message = KVMessage.convertToMessage(key, null, KVMessage.MessageType.GET);
-        return sendRequest(message);
+        return getAsync(key).join();
     }
 
+    public String delete(String key) {
+        return deleteAsync(key).join();
+    }
 
+    //A DELETE already answers with the value it removed, in the same atomic step
+    public String getAndDelete(String key) {
+        return delete(key);
+    }
 
+    public CompletableFuture<String> putAsync(String key, String value) {
+        return sendRequest(KVMessage.MessageType.PUT, key, value);
+    }
 
-    public String delete(String key) {
-        var message = KVMessage.convertToMessage(key, null, KVMessage.MessageType.DELETE);
-        return sendRequest(message);
+    //The key is removed once ttl has passed, unless it's written again before then
+    public void put(String key, String value, Duration ttl) {
+        putAsync(key, value, ttl).join();
+    }
+
+    public synchronized CompletableFuture<Void> putAsync(String key, String value, Duration ttl) {
+        if(ttl.toMillis() <= 0)
+            throw new IllegalArgumentException("TTL has to be at least a millisecond, got " + ttl);
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
+
+        ensureRequestCapacity(KVMessage.expiringPutRequestSize(keyBytes, valueBytes));
+        KVMessage.writeExpiringPutRequest(requestBuf, KVMessage.MessageType.PUT_TTL, keyBytes, valueBytes, ttl.toMillis());
+
+        var response = new CompletableFuture<List<String>>();
+        inFlight.add(new PendingResponse<>(response, true, KVMessage::decodeMultiResponse));
+
+        writeRequests();
+        return response.thenAccept(ignored -> {});
     }
 
-    private String sendRequest(ByteBuffer message) {
-        message.flip();
+    /*
+    * Sets key to value only if it currently holds expected, in one round trip
+    * When it doesn't, the result has the value it does hold, so a retry doesn't need a GET first
+    */
+    public KVMessage.ConditionalResult compareAndSet(String key, String expected, String value) {
+        return compareAndSetAsync(key, expected, value).join();
+    }
+
+    public synchronized CompletableFuture<KVMessage.ConditionalResult> compareAndSetAsync(String key, String expected, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] expectedBytes = expected.getBytes(StandardCharsets.US_ASCII);
+        byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
+
+        ensureRequestCapacity(KVMessage.compareAndSetRequestSize(keyBytes, expectedBytes, valueBytes));
+        KVMessage.writeCompareAndSetRequest(requestBuf, keyBytes, expectedBytes, valueBytes);
+
+        var response = new CompletableFuture<KVMessage.ConditionalResult>();
+        inFlight.add(new PendingResponse<>(response, true, buffer -> KVMessage.decodeConditionalResponse(buffer, storedValues)));
+
+        writeRequests();
+        return response;
+    }
+
+    //Writes value only if key isn't there, otherwise the result has the value that is
+    public KVMessage.ConditionalResult putIfAbsent(String key, String value) {
+        return putIfAbsentAsync(key, value, Duration.ZERO).join();
+    }
+
+    //Same as above with a TTL on the new key, Duration.ZERO for none. Good for leases
+    public KVMessage.ConditionalResult putIfAbsent(String key, String value, Duration ttl) {
+        return putIfAbsentAsync(key, value, ttl).join();
+    }
+
+    public synchronized CompletableFuture<KVMessage.ConditionalResult> putIfAbsentAsync(String key, String value, Duration ttl) {
+        if(ttl.isNegative())
+            throw new IllegalArgumentException("TTL can't be negative, got " + ttl);
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
+
+        ensureRequestCapacity(KVMessage.expiringPutRequestSize(keyBytes, valueBytes));
+        KVMessage.writeExpiringPutRequest(requestBuf, KVMessage.MessageType.PUT_IF_ABSENT, keyBytes, valueBytes, ttl.toMillis());
+
+        var response = new CompletableFuture<KVMessage.ConditionalResult>();
+        inFlight.add(new PendingResponse<>(response, true, buffer -> KVMessage.decodeConditionalResponse(buffer, storedValues)));
+
+        writeRequests();
+        return response;
+    }
+
+    //Adds delta to the counter at key and returns the new value, a missing key starts at 0
+    public long increment(String key, long delta) {
+        return incrementAsync(key, delta).join();
+    }
+
+    public long decrement(String key, long delta) {
+        return decrementAsync(key, delta).join();
+    }
+
+    //Both fail with an IllegalStateException if the value isn't a number or the result would overflow
+    public CompletableFuture<Long> incrementAsync(String key, long delta) {
+        return sendIncrement(KVMessage.MessageType.INCR, key, delta);
+    }
+
+    public CompletableFuture<Long> decrementAsync(String key, long delta) {
+        return sendIncrement(KVMessage.MessageType.DECR, key, delta);
+    }
+
+    private synchronized CompletableFuture<Long> sendIncrement(KVMessage.MessageType type, String key, long delta) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+
+        ensureRequestCapacity(KVMessage.incrementRequestSize(keyBytes));
+        KVMessage.writeIncrementRequest(requestBuf, type, keyBytes, delta);
+
+        var response = new CompletableFuture<Long>();
+        inFlight.add(new PendingResponse<>(response, true, KVMessage::decodeIncrementResponse));
+
+        writeRequests();
+        return response;
+    }
+
+    public CompletableFuture<String> getAsync(String key) {
+        return sendRequest(KVMessage.MessageType.GET, key, null);
+    }
+
+    public CompletableFuture<String> deleteAsync(String key) {
+        return sendRequest(KVMessage.MessageType.DELETE, key, null);
+    }
+
+    //Values come back in the same order as keys, null for keys that aren't there
+    public List<String> multiGet(List<String> keys) {
+        return multiGetAsync(keys).join();
+    }
+
+    public CompletableFuture<List<String>> multiGetAsync(List<String> keys) {
+        return sendMultiRequest(KVMessage.MessageType.MGET, encodeAll(keys), null);
+    }
+
+    public void multiPut(Map<String, String> entries) {
+        multiPutAsync(entries).join();
+    }
+
+    public CompletableFuture<Void> multiPutAsync(Map<String, String> entries) {
+        return sendMultiRequest(KVMessage.MessageType.MSET, encodeAll(entries.keySet()), encodeAll(entries.values()))
+                .thenAccept(ignored -> {});
+    }
+
+    //Returns the values that were removed in the same order as keys, null for keys that weren't there
+    public List<String> multiDelete(List<String> keys) {
+        return multiDeleteAsync(keys).join();
+    }
+
+    public CompletableFuture<List<String>> multiDeleteAsync(List<String> keys) {
+        return sendMultiRequest(KVMessage.MessageType.MDEL, encodeAll(keys), null);
+    }
+
+    private synchronized CompletableFuture<List<String>> sendMultiRequest(KVMessage.MessageType type, List<byte[]> keys, List<byte[]> values) {
+        int size = KVMessage.multiRequestSize(keys, values);
+        if(size - KVMessage.EXTENDED_HEADER_LENGTH > KVMessage.MAX_BODY_LENGTH)
+            throw new IllegalArgumentException(type + " request of " + size + " bytes is too large");
+
+        ensureRequestCapacity(size);
+        KVMessage.writeMultiRequest(requestBuf, type, keys, values);
+
+        var response = new CompletableFuture<List<String>>();
+        inFlight.add(new PendingResponse<>(response, true, buffer -> KVMessage.decodeMultiResponse(buffer, storedValues)));
+
+        writeRequests();
+        return response;
+    }
+
+    /*
+    * Entries with start <= key < end in key order, end can be null to scan to the last key, a limit of 0 means no limit
+    * Only works against an ordered engine. The server sends the range a chunk at a time and
+    * iterating fetches the next chunk once the current one runs out, so a big range is never held all at once
+    */
+    public Iterable<Map.Entry<String, String>> scan(String start, String end, int limit) {
+        byte[] endBytes = end == null ? new byte[0] : end.getBytes(StandardCharsets.US_ASCII);
+        return pagedScan(KVMessage.MessageType.SCAN, start.getBytes(StandardCharsets.US_ASCII), endBytes, limit);
+    }
+
+    //Every entry whose key starts with prefix, in key order, same paging as scan
+    public Iterable<Map.Entry<String, String>> prefix(String prefix, int limit) {
+        return pagedScan(KVMessage.MessageType.PREFIX, prefix.getBytes(StandardCharsets.US_ASCII), new byte[0], limit);
+    }
+
+    /*
+    * One chunk of a scan, the chunk's cursor is null once there's nothing left
+    * For SCAN first and second are the start and end keys, for PREFIX they're the prefix and the cursor
+    */
+    public synchronized CompletableFuture<KVMessage.ScanChunk> scanChunkAsync(KVMessage.MessageType type, byte[] first, byte[] second, int limit) {
+        ensureRequestCapacity(KVMessage.scanRequestSize(first, second));
+        KVMessage.writeScanRequest(requestBuf, type, first, second, limit);
+
+        var response = new CompletableFuture<KVMessage.ScanChunk>();
+        inFlight.add(new PendingResponse<>(response, true, buffer -> KVMessage.decodeScanResponse(buffer, storedValues)));
+
+        writeRequests();
+        return response;
+    }
+
+    //The server's metrics by name, see ServerMetrics for what's in there
+    public Map<String, String> stats() {
+        return statsAsync().join();
+    }
+
+    public synchronized CompletableFuture<Map<String, String>> statsAsync() {
+        ensureRequestCapacity(KVMessage.EXTENDED_HEADER_LENGTH);
+        KVMessage.writeStatsRequest(requestBuf);
+
+        var response = new CompletableFuture<Map<String, String>>();
+        inFlight.add(new PendingResponse<>(response, true, KVMessage::decodeStatsResponse));
+
+        writeRequests();
+        return response;
+    }
+
+    //The keys each listener has seen the most requests for lately, hottest first
+    public List<KVMessage.HotKey> hotKeys() {
+        return hotKeysAsync().join();
+    }
+
+    public synchronized CompletableFuture<List<KVMessage.HotKey>> hotKeysAsync() {
+        ensureRequestCapacity(KVMessage.EXTENDED_HEADER_LENGTH);
+        KVMessage.writeHotKeysRequest(requestBuf);
+
+        var response = new CompletableFuture<List<KVMessage.HotKey>>();
+        inFlight.add(new PendingResponse<>(response, true, KVMessage::decodeHotKeysResponse));
+
+        writeRequests();
+        return response;
+    }
+
+    private Iterable<Map.Entry<String, String>> pagedScan(KVMessage.MessageType type, byte[] first, byte[] second, int limit) {
+        return () -> new Iterator<>() {
+
+            private Iterator<Map.Entry<String, String>> current = Collections.emptyIterator();
+
+            //Where the next chunk starts, null once the server said there's nothing left
+            private byte[] cursor = type == KVMessage.MessageType.SCAN ? first : second;
+
+            private int remaining = limit;
+
+            @Override
+            public boolean hasNext() {
+                while(!current.hasNext() && cursor != null)
+                    fetchChunk();
+
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            private void fetchChunk() {
+                var chunk = type == KVMessage.MessageType.SCAN
+                        ? scanChunkAsync(type, cursor, second, remaining).join()
+                        : scanChunkAsync(type, first, cursor, remaining).join();
+
+                var entries = chunk.entries();
+                cursor = chunk.cursor();
+
+                if(limit > 0) {
+                    if(entries.size() >= remaining) {
+                        entries = entries.subList(0, remaining);
+                        cursor = null;
+                    }
+                    remaining -= entries.size();
+                }
+
+                current = entries.iterator();
+            }
+        };
+    }
+
+    private synchronized CompletableFuture<String> sendRequest(KVMessage.MessageType type, String key, String value) {
+        var response = encodeRequest(type, key, value);
+        writeRequests();
+        return response;
+    }
+
+    //Caller holds the lock, the future has to be queued before the frame can possibly reach the server
+    private CompletableFuture<String> encodeRequest(KVMessage.MessageType type, String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] valueBytes = type == KVMessage.MessageType.PUT ? value.getBytes(StandardCharsets.US_ASCII) : null;
+
+        ensureRequestCapacity(KVMessage.requestSize(keyBytes, valueBytes));
+        KVMessage.writeRequest(requestBuf, keyBytes, valueBytes, type);
+
+        var response = new CompletableFuture<String>();
+        inFlight.add(new PendingResponse<>(response, false, buffer -> KVMessage.decodeResponse(buffer, storedValues)));
+        return response;
+    }
+
+    private void ensureRequestCapacity(int size) {
+        if(requestBuf.remaining() >= size)
+            return;
+
+        int capacity = requestBuf.capacity();
+        while(capacity - requestBuf.position() < size)
+            capacity *= 2;
+
+        var bigger = ByteBuffer.allocateDirect(capacity);
+        requestBuf.flip();
+        bigger.put(requestBuf);
+        requestBuf = bigger;
+    }
+
+    private static List<byte[]> encodeAll(Collection<String> strings) {
+        List<byte[]> encoded = new ArrayList<>(strings.size());
+        for(var string : strings)
+            encoded.add(string.getBytes(StandardCharsets.US_ASCII));
+        return encoded;
+    }
+
+    //Caller holds the lock, writes out everything encoded since the last call
+    private void writeRequests() {
+        requestBuf.flip();
 
         try {
-            serverConn.write(message);
-            readResponse(output, serverConn);
+            if(closed)
+                throw new IOException("Client is closed");
 
+            while(requestBuf.hasRemaining())
+                serverConn.write(requestBuf);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            failPending(e);
+        } finally {
+            requestBuf.clear();
         }
 
-        output.flip();
+        //The buffer only grows for big batches, don't hold onto it afterwards
+        if(requestBuf.capacity() > RESPONSE_BUFFER_SIZE)
+            requestBuf = ByteBuffer.allocateDirect(INITIAL_REQUEST_SIZE);
+    }
+
+    private void readResponses() {
+        var input = ByteBuffer.allocateDirect(RESPONSE_BUFFER_SIZE);
+
+        try {
+            while(serverConn.read(input) != -1) {
+                input.flip();
+
+                PendingResponse<?> pending;
+                int needed = 0;
+
+                while((pending = inFlight.peek()) != null) {
+                    int frameLength = responseLength(input, pending);
+
+                    if(frameLength < 0 || input.remaining() < frameLength) {
+                        needed = frameLength;
+                        break;
+                    }
+
+                    int frameEnd = input.position() + frameLength;
 
-        String responseValue = KVMessage.decodeResponse(output);
+                    inFlight.poll();
+                    pending.complete(input);
+                    input.position(frameEnd);
+                }
 
-        output.compact();
+                input.compact();
 
-        return responseValue;
+                //A multi-key response can be bigger than the buffer, so make room for all of it
+                if(needed > input.capacity()) {
+                    var bigger = ByteBuffer.allocateDirect(needed);
+                    input.flip();
+                    bigger.put(input);
+                    input = bigger;
+                }
+            }
+
+            failPending(new IOException("Server closed the connection"));
+        } catch (IOException e) {
+            failPending(e);
+        }
+    }
+
+    //Length of the response frame at the front of buffered, or -1 if its header hasn't arrived yet
+    private static int responseLength(ByteBuffer buffered, PendingResponse<?> pending) {
+        if(pending.extended()) {
+            if(buffered.remaining() < 4)
+                return -1;
+            return 4 + buffered.getInt(buffered.position());
+        }
+
+        if(buffered.remaining() < 2)
+            return -1;
+
+        int valueLength = buffered.getShort(buffered.position());
+        return valueLength == -1 ? 2 : 2 + (0xFFFF & valueLength);
+    }
+
+    private void failPending(IOException cause) {
+        closed = true;
+
+        try {
+            serverConn.close();
+        } catch (IOException ignored) {
+        }
+
+        PendingResponse<?> pending;
+        while((pending = inFlight.poll()) != null)
+            pending.response().completeExceptionally(cause);
     }
 
     public void close() {
+        closed = true;
         try {
             serverConn.close();
         } catch (IOException e) {
@@ -68,18 +499,15 @@ public class KVClient {
         }
     }
 
-    public static void readResponse(ByteBuffer output, SocketChannel serverConn) throws IOException {
-        serverConn.read(output);
-
-        int requiredLengthShort = output.getShort(0);
-
-        if(requiredLengthShort != -1) {
-            int requiredBytes = 0xFFFF & requiredLengthShort;
-            int readBytes = output.position();
+    //extended is whether the response has the 4 byte length of an extended message instead of the 2 byte one
+    private record PendingResponse<T>(CompletableFuture<T> response, boolean extended, Function<ByteBuffer, T> decoder) {
 
-            while(readBytes < requiredBytes) {
-                serverConn.read(output);
-                readBytes = output.position();
+        //The reader moves past the frame afterwards, so a decoder that throws only fails its own request
+        void complete(ByteBuffer input) {
+            try {
+                response.complete(decoder.apply(input));
+            } catch (RuntimeException e) {
+                response.completeExceptionally(e);
             }
         }
     }
@@ -2,17 +2,134 @@ package org.shahryarkiani;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class KVMessage {
 
 
 
     public enum MessageType {
-        PUT, GET, DELETE
+        PUT, GET, DELETE, MGET, MSET, MDEL, SCAN, PREFIX, STATS, PUT_TTL, CAS, PUT_IF_ABSENT, INCR, DECR, HELLO, HOT_KEYS;
+
+        //Whether the message changes the store, and so has to go through the write-ahead log
+        public boolean isMutation() {
+            return this == PUT || this == DELETE || this == MSET || this == MDEL || this == PUT_TTL || isConditional();
+        }
+
+        //Writes that read the key's current value first, what they write is only known once they've run
+        public boolean isConditional() {
+            return this == CAS || this == PUT_IF_ABSENT || this == INCR || this == DECR;
+        }
+
+        public boolean isMultiKey() {
+            return this == MGET || this == MSET || this == MDEL;
+        }
     }
 
     private static final int MAX_LENGTH = 65536 - 1;
 
+    /*
+    * Extended message format, for commands the format below can't express:
+    * | 2 Bytes | 1 Byte  | 1 Byte | 4 Bytes  | Body Len Bytes |
+    * | 0       | Version | Opcode | Body Len | Body           |
+    *
+    * A key length of 0 is what marks an extended message, so the original format can't use empty keys
+    * MGET and MDEL bodies are a list of | 2 Bytes Key Len | Key |
+    * MSET bodies are a list of PUT messages, each in the original format
+    *
+    * Every extended message gets a single response:
+    * | 4 Bytes  | Body Len Bytes |
+    * | Body Len | Body           |
+    * For MGET and MDEL the body is one normal response per key, in the order the keys were sent
+    * For MSET the body is empty, the response just means every entry was written
+    *
+    * SCAN and PREFIX bodies are | 4 Bytes Limit | 2 Bytes Len | First | 2 Bytes Len | Second |
+    * For SCAN first is the start key (inclusive) and second the end key (exclusive, empty for no end)
+    * For PREFIX first is the prefix and second the cursor to resume from, empty on the first call
+    * A limit of 0 means no limit
+    *
+    * Scans are answered one chunk at a time, the server stops once the chunk is big enough and hands back a cursor:
+    * | 1 Byte | 4 Bytes     | Entries                 | 2 Bytes    | Cursor Len Bytes |
+    * | Status | Entry Count | PUT messages, key order | Cursor Len | Cursor           |
+    * The cursor is empty unless the status is SCAN_MORE, then it's the first key that wasn't sent,
+    * and the next chunk comes from sending the same scan again starting at it
+    *
+    * STATS has an empty body, its response body is the server's metrics as ascii "name value" lines
+    *
+    * HOT_KEYS has an empty body too, it answers with the keys each listener has sampled the most requests for lately:
+    * | 4 Bytes     | Entries                                                                  |
+    * | Entry Count | | 2 Bytes Listener | 8 Bytes Requests | 2 Bytes Key Len | Key |, hottest first |
+    * Requests are estimates scaled up from the samples, a key that's hot everywhere shows up once per listener
+    *
+    * PUT_TTL bodies are | 8 Bytes TTL Millis | PUT message |, the key expires once the TTL has passed
+    * A normal PUT or DELETE of the key clears its TTL. The response body is empty, like MSET's
+    *
+    * The conditional writes each read and write their key in one atomic step:
+    * CAS bodies are | 2 Bytes Key Len | 2 Bytes Expected Len | 2 Bytes Value Len | Key | Expected | Value |,
+    * the value is written only if the key currently holds expected
+    * PUT_IF_ABSENT bodies are the same as PUT_TTL's, but a TTL of 0 means the key doesn't expire
+    * Both answer | 1 Byte Status | Response |, status 1 if they wrote and the response is the value the key had before,
+    * so a CAS that lost gets the current value back and can try again without a GET
+    *
+    * INCR and DECR bodies are | 8 Bytes Delta | 2 Bytes Key Len | Key |, counters are stored as ascii decimal
+    * so a GET reads them as is, and a missing key counts as 0. They answer | 1 Byte Status | 8 Bytes Value |,
+    * status 0 if the value isn't a 64 bit integer or the result would overflow, the key is left alone then
+    * CAS and INCR keep the key's TTL if it has one
+    *
+    * DELETE already answers with the value it removed, so it's also the atomic get and delete
+    *
+    * HELLO bodies are | 4 Bytes Features |, the optional behaviour the client wants for the rest of the connection
+    * It's only allowed as the very first message, and answers | 4 Bytes Features | with the ones the server turned on
+    * FEATURE_STORED_VALUES sends every value the way the server stores it (see ValueCodec) instead of decoding it first,
+    * so compressed values go out compressed and the client decodes them
+    */
+    public static final int EXTENDED_HEADER_LENGTH = 8;
+
+    public static final int PROTOCOL_VERSION = 1;
+
+    //Keeps one bad length from making the server buffer an arbitrary amount for a client
+    public static final int MAX_BODY_LENGTH = 1 << 24;
+
+    private static final byte OP_MGET = 1;
+
+    private static final byte OP_MSET = 2;
+
+    private static final byte OP_MDEL = 3;
+
+    private static final byte OP_SCAN = 4;
+
+    private static final byte OP_PREFIX = 5;
+
+    private static final byte OP_STATS = 6;
+
+    private static final byte OP_PUT_TTL = 7;
+
+    private static final byte OP_CAS = 8;
+
+    private static final byte OP_PUT_IF_ABSENT = 9;
+
+    private static final byte OP_INCR = 10;
+
+    private static final byte OP_DECR = 11;
+
+    private static final byte OP_HELLO = 12;
+
+    private static final byte OP_HOT_KEYS = 13;
+
+    public static final int FEATURE_STORED_VALUES = 1;
+
+    public static final int HELLO_REQUEST_SIZE = EXTENDED_HEADER_LENGTH + 4;
+
+    public static final byte SCAN_DONE = 0;
+
+    public static final byte SCAN_MORE = 1;
+
+    //The server's engine doesn't keep keys in order
+    public static final byte SCAN_UNSUPPORTED = 2;
+
     /*
     * Message format:
     * | 2 Bytes | 2 Bytes   | Key Len Bytes | Value Len Bytes |
@@ -28,25 +145,196 @@ public class KVMessage {
     * This also means that we can't put an empty value
     */
     public static ByteBuffer convertToMessage(String key, String value, MessageType msgType) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] valueBytes = msgType == MessageType.PUT ? value.getBytes(StandardCharsets.US_ASCII) : null;
 
-        int keyLength = key.length();
+        var message = ByteBuffer.allocateDirect(requestSize(keyBytes, valueBytes));
+        writeRequest(message, keyBytes, valueBytes, msgType);
+
+        return message;
+    }
+
+    //Same as above but into a buffer the caller reuses, dst needs requestSize bytes remaining
+    public static void writeRequest(ByteBuffer dst, byte[] key, byte[] value, MessageType msgType) {
         int valueLength = switch (msgType) {
             case GET -> 0;
             case DELETE -> -1;
-            case PUT -> value.length();
+            case PUT -> value.length;
+            case MGET, MSET, MDEL, SCAN, PREFIX, STATS, PUT_TTL, CAS, PUT_IF_ABSENT, INCR, DECR, HELLO, HOT_KEYS -> throw new IllegalArgumentException(msgType + " is an extended message");
         };
 
-        //Unnecessary allocation, this method should really be taking in a bytebuffer to write to
-        var message = ByteBuffer.allocateDirect(4 + keyLength + (valueLength == -1 ? 0 : valueLength));
-
-        message.putShort((short) (keyLength & 0xFFFF));
-        message.putShort((short) (valueLength & 0xFFFF));
-        message.put(key.getBytes(StandardCharsets.US_ASCII));
+        dst.putShort((short) (key.length & 0xFFFF));
+        dst.putShort((short) (valueLength & 0xFFFF));
+        dst.put(key);
         if(msgType == MessageType.PUT)
-            message.put(value.getBytes(StandardCharsets.US_ASCII));
+            dst.put(value);
+    }
 
-        return message;
+    public static int requestSize(byte[] key, byte[] value) {
+        return 4 + key.length + (value == null ? 0 : value.length);
+    }
+
+    //Writes one extended message for keys, values is only used for MSET and has to line up with keys
+    public static void writeMultiRequest(ByteBuffer dst, MessageType msgType, List<byte[]> keys, List<byte[]> values) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(opcode(msgType));
+        dst.putInt(multiRequestSize(keys, values) - EXTENDED_HEADER_LENGTH);
+
+        for(int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            dst.putShort((short) (key.length & 0xFFFF));
+
+            if(msgType == MessageType.MSET) {
+                dst.putShort((short) (values.get(i).length & 0xFFFF));
+                dst.put(key);
+                dst.put(values.get(i));
+            } else {
+                dst.put(key);
+            }
+        }
+    }
+
+    public static int multiRequestSize(List<byte[]> keys, List<byte[]> values) {
+        int size = EXTENDED_HEADER_LENGTH;
+        for(byte[] key : keys)
+            size += 2 + key.length;
+
+        if(values != null) {
+            for(byte[] value : values)
+                size += 2 + value.length;
+        }
+
+        return size;
+    }
+
+    public static void writeScanRequest(ByteBuffer dst, MessageType msgType, byte[] first, byte[] second, int limit) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(opcode(msgType));
+        dst.putInt(scanRequestSize(first, second) - EXTENDED_HEADER_LENGTH);
+
+        dst.putInt(limit);
+        dst.putShort((short) (first.length & 0xFFFF));
+        dst.put(first);
+        dst.putShort((short) (second.length & 0xFFFF));
+        dst.put(second);
+    }
+
+    public static int scanRequestSize(byte[] first, byte[] second) {
+        return EXTENDED_HEADER_LENGTH + 4 + 2 + first.length + 2 + second.length;
+    }
+
+    public static void writeStatsRequest(ByteBuffer dst) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(opcode(MessageType.STATS));
+        dst.putInt(0);
+    }
+
+    public static void writeHotKeysRequest(ByteBuffer dst) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(opcode(MessageType.HOT_KEYS));
+        dst.putInt(0);
+    }
+
+    public static void writeHelloRequest(ByteBuffer dst, int features) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(OP_HELLO);
+        dst.putInt(4);
+        dst.putInt(features);
+    }
+
+    //Also writes PUT_IF_ABSENT, which has the same body, its TTL can be 0
+    public static void writeExpiringPutRequest(ByteBuffer dst, MessageType msgType, byte[] key, byte[] value, long ttlMillis) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(opcode(msgType));
+        dst.putInt(expiringPutRequestSize(key, value) - EXTENDED_HEADER_LENGTH);
+
+        dst.putLong(ttlMillis);
+        writeRequest(dst, key, value, MessageType.PUT);
+    }
+
+    public static int expiringPutRequestSize(byte[] key, byte[] value) {
+        return EXTENDED_HEADER_LENGTH + 8 + requestSize(key, value);
     }
+
+    public static void writeCompareAndSetRequest(ByteBuffer dst, byte[] key, byte[] expected, byte[] value) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(OP_CAS);
+        dst.putInt(compareAndSetRequestSize(key, expected, value) - EXTENDED_HEADER_LENGTH);
+
+        dst.putShort((short) (key.length & 0xFFFF));
+        dst.putShort((short) (expected.length & 0xFFFF));
+        dst.putShort((short) (value.length & 0xFFFF));
+        dst.put(key);
+        dst.put(expected);
+        dst.put(value);
+    }
+
+    public static int compareAndSetRequestSize(byte[] key, byte[] expected, byte[] value) {
+        return EXTENDED_HEADER_LENGTH + 6 + key.length + expected.length + value.length;
+    }
+
+    //INCR or DECR
+    public static void writeIncrementRequest(ByteBuffer dst, MessageType msgType, byte[] key, long delta) {
+        dst.putShort((short) 0);
+        dst.put((byte) PROTOCOL_VERSION);
+        dst.put(opcode(msgType));
+        dst.putInt(incrementRequestSize(key) - EXTENDED_HEADER_LENGTH);
+
+        dst.putLong(delta);
+        dst.putShort((short) (key.length & 0xFFFF));
+        dst.put(key);
+    }
+
+    public static int incrementRequestSize(byte[] key) {
+        return EXTENDED_HEADER_LENGTH + 10 + key.length;
+    }
+
+    //Null if the opcode isn't one this version knows about
+    public static MessageType extendedType(byte opcode) {
+        return switch (opcode) {
+            case OP_MGET -> MessageType.MGET;
+            case OP_MSET -> MessageType.MSET;
+            case OP_MDEL -> MessageType.MDEL;
+            case OP_SCAN -> MessageType.SCAN;
+            case OP_PREFIX -> MessageType.PREFIX;
+            case OP_STATS -> MessageType.STATS;
+            case OP_PUT_TTL -> MessageType.PUT_TTL;
+            case OP_CAS -> MessageType.CAS;
+            case OP_PUT_IF_ABSENT -> MessageType.PUT_IF_ABSENT;
+            case OP_INCR -> MessageType.INCR;
+            case OP_DECR -> MessageType.DECR;
+            case OP_HELLO -> MessageType.HELLO;
+            case OP_HOT_KEYS -> MessageType.HOT_KEYS;
+            default -> null;
+        };
+    }
+
+    private static byte opcode(MessageType msgType) {
+        return switch (msgType) {
+            case MGET -> OP_MGET;
+            case MSET -> OP_MSET;
+            case MDEL -> OP_MDEL;
+            case SCAN -> OP_SCAN;
+            case PREFIX -> OP_PREFIX;
+            case STATS -> OP_STATS;
+            case PUT_TTL -> OP_PUT_TTL;
+            case CAS -> OP_CAS;
+            case PUT_IF_ABSENT -> OP_PUT_IF_ABSENT;
+            case INCR -> OP_INCR;
+            case DECR -> OP_DECR;
+            case HELLO -> OP_HELLO;
+            case HOT_KEYS -> OP_HOT_KEYS;
+            case PUT, GET, DELETE -> throw new IllegalArgumentException(msgType + " isn't an extended message");
+        };
+    }
+
     public static byte[][] decodeMessage(ByteBuffer msg) {
         int keyLength = 0xFFFF & msg.getShort();
         int valueLength = 0xFFFF & msg.getShort();
@@ -68,7 +356,44 @@ public class KVMessage {
         return new byte[][]{ keyBytes, valueBytes };
     }
 
+    //Writes a key and value in the same format as above, a null value is written as a DELETE
+    public static void writeMessage(ByteBuffer dst, byte[] key, byte[] value) {
+        dst.putShort((short) (key.length & 0xFFFF));
+
+        if(value == null) {
+            dst.putShort((short) -1);
+            dst.put(key);
+            return;
+        }
+
+        dst.putShort((short) (value.length & 0xFFFF));
+        dst.put(key);
+        dst.put(value);
+    }
+
+    /*
+    * Response format:
+    * | 2 Bytes   | Value Len Bytes |
+    * | Value Len | Value           |
+    *
+    * A Value Len of 0xFFFF means there was no value
+    */
+    public static void writeResponse(ByteBuffer dst, byte[] value) {
+        if(value == null) {
+            dst.putShort((short) -1);
+            return;
+        }
+
+        dst.putShort((short) (value.length & 0xFFFF));
+        dst.put(value);
+    }
+
     public static String decodeResponse(ByteBuffer response) {
+        return decodeResponse(response, false);
+    }
+
+    //storedValues is whether the connection asked for FEATURE_STORED_VALUES, the value is decoded here then
+    public static String decodeResponse(ByteBuffer response, boolean storedValues) {
         int shortValueLength = response.getShort();
 
         if(shortValueLength == -1)
@@ -80,7 +405,118 @@ public class KVMessage {
 
         response.get(valueBytes, 0, valueLength);
 
-        return new String(valueBytes);
+        return new String(storedValues ? ValueCodec.decode(valueBytes) : valueBytes);
+    }
+
+    //Decodes the response to an extended message, response has to hold all of it
+    public static List<String> decodeMultiResponse(ByteBuffer response) {
+        return decodeMultiResponse(response, false);
+    }
+
+    public static List<String> decodeMultiResponse(ByteBuffer response, boolean storedValues) {
+        int end = response.position() + 4 + response.getInt();
+
+        List<String> values = new ArrayList<>();
+        while(response.position() < end)
+            values.add(decodeResponse(response, storedValues));
+
+        return values;
     }
 
+    /*
+    * Decodes one chunk of a scan, response has to hold all of it
+    * Returns the entries in order and the cursor to continue from, null once the scan is done
+    */
+    public static ScanChunk decodeScanResponse(ByteBuffer response) {
+        return decodeScanResponse(response, false);
+    }
+
+    public static ScanChunk decodeScanResponse(ByteBuffer response, boolean storedValues) {
+        response.getInt();
+        byte status = response.get();
+
+        if(status == SCAN_UNSUPPORTED)
+            throw new UnsupportedOperationException("The server's storage engine doesn't support scans");
+
+        int count = response.getInt();
+        List<Map.Entry<String, String>> entries = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++) {
+            byte[][] entry = decodeMessage(response);
+            byte[] value = storedValues ? ValueCodec.decode(entry[1]) : entry[1];
+            entries.add(Map.entry(new String(entry[0]), new String(value)));
+        }
+
+        byte[] cursor = new byte[0xFFFF & response.getShort()];
+        response.get(cursor);
+
+        return new ScanChunk(entries, status == SCAN_MORE ? cursor : null);
+    }
+
+    public static Map<String, String> decodeStatsResponse(ByteBuffer response) {
+        byte[] body = new byte[response.getInt()];
+        response.get(body);
+
+        Map<String, String> stats = new LinkedHashMap<>();
+        for(String line : new String(body, StandardCharsets.US_ASCII).split("\n")) {
+            int split = line.indexOf(' ');
+            if(split > 0)
+                stats.put(line.substring(0, split), line.substring(split + 1));
+        }
+
+        return stats;
+    }
+
+    public static List<HotKey> decodeHotKeysResponse(ByteBuffer response) {
+        response.getInt();
+
+        int count = response.getInt();
+        List<HotKey> hotKeys = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++) {
+            int listener = 0xFFFF & response.getShort();
+            long requests = response.getLong();
+            byte[] key = new byte[0xFFFF & response.getShort()];
+            response.get(key);
+            hotKeys.add(new HotKey(new String(key), listener, requests));
+        }
+
+        return hotKeys;
+    }
+
+    //CAS and PUT_IF_ABSENT, previous is the value the key had before, null if it had none
+    public static ConditionalResult decodeConditionalResponse(ByteBuffer response) {
+        return decodeConditionalResponse(response, false);
+    }
+
+    public static ConditionalResult decodeConditionalResponse(ByteBuffer response, boolean storedValues) {
+        response.getInt();
+        boolean applied = response.get() == 1;
+        return new ConditionalResult(applied, decodeResponse(response, storedValues));
+    }
+
+    //The features the server turned on, out of the ones a HELLO asked for
+    public static int decodeHelloResponse(ByteBuffer response) {
+        response.getInt();
+        return response.getInt();
+    }
+
+    //INCR and DECR, throws if the server couldn't apply it
+    public static long decodeIncrementResponse(ByteBuffer response) {
+        response.getInt();
+        boolean applied = response.get() == 1;
+        long value = response.getLong();
+
+        if(!applied)
+            throw new IllegalStateException("The value isn't a 64 bit integer or the result would overflow");
+
+        return value;
+    }
+
+    public record ConditionalResult(boolean applied, String previous) {}
+
+    public record HotKey(String key, int listener, long requests) {}
+
+    public record ScanChunk(List<Map.Entry<String, String>> entries, byte[] cursor) {}
+
 }
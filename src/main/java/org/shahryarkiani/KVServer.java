@@ -1,24 +1,41 @@
 package org.shahryarkiani;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class KVServer implements Runnable {
 
 
-    private final ConcurrentSkipListMap<byte[], byte[]> kvStore;
+    private final ExpiringEngine kvStore;
+
+    //Only in PARTITIONED mode, the same keys as kvStore split one partition per listener
+    private final PartitionedEngine partitions;
 
     private final int port;
 
-    private static final long timeout = 10 * 1000;
+    private final String bindAddress;
+
+    private final int acceptBacklog;
+
+    //SINGLE if REUSEPORT was asked for but the platform doesn't have it
+    private final KVServerConfig.AcceptMode acceptMode;
+
+    private final KVServerConfig.ServerMode serverMode;
 
+    //Only used in SINGLE mode, in REUSEPORT mode every listener has a socket of its own
     private final ServerSocketChannel listener;
 
     private final Selector selector;
@@ -27,31 +44,103 @@ public class KVServer implements Runnable {
 
     private int curHandler;
 
+    //Both of these are null when persistence is turned off
+    private final Path dataDirectory;
+    private final WriteAheadLog writeAheadLog;
+
+    private final ScheduledExecutorService snapshotter;
+
+    private final ServerMetrics metrics;
+
+    //At most one of these, a leader serves followers and a follower copies a leader
+    private final ReplicationLeader replicationLeader;
+
+    private final ReplicationFollower replicationFollower;
+
+    //Which listener the next TTL that didn't come from a client goes to
+    private int nextExpiryHandler = 0;
+
+    //Only touched by the snapshot thread
+    private long lastSnapshotPosition = 0;
+
     public KVServer(int port, int eventGroupSize) {
-        kvStore = new ConcurrentSkipListMap<>((a, b) -> {
-            int len = Math.min(a.length, b.length);
+        this(port, eventGroupSize, new KVServerConfig());
+    }
 
-            for(int i = 0; i < len; i++) {
-                int cmp = Byte.compare(a[i], b[i]);
-                if(cmp != 0)
-                    return cmp;
-            }
+    public KVServer(int port, int eventGroupSize, KVServerConfig config) {
+        if(config.replicaOf != null && config.replicationPort > 0)
+            throw new IllegalArgumentException("A follower can't serve followers of its own, it has no log to stream");
 
+        if(config.replicaOf != null && config.walDirectory != null) {
+            System.err.println("[ERROR] A follower gets everything from its leader and keeps no log, ignoring kv.wal.dir");
+            config.walDirectory = null;
+        }
 
-            return Integer.compare(a.length, b.length);
-        });
+        if(config.replicationPort > 0 && config.walDirectory == null)
+            throw new IllegalArgumentException("Replication streams the write-ahead log, kv.replication.port needs kv.wal.dir");
+
+        if(config.engineType == StorageEngine.Type.LSM && config.lsmDirectory == null && config.walDirectory == null)
+            throw new IllegalArgumentException("The LSM engine keeps its segments on disk, kv.engine=lsm needs kv.lsm.dir or kv.wal.dir");
+
+        //A partition per listener would tie the segment files to how many listeners the server had when it wrote them
+        if(config.engineType == StorageEngine.Type.LSM && config.executionMode == KVServerListener.ExecutionMode.PARTITIONED) {
+            System.err.println("[ERROR] The LSM engine keeps one set of segment files, running requests inline instead of partitioning");
+            config.executionMode = KVServerListener.ExecutionMode.INLINE;
+        }
+
+        try {
+            dataDirectory = config.walDirectory == null ? null : Files.createDirectories(Path.of(config.walDirectory));
+
+            Path snapshot = dataDirectory == null ? null : KVSnapshot.latest(dataDirectory);
+
+            //Partitions only mean something when the listeners run the requests
+            boolean partitioned = config.serverMode == KVServerConfig.ServerMode.SELECTOR && config.executionMode == KVServerListener.ExecutionMode.PARTITIONED;
+            partitions = partitioned ? createPartitions(config, eventGroupSize) : null;
+            kvStore = createEngine(config, partitions);
+            restoreSnapshot(snapshot);
+            writeAheadLog = openWriteAheadLog(config, snapshot == null ? 0 : KVSnapshot.segmentOf(snapshot));
+        } catch (IOException e) {
+            System.err.println("[ERROR] Unable to restore data from " + config.walDirectory);
+            throw new RuntimeException(e);
+        }
+
+        snapshotter = scheduleSnapshots(config);
 
         handlers = new KVServerListener[eventGroupSize];
 
-        ConcurrentLinkedQueue<SocketChannel> connectionsQueue = new ConcurrentLinkedQueue<>();
+        metrics = new ServerMetrics(kvStore, eventGroupSize);
+
+        var bufferPool = new BufferPool(config.bufferPoolRetainedBytes);
 
         for(int i = 0; i < handlers.length; i++) {
-            handlers[i] = new KVServerListener(kvStore, connectionsQueue);
+            handlers[i] = new KVServerListener(kvStore, writeAheadLog, bufferPool, config, metrics, i);
+        }
+
+        if(partitions != null) {
+            for(var handler : handlers)
+                handler.partitionAcross(handlers, partitions);
         }
 
+        scheduleRestoredExpiries();
+
+        replicationLeader = config.replicationPort > 0
+                ? new ReplicationLeader(kvStore, writeAheadLog, config.bindAddress, config.replicationPort, config.replicationMaxLagBytes)
+                : null;
+
+        replicationFollower = config.replicaOf != null ? new ReplicationFollower(kvStore, config.replicaOf, (key, value, expiresAt) -> {
+            applyMutation(key, value, expiresAt);
+            if(value != null && expiresAt > 0)
+                scheduleExpiry(key, expiresAt);
+        }) : null;
+
+        metrics.trackReplication(replicationLeader, replicationFollower);
+
         curHandler = 0;
 
         this.port = port;
+        bindAddress = config.bindAddress;
+        acceptBacklog = config.acceptBacklog;
+        serverMode = config.serverMode;
         try {
             listener = ServerSocketChannel.open();
             selector = Selector.open();
@@ -59,6 +148,161 @@ public class KVServer implements Runnable {
             System.err.println("[ERROR] Unable to open listener socket or selector");
             throw new RuntimeException(e);
         }
+
+        if(config.acceptMode == KVServerConfig.AcceptMode.REUSEPORT && serverMode == KVServerConfig.ServerMode.VIRTUAL_THREADS) {
+            System.err.println("[ERROR] REUSEPORT only applies to the selector server, accepting on a single thread instead");
+            acceptMode = KVServerConfig.AcceptMode.SINGLE;
+        } else if(config.acceptMode == KVServerConfig.AcceptMode.REUSEPORT && !listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            System.err.println("[ERROR] SO_REUSEPORT isn't supported on this platform, accepting on a single thread instead");
+            acceptMode = KVServerConfig.AcceptMode.SINGLE;
+        } else {
+            acceptMode = config.acceptMode;
+        }
+
+        if(config.jmxEnabled)
+            registerMBean();
+    }
+
+    //The same numbers STATS gives, for tools that already speak JMX
+    private void registerMBean() {
+        try {
+            var name = new ObjectName("org.shahryarkiani:type=KVServer,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            System.err.println("[ERROR] Unable to register metrics MBean | " + e.getMessage());
+        }
+    }
+
+    /*
+    * Expiry always goes on the outside, so the keys it removes also leave the cache's accounting
+    * Versions go under both so the listeners' hot key caches hear about evictions and expiries as well
+    */
+    private static ExpiringEngine createEngine(KVServerConfig config, PartitionedEngine partitions) {
+        StorageEngine engine = partitions != null ? partitions : createBaseEngine(config, config.hashShards);
+
+        if(config.hotCacheEntries > 0)
+            engine = new VersionedEngine(engine);
+
+        if(config.cacheMaxBytes > 0)
+            engine = new CachingEngine(engine, config.cacheMaxBytes, config.cachePolicy, config.cacheSegments);
+
+        //Without a log, listeners that aren't partitioned can write the same key at once, see ExpiringEngine
+        boolean writesSerialized = partitions != null || config.walDirectory != null || config.replicaOf != null;
+        return new ExpiringEngine(engine, writesSerialized);
+    }
+
+    private static StorageEngine createBaseEngine(KVServerConfig config, int shards) {
+        return switch (config.engineType) {
+            case SKIP_LIST -> new SkipListEngine();
+            case HASH -> new ShardedHashEngine(shards);
+            case OFF_HEAP -> new OffHeapEngine(shards);
+            //Segments are only kept across restarts when the log can bring them up to date
+            case LSM -> new LsmEngine(config.lsmDirectory != null ? Path.of(config.lsmDirectory) : Path.of(config.walDirectory, "lsm"),
+                    config.walDirectory != null, config.lsmMemtableBytes, config.lsmSegmentMaxBytes, config.lsmBloomBitsPerKey, config.lsmCompactionRuns);
+        };
+    }
+
+    //The shards are split between the partitions, a partition only has one writer so it doesn't need as many
+    private static PartitionedEngine createPartitions(KVServerConfig config, int count) {
+        int shards = Math.max(1, config.hashShards / count);
+        return new PartitionedEngine(count, () -> createBaseEngine(config, shards));
+    }
+
+    /*
+    * TTLs that came back from the snapshot and the log, dealt out across the listeners so they share the expiry work
+    * In PARTITIONED mode each one goes to the listener that owns the key instead
+    */
+    private void scheduleRestoredExpiries() {
+        for(var entry : kvStore.expiries())
+            scheduleExpiry(entry.getKey(), entry.getValue());
+    }
+
+    //Only called from one thread at a time, the constructor and then the replication thread
+    private void scheduleExpiry(byte[] key, long expiresAt) {
+        if(partitions != null) {
+            handlers[partitions.partitionOf(key)].scheduleExpiry(key, expiresAt);
+            return;
+        }
+        handlers[nextExpiryHandler].scheduleExpiry(key, expiresAt);
+        nextExpiryHandler = (nextExpiryHandler + 1) % handlers.length;
+    }
+
+    //A mutation from the log or from a leader, value is null for a DELETE
+    private void applyMutation(byte[] key, byte[] value, long expiresAt) {
+        if(value == null)
+            kvStore.remove(key);
+        else if(expiresAt > 0)
+            kvStore.putWithExpiry(key, value, expiresAt);
+        else
+            kvStore.put(key, value);
+    }
+
+    private void restoreSnapshot(Path snapshot) throws IOException {
+        if(snapshot == null)
+            return;
+
+        long start = System.nanoTime();
+        KVSnapshot.load(snapshot, kvStore);
+        System.out.println("[INFO] Loaded " + kvStore.size() + " keys from " + snapshot.getFileName() + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    //Replays the log written since the snapshot into kvStore before any listener can touch it
+    private WriteAheadLog openWriteAheadLog(KVServerConfig config, long fromSegment) throws IOException {
+        if(dataDirectory == null)
+            return null;
+
+        var log = new WriteAheadLog(dataDirectory, config.fsyncPolicy, config.fsyncIntervalMillis);
+
+        long replayed = log.replay(fromSegment, this::applyMutation);
+
+        System.out.println("[INFO] Replayed " + replayed + " mutations from the write-ahead log, " + kvStore.size() + " keys loaded");
+        return log;
+    }
+
+    private ScheduledExecutorService scheduleSnapshots(KVServerConfig config) {
+        if(writeAheadLog == null || config.snapshotIntervalMillis <= 0)
+            return null;
+
+        var executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::takeSnapshot, config.snapshotIntervalMillis, config.snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+
+        return executor;
+    }
+
+    /*
+    * Rolls the log first, so everything in the old segments is already in kvStore when we start iterating
+    * The skip list iterator is weakly consistent, so the snapshot may also pick up some newer writes,
+    * that's fine since replaying the newer segments over it puts those keys back in the same final state
+    * An engine that persists itself only needs to be told to, after the roll, and the snapshot just keeps the TTLs
+    */
+    private void takeSnapshot() {
+        //Nothing was written since the last one
+        if(writeAheadLog.position() == lastSnapshotPosition)
+            return;
+
+        try {
+            long start = System.nanoTime();
+            long position = writeAheadLog.position();
+            long segment = writeAheadLog.roll();
+
+            boolean persisted = kvStore.persist();
+            Path snapshot = KVSnapshot.write(dataDirectory, segment, kvStore, !persisted);
+
+            //Only once it's written, a failed snapshot gets tried again on the next tick even if nothing's changed
+            lastSnapshotPosition = position;
+
+            writeAheadLog.deleteSegmentsBefore(segment);
+            KVSnapshot.deleteOlderThan(dataDirectory, segment);
+
+            System.out.println("[INFO] Wrote " + snapshot.getFileName() + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        } catch (IOException | RuntimeException err) {
+            err.printStackTrace();
+            System.err.println("[ERROR] Snapshot failed | " + err.getMessage());
+        }
     }
 
     private void configureListenerAndSelector() {
@@ -66,63 +310,150 @@ public class KVServer implements Runnable {
 
         try {
             listener.configureBlocking(false);
-            listener.socket().bind(new InetSocketAddress("127.0.0.1", port));
+            listener.bind(new InetSocketAddress(bindAddress, port), acceptBacklog);
             listener.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException err) {
             err.printStackTrace();
             System.err.println("[ERROR] " + err.getMessage());
         }
     }
-    public void run() {
+    /*
+    * One SO_REUSEPORT socket per listener, all bound before any listener thread starts
+    * With port 0 the first socket picks the port and the rest join it, so they all share one
+    */
+    private SocketAddress bindPerListener() {
+        SocketAddress bound = null;
+        int boundPort = port;
+
+        try {
+            for(var handler : handlers) {
+                var socket = ServerSocketChannel.open();
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(new InetSocketAddress(bindAddress, boundPort), acceptBacklog);
+
+                bound = socket.getLocalAddress();
+                boundPort = ((InetSocketAddress) bound).getPort();
+
+                handler.acceptFrom(socket);
+            }
+        } catch (IOException err) {
+            System.err.println("[ERROR] Unable to bind SO_REUSEPORT sockets on " + bindAddress + ":" + port);
+            throw new RuntimeException(err);
+        }
 
+        return bound;
+    }
+
+    private void startReplication() {
+        Thread thread;
+        if(replicationLeader != null)
+            thread = new Thread(replicationLeader, "replication-leader");
+        else if(replicationFollower != null)
+            thread = new Thread(replicationFollower, "replication-follower");
+        else
+            return;
+
+        thread.setDaemon(true);
+        thread.start();
+    }
 
+    /*
+    * VIRTUAL_THREADS mode, this thread blocks in accept and starts a virtual thread for each connection
+    * Connections are still dealt out to the listeners in turn, for their metrics and expiry wheels
+    */
+    private void acceptOnVirtualThreads() {
+        var connectionThreads = Thread.ofVirtual().name("kv-connection-", 0).factory();
 
+        while(true) {
+            SocketChannel newConnection;
+            try {
+                newConnection = listener.accept();
+            } catch (IOException err) {
+                err.printStackTrace();
+                System.err.println("[ERROR] " + err.getMessage());
+                continue;
+            }
 
-        configureListenerAndSelector();
+            curHandler %= handlers.length;
+            var handler = handlers[curHandler++];
+
+            connectionThreads.newThread(() -> handler.serveBlocking(newConnection)).start();
+        }
+    }
+
+    public void run() {
+
+        SocketAddress address;
 
         try {
-            System.out.println("[INFO] Server config complete, starting server on " + listener.getLocalAddress().toString());
+            if(serverMode == KVServerConfig.ServerMode.VIRTUAL_THREADS) {
+                listener.bind(new InetSocketAddress(bindAddress, port), acceptBacklog);
+                address = listener.getLocalAddress();
+            } else if(acceptMode == KVServerConfig.AcceptMode.REUSEPORT) {
+                address = bindPerListener();
+            } else {
+                configureListenerAndSelector();
+                address = listener.getLocalAddress();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        for(KVServerListener serverListener : handlers) {
-            Thread handlerThread = new Thread(serverListener);
-            handlerThread.start();
+        if(serverMode == KVServerConfig.ServerMode.VIRTUAL_THREADS)
+            System.out.println("[INFO] Server config complete, starting server on " + address + " with a virtual thread per connection");
+        else
+            System.out.println("[INFO] Server config complete, starting server on " + address + " with " + handlers.length + " listeners"
+                    + (acceptMode == KVServerConfig.AcceptMode.REUSEPORT ? ", each accepting on its own SO_REUSEPORT socket" : ""));
+
+        startReplication();
+
+        Thread[] handlerThreads = new Thread[handlers.length];
+        for(int i = 0; i < handlers.length; i++) {
+            handlerThreads[i] = new Thread(handlers[i], "kv-listener-" + i);
+            handlerThreads[i].start();
         }
 
+        //The listeners do all the accepting, there's nothing left for this thread to do
+        if(acceptMode == KVServerConfig.AcceptMode.REUSEPORT) {
+            for(var thread : handlerThreads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            return;
+        }
 
+        if(serverMode == KVServerConfig.ServerMode.VIRTUAL_THREADS) {
+            acceptOnVirtualThreads();
+            return;
+        }
 
         while(true) {
 
             try {
-                selector.select(timeout);
+                selector.select();
             } catch (IOException err) {
                 throw new RuntimeException(err);
             }
 
             Set<SelectionKey> selectedKeys = selector.selectedKeys();
 
-            if(selectedKeys.isEmpty()) {
-                System.out.println("[INFO] No connection attempts for last " + (timeout/1000) + " seconds");
-                continue;
-            }
-
             for(var key : selectedKeys) {
 
                 selectedKeys.remove(key);
 
                 if(key.isAcceptable()) {
                     try {
-                        SocketChannel newConnection = listener.accept();
-
-
-                        curHandler %= handlers.length;
-
-                        System.out.println("Sent connection to Thread-" + curHandler);
-
-                        handlers[curHandler++].addConnection(newConnection);
+                        //Drain the accept queue, so a burst of connects costs one select instead of one each
+                        SocketChannel newConnection;
+                        while((newConnection = listener.accept()) != null) {
+                            curHandler %= handlers.length;
 
+                            handlers[curHandler++].addConnection(newConnection);
+                        }
                     } catch (IOException err) {
                         err.printStackTrace();
                         System.err.println("[ERROR] " + err.getMessage());
@@ -0,0 +1,215 @@
+package org.shahryarkiani;
+
+public class KVServerConfig {
+
+    public enum ServerMode {
+        //Listener threads each multiplexing their share of the connections over a selector
+        SELECTOR,
+        //A virtual thread per connection doing plain blocking reads and writes, the listener threads only expire TTLs
+        VIRTUAL_THREADS
+    }
+
+    public enum AcceptMode {
+        //The server's own thread accepts every connection and deals them out to the listeners in turn
+        SINGLE,
+        //Every listener binds its own SO_REUSEPORT socket to the port and accepts for itself, the kernel
+        //spreads new connections over them, so a burst of connects doesn't queue behind one thread
+        REUSEPORT
+    }
+
+    /*
+    * Startup options for the server. Main keeps its positional arguments (port or address + port),
+    * everything else is read from -Dkv.* system properties so we don't need an argument parser
+    */
+
+    ServerMode serverMode = ServerMode.SELECTOR;
+
+    //Address the server listens on, 0.0.0.0 for every interface
+    String bindAddress = "127.0.0.1";
+
+    //Event loop threads, each with its own selector, worker and share of the connections
+    int listenerCount = Runtime.getRuntime().availableProcessors();
+
+    AcceptMode acceptMode = AcceptMode.SINGLE;
+
+    //Pending connections the kernel queues for each listening socket, it may cap this lower (somaxconn)
+    int acceptBacklog = 1024;
+
+    //Directory the write-ahead log and snapshots are kept in, null means nothing is persisted
+    String walDirectory = null;
+
+    WriteAheadLog.FsyncPolicy fsyncPolicy = WriteAheadLog.FsyncPolicy.BATCH;
+
+    //Only used by the INTERVAL fsync policy
+    long fsyncIntervalMillis = 10;
+
+    //How often kvStore gets snapshotted so the log can be truncated, 0 turns snapshots off
+    long snapshotIntervalMillis = 5 * 60 * 1000;
+
+    //Leader only, followers connect here for the snapshot and the stream of logged batches, 0 means no replication
+    //It streams the write-ahead log, so it needs walDirectory
+    int replicationPort = 0;
+
+    //How far a follower can fall behind before the leader drops it, it reconnects and starts over from a snapshot
+    long replicationMaxLagBytes = 256L * 1024 * 1024;
+
+    //host:port of a leader's replication port, makes this server a read-only follower of it
+    String replicaOf = null;
+
+    StorageEngine.Type engineType = StorageEngine.Type.SKIP_LIST;
+
+    //Only used by the HASH and OFF_HEAP engines, rounded up to a power of two
+    int hashShards = 256;
+
+    //LSM engine only, where its segment files go, null means an lsm directory inside walDirectory
+    String lsmDirectory = null;
+
+    //LSM engine only, the memtable is flushed to a segment once it holds about this much
+    long lsmMemtableBytes = 64L * 1024 * 1024;
+
+    //LSM engine only, compaction splits what it writes into segments of about this size, at most 1GB
+    long lsmSegmentMaxBytes = 256L * 1024 * 1024;
+
+    //LSM engine only, 10 bits per key gives about a 1% false positive rate
+    int lsmBloomBitsPerKey = 10;
+
+    //LSM engine only, how many runs of about the same size it takes before they're merged into one
+    int lsmCompactionRuns = 4;
+
+    //Byte budget for cache mode, 0 means the store grows without a limit and nothing is ever evicted
+    long cacheMaxBytes = 0;
+
+    //Only used in cache mode
+    CachingEngine.Policy cachePolicy = CachingEngine.Policy.TINY_LFU;
+
+    //Only used in cache mode, each segment gets an equal share of the budget, rounded up to a power of two
+    int cacheSegments = 64;
+
+    //Slots in each listener's cache of hot keys' values, rounded up to a power of two, 0 turns it off
+    int hotCacheEntries = 0;
+
+    //One in about this many single key requests is counted towards finding hot keys, 0 turns that off
+    //With the hot key cache on, a key is only cached once it's been counted a couple of times
+    int hotKeysSampleRate = 64;
+
+    //How many of the hottest keys each listener keeps track of for HOT_KEYS
+    int hotKeysTracked = 32;
+
+    KVServerListener.ExecutionMode executionMode = KVServerListener.ExecutionMode.INLINE;
+
+    KVServerListener.SelectMode selectMode = KVServerListener.SelectMode.BLOCK;
+
+    //Only used by the SPIN select mode
+    int spinIterations = 10_000;
+
+    //Most messages from one client that go into a single batch, bounds how many responses one read can produce
+    int maxBatchSize = 128;
+
+    //Reads from a client pause once it has this many bytes of responses waiting and resume at half of it
+    int outputHighWatermark = 1024 * 1024;
+
+    /*
+    * Values at least this big are sent from the store's own array with a gathering write instead of being copied
+    * into the output buffer, when the engine keeps values as byte[]. Anything over 65535 means always copy
+    */
+    int gatherMinBytes = 4 * 1024;
+
+    /*
+    * Values at least this big are stored compressed when that makes them smaller, 0 turns compression off
+    * They're compressed once as they're read, so the log, snapshots and followers get the smaller form too
+    */
+    int compressMinBytes = 0;
+
+    //A scan response stops taking entries once it's this big, the client continues from the cursor it gets back
+    int scanChunkBytes = 64 * 1024;
+
+    //Granularity of TTL expiry, a key is removed by its listener's timing wheel within about a tick of its deadline
+    long expiryTickMillis = 10;
+
+    //Most expired keys a listener removes in one loop iteration, so a burst of them can't stall its connections
+    int expiryBatchSize = 1000;
+
+    //Registers the server's metrics as an MBean, they're always available through STATS
+    boolean jmxEnabled = false;
+
+    //Free buffers the pool keeps around for each size
+    long bufferPoolRetainedBytes = 64L * 1024 * 1024;
+
+    public static KVServerConfig fromSystemProperties() {
+        var config = new KVServerConfig();
+
+        String server = System.getProperty("kv.server");
+        if(server != null)
+            config.serverMode = ServerMode.valueOf(server.toUpperCase());
+
+        config.bindAddress = System.getProperty("kv.bind.address", config.bindAddress);
+        config.listenerCount = Integer.getInteger("kv.listeners", config.listenerCount);
+
+        String accept = System.getProperty("kv.accept");
+        if(accept != null)
+            config.acceptMode = AcceptMode.valueOf(accept.toUpperCase());
+
+        config.acceptBacklog = Integer.getInteger("kv.accept.backlog", config.acceptBacklog);
+
+        config.walDirectory = System.getProperty("kv.wal.dir", config.walDirectory);
+
+        String policy = System.getProperty("kv.wal.fsync");
+        if(policy != null)
+            config.fsyncPolicy = WriteAheadLog.FsyncPolicy.valueOf(policy.toUpperCase());
+
+        config.fsyncIntervalMillis = Long.getLong("kv.wal.fsync.interval.ms", config.fsyncIntervalMillis);
+
+        config.snapshotIntervalMillis = Long.getLong("kv.snapshot.interval.ms", config.snapshotIntervalMillis);
+
+        config.replicationPort = Integer.getInteger("kv.replication.port", config.replicationPort);
+        config.replicationMaxLagBytes = Long.getLong("kv.replication.max.lag.bytes", config.replicationMaxLagBytes);
+        config.replicaOf = System.getProperty("kv.replica.of", config.replicaOf);
+
+        String engine = System.getProperty("kv.engine");
+        if(engine != null)
+            config.engineType = StorageEngine.Type.valueOf(engine.toUpperCase());
+
+        config.hashShards = Integer.getInteger("kv.engine.shards", config.hashShards);
+
+        config.lsmDirectory = System.getProperty("kv.lsm.dir", config.lsmDirectory);
+        config.lsmMemtableBytes = Long.getLong("kv.lsm.memtable.bytes", config.lsmMemtableBytes);
+        config.lsmSegmentMaxBytes = Long.getLong("kv.lsm.segment.max.bytes", config.lsmSegmentMaxBytes);
+        config.lsmBloomBitsPerKey = Integer.getInteger("kv.lsm.bloom.bits.per.key", config.lsmBloomBitsPerKey);
+        config.lsmCompactionRuns = Integer.getInteger("kv.lsm.compaction.runs", config.lsmCompactionRuns);
+
+        config.cacheMaxBytes = Long.getLong("kv.cache.max.bytes", config.cacheMaxBytes);
+
+        String cachePolicy = System.getProperty("kv.cache.policy");
+        if(cachePolicy != null)
+            config.cachePolicy = CachingEngine.Policy.valueOf(cachePolicy.toUpperCase());
+
+        config.cacheSegments = Integer.getInteger("kv.cache.segments", config.cacheSegments);
+
+        config.hotCacheEntries = Integer.getInteger("kv.hotcache.entries", config.hotCacheEntries);
+        config.hotKeysSampleRate = Integer.getInteger("kv.hotkeys.sample", config.hotKeysSampleRate);
+        config.hotKeysTracked = Integer.getInteger("kv.hotkeys.tracked", config.hotKeysTracked);
+
+        String execution = System.getProperty("kv.execution");
+        if(execution != null)
+            config.executionMode = KVServerListener.ExecutionMode.valueOf(execution.toUpperCase());
+
+        String select = System.getProperty("kv.select");
+        if(select != null)
+            config.selectMode = KVServerListener.SelectMode.valueOf(select.toUpperCase());
+
+        config.spinIterations = Integer.getInteger("kv.select.spin.iterations", config.spinIterations);
+
+        config.maxBatchSize = Integer.getInteger("kv.batch.max", config.maxBatchSize);
+        config.outputHighWatermark = Integer.getInteger("kv.output.high.watermark", config.outputHighWatermark);
+        config.gatherMinBytes = Integer.getInteger("kv.output.gather.min.bytes", config.gatherMinBytes);
+        config.compressMinBytes = Integer.getInteger("kv.compression.min.bytes", config.compressMinBytes);
+        config.scanChunkBytes = Integer.getInteger("kv.scan.chunk.bytes", config.scanChunkBytes);
+        config.expiryTickMillis = Long.getLong("kv.ttl.tick.ms", config.expiryTickMillis);
+        config.expiryBatchSize = Integer.getInteger("kv.ttl.expire.batch", config.expiryBatchSize);
+        config.jmxEnabled = Boolean.getBoolean("kv.metrics.jmx");
+        config.bufferPoolRetainedBytes = Long.getLong("kv.buffer.pool.retained", config.bufferPoolRetainedBytes);
+
+        return config;
+    }
+
+}
@@ -1,34 +1,165 @@
 package org.shahryarkiani;
 
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayDeque;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class KVServerListener implements Runnable{
 
+    public enum ExecutionMode {
+        //Batches run on the listener thread and their responses are written in the same loop iteration
+        INLINE,
+        //Every batch is handed to the listener's worker thread
+        WORKER,
+        /*
+        * Every listener owns one partition of the keys and is the only thread that runs requests for them,
+        * a batch with keys from other partitions is split up and each share is forwarded to its owner,
+        * the responses come back to this listener in order. Batches that are all ours run inline
+        */
+        PARTITIONED
+    }
+
+    public enum SelectMode {
+        //Block in select until there's I/O, a new connection or a finished batch, nothing runs while idle
+        BLOCK,
+        //Poll with selectNow for a while before blocking, trades a busy core for lower wakeup latency
+        SPIN
+    }
+
     /*
     * The main server can't register new sockets to the selector directly since it might block,
-    * so it submits new connections to this queue
+    * so it submits new connections to this queue. Each listener has its own, so a connection
+    * ends up on the listener the server picked for it
      */
-    private final ConcurrentLinkedQueue<SocketChannel> pendingConnections;
+    private final ConcurrentLinkedQueue<SocketChannel> pendingConnections = new ConcurrentLinkedQueue<>();
+
+    private final ExpiringEngine kvStore;
+
+    //TTLs this listener was sent, it does the active expiry for them between batches
+    private final TimingWheel expiryWheel;
 
-    private final ConcurrentSkipListMap<byte[], byte[]> kvStore;
+    //Most keys one loop iteration expires, the rest wait for the next one
+    private final int expiryBatchSize;
 
     private final Selector selector;
 
     private final ExecutorService worker;
 
-    public KVServerListener(ConcurrentSkipListMap<byte[], byte[]> store, ConcurrentLinkedQueue<SocketChannel> pendingConnections) {
-        this.pendingConnections = pendingConnections;
+    //Null when persistence is turned off
+    private final WriteAheadLog writeAheadLog;
+
+    private final ExecutionMode executionMode;
+
+    private final SelectMode selectMode;
+
+    //How many empty selectNow calls SPIN makes before it blocks
+    private final int spinIterations;
+
+    //The worker pushes finished batches here in the order it ran them, then wakes the selector
+    private final ConcurrentLinkedQueue<Result> completedBatches = new ConcurrentLinkedQueue<>();
+
+    /*
+    * Selector.wakeup is a syscall, so producers only make it when nobody else already has since the loop last
+    * looked at its queues. The loop clears this before draining, anything added after that wakes it again
+    */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    //Only used for INLINE batches, which are done with it before the next read
+    private final List<Task> inlineTasks = new ArrayList<>();
+
+    private final BufferPool bufferPool;
+
+    //Most messages taken from one client's input for a single batch
+    private final int maxBatchSize;
+
+    //Followers only serve reads, their store only changes through the leader's stream
+    private final boolean readOnly;
+
+    /*
+    * Once a client has this many response bytes waiting we stop reading from it,
+    * and only start again once its output is back under the low watermark
+    */
+    private final int outputHighWatermark;
+
+    private final int outputLowWatermark;
+
+    //Rough size a single scan response stops at
+    private final int scanChunkBytes;
+
+    private final int gatherMinBytes;
+
+    private final int compressMinBytes;
+
+    //Shared by every listener, only used to answer STATS
+    private final ServerMetrics serverMetrics;
+
+    //This listener's own counters
+    private final ServerMetrics.Listener metrics;
+
+    //Null with both the hot key cache and sampling turned off
+    private final HotKeys hotKeys;
+
+    //The cache engine when the server runs as a cache, told about hot key cache hits so it doesn't evict those keys
+    private final CachingEngine evictingCache;
+
+    //Which partition this listener owns in PARTITIONED mode
+    private final int index;
+
+    //The rest of these are only set in PARTITIONED mode, before the listener threads start
+    private PartitionedEngine partitions;
+
+    //Indexed by the partition each listener owns
+    private KVServerListener[] partitionOwners;
+
+    //Shares of other listeners' batches (and our own) waiting to run here, in the order they were queued
+    private final ConcurrentLinkedQueue<Forwarded> forwarded = new ConcurrentLinkedQueue<>();
+
+    //With a log, counts the shares that were logged but haven't run yet so a log roll can wait for them
+    private WriteAheadLog.Deferred deferred;
+
+    //Forwarded requests write their responses here to be copied out, only touched by this listener's thread
+    private ClientBuffer scratch;
+
+    //Other listeners' conditional writes for our keys when there's a log, see handOff
+    private final ConcurrentLinkedQueue<HandOff> handOffs = new ConcurrentLinkedQueue<>();
+
+    public KVServerListener(ExpiringEngine store, WriteAheadLog writeAheadLog, BufferPool bufferPool, KVServerConfig config, ServerMetrics serverMetrics, int index) {
+        this.serverMetrics = serverMetrics;
+        metrics = serverMetrics.listener(index);
+        this.index = index;
+        this.writeAheadLog = writeAheadLog;
+        this.bufferPool = bufferPool;
+        maxBatchSize = config.maxBatchSize;
+        readOnly = config.replicaOf != null;
+        outputHighWatermark = config.outputHighWatermark;
+        outputLowWatermark = config.outputHighWatermark / 2;
+        scanChunkBytes = config.scanChunkBytes;
+        gatherMinBytes = config.gatherMinBytes;
+        compressMinBytes = config.compressMinBytes;
+        executionMode = config.executionMode;
+        selectMode = config.selectMode;
+        spinIterations = config.spinIterations;
         kvStore = store;
+        expiryWheel = new TimingWheel(config.expiryTickMillis);
+        expiryBatchSize = config.expiryBatchSize;
+        hotKeys = config.hotCacheEntries > 0 || config.hotKeysSampleRate > 0
+                ? new HotKeys(versionsOf(store), config.hotCacheEntries, config.hotKeysSampleRate, config.hotKeysTracked, metrics)
+                : null;
+        metrics.hotKeys = hotKeys;
+        evictingCache = store.inner() instanceof CachingEngine cache ? cache : null;
         worker = Executors.newSingleThreadExecutor();
         try {
             selector = Selector.open();
@@ -38,35 +169,84 @@ public class KVServerListener implements Runnable{
         }
     }
 
+    //The versions the hot key cache checks against, null unless the server was set up with them
+    private static VersionedEngine versionsOf(ExpiringEngine store) {
+        var engine = store.inner();
+        if(engine instanceof CachingEngine cache)
+            engine = cache.inner();
+        return engine instanceof VersionedEngine versions ? versions : null;
+    }
+
+    /*
+    * Has this listener accept connections itself from its own SO_REUSEPORT socket, the kernel spreads
+    * new connections over every socket bound to the port. Only call this before the listener's thread starts
+    */
+    public void acceptFrom(ServerSocketChannel serverSocket) throws IOException {
+        serverSocket.configureBlocking(false);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    //PARTITIONED mode only, owners[i] has to be the listener that owns partition i
+    public void partitionAcross(KVServerListener[] owners, PartitionedEngine partitions) {
+        this.partitions = partitions;
+        partitionOwners = owners;
+        scratch = new ClientBuffer(bufferPool, metrics);
+        deferred = writeAheadLog != null ? writeAheadLog.deferred() : null;
+    }
+
     public void addConnection(SocketChannel newConn) {
         pendingConnections.add(newConn);
+        wakeup();
+    }
+
+    //For TTLs restored from disk or sent by a leader, new ones get scheduled when their PUT_TTL runs
+    public void scheduleExpiry(byte[] key, long expiresAt) {
+        expiryWheel.schedule(key, expiresAt);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if(wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    private void select() throws IOException {
+        if(selectMode == SelectMode.SPIN) {
+            for(int i = 0; i < spinIterations; i++) {
+                if(selector.selectNow() > 0 || !completedBatches.isEmpty() || !pendingConnections.isEmpty() || !forwarded.isEmpty() || !handOffs.isEmpty())
+                    return;
+                Thread.onSpinWait();
+            }
+        }
+
+        //The wheel needs a turn every tick while it has timers, the selector can't know about those
+        if(expiryWheel.isEmpty())
+            selector.select();
+        else
+            selector.select(expiryWheel.tickMillis());
     }
 
 
     @Override
     public void run() {
 
-        //These need to persist between while loops
-        Queue<Future<Result>> completableTasks = new ArrayDeque<>();
-
         while(true) {
 
+            wakeupPending.set(false);
+
             SocketChannel newConnection = pendingConnections.poll();
             while(newConnection != null) {
-                try {
-                    newConnection.configureBlocking(false);
-                    newConnection.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, new ClientBuffer());
-                } catch (IOException err) {
-                    System.err.println("[ERROR] " + err.getMessage());
-                }
-                System.out.println("[INFO] Client connection accepted on " + Thread.currentThread().getName());
+                register(newConnection);
                 newConnection = pendingConnections.poll();
             }
 
 
             try {
-                //No timeout, if there's nothing ready for I/O we go through with the rest of the loop
-                selector.select(1);
+                //No timeout, addConnection and the worker wake us up when they have something
+                if(completedBatches.isEmpty() && forwarded.isEmpty() && handOffs.isEmpty() && !expiryWheel.hasDue())
+                    select();
+                else
+                    selector.selectNow();
             } catch (IOException err) {
                 throw new RuntimeException(err);
             }
@@ -78,39 +258,41 @@ public class KVServerListener implements Runnable{
                 var key = iter.next();
                 iter.remove();
 
+                if(key.isAcceptable()) {
+                    acceptConnections((ServerSocketChannel) key.channel());
+                    continue;
+                }
 
                 if(key.isWritable()) {
                     var channel = (SocketChannel) key.channel();
 
                     var clientBuf = (ClientBuffer) key.attachment();
 
-                    ByteBuffer output = clientBuf.outputByteBuf;
-
-                    output.flip();
+                    boolean drained;
 
                     try {
-                        channel.write(output);
+                        drained = clientBuf.flush(channel);
                     } catch (IOException err) {
                         err.printStackTrace();
                         System.err.println("[ERROR] " + err.getMessage());
-                        key.cancel();
-                        try {
-                            channel.close();
-                        } catch (IOException err2) {
-                            err.printStackTrace();
-                            System.err.println("[ERROR] " + err2.getMessage());
-                        }
+                        closeConnection(key);
                         continue;
                     }
 
-                    if(output.remaining() == 0) {
-                        //We wrote everything out, we don't need to listen for readable
-                        key.interestOps(SelectionKey.OP_READ);
+                    if(drained) {
+                        //We wrote everything out, we don't need to listen for writable
+                        updateInterest(key, false);
                     }
 
-                    output.compact();
-
+                    //The client caught up on its responses, so we can go back to reading from it
+                    if(clientBuf.readPaused && clientBuf.pendingOutput() <= outputLowWatermark) {
+                        clientBuf.readPaused = false;
+                        updateInterest(key, !drained);
+                        processInput(key);
+                    }
 
+                    if(!key.isValid())
+                        continue;
 
                 }
 
@@ -129,121 +311,902 @@ public class KVServerListener implements Runnable{
                     } catch (IOException err) {
                         err.printStackTrace();
                         System.err.println("[ERROR] " + err.getMessage());
-                        try {
-                            channel.close();
-                        } catch (IOException e) {
-                            System.err.println("[ERROR] " + e.getMessage());
-                        }
-                        key.cancel();
+                        closeConnection(key);
                         continue;
                     }
 
+                    //Clients come and go all the time, so this is a counter and not a log line
                     if(readBytes == -1) {
-                        System.out.println("[INFO] Client disconnected");
-                        try {
-                            channel.close();
-                        } catch (IOException e) {
-                            System.err.println("[ERROR] " + e.getMessage());
-                        }
-                        key.cancel();
+                        closeConnection(key);
                         continue;
                     }
 
-                    List<Task> tasks = new ArrayList<>(5);
+                    metrics.bytesIn.add(readBytes);
+
+                    processInput(key);
+
+                }//Read operation
+            }
+
+
+
+            //Other listeners' requests for our keys, finishing them is what lets their batches complete
+            runForwarded();
+            runHandOffs();
+
+            //it's a single thread worker executor, so results show up in the order the batches were submitted
+            Result result;
+            while((result = completedBatches.poll()) != null) {
+
+                var key = result.key();
+                var clientBuf = (ClientBuffer)key.attachment();
+
+                clientBuf.pendingBatches--;
+                metrics.workerQueueDepth.decrement();
+
+                //The client went away while the batch was running, now nothing can write to its buffers anymore
+                if(!key.isValid()) {
+                    if(clientBuf.pendingBatches == 0)
+                        clientBuf.release();
+                    continue;
+                }
+
+                //The batch couldn't be logged, so we can't acknowledge any of it
+                if(result.responseBytes() < 0) {
+                    closeConnection(key);
+                    continue;
+                }
+
+                //The responses are already in the output buffer, now that the batch is done they're allowed to go out
+                clientBuf.markFlushable(result.responseBytes());
+
+                updateInterest(key, true);
+
+                //Messages past the batch limit may still be waiting in the input buffer
+                processInput(key);
+
+            }//handle completed tasks loop
+
+            //Capped per iteration, a lot of keys expiring together gets spread over several turns of the loop
+            if(!expiryWheel.isEmpty())
+                expiryWheel.advance(System.currentTimeMillis(), expiryBatchSize, kvStore::expire);
+
 
-                    //The socket might have multiple messages to read in it
-                    while(clientBuf.messageReady()) {
-                        var msgType = clientBuf.getMessageType();
-                        var msgPair = clientBuf.readMessage();
 
-                        tasks.add(new Task(msgType, msgPair[0], msgPair[1]));
+        }//While loop
+
+    }
+
+    /*
+    * VIRTUAL_THREADS mode, runs on the connection's own virtual thread instead of this listener's loop
+    * Reads whatever is there, runs every complete message as INLINE mode would and writes all the responses
+    * before reading again. It borrows this listener's metrics and expiry wheel, the listener thread itself
+    * never sees the connection
+    */
+    public void serveBlocking(SocketChannel channel) {
+        var clientBuf = new ClientBuffer(bufferPool, metrics, compressMinBytes);
+        List<Task> tasks = new ArrayList<>();
+
+        metrics.connectionsOpened.increment();
+
+        try (channel) {
+            while(true) {
+                int readBytes = channel.read(clientBuf.inputByteBuf);
+                if(readBytes == -1)
+                    return;
+
+                metrics.bytesIn.add(readBytes);
+
+                while(true) {
+                    tasks.clear();
+                    clientBuf.readMessages(tasks, maxBatchSize, writeAheadLog != null);
+                    checkWritable(tasks);
+
+                    if(tasks.isEmpty())
+                        break;
+
+                    metrics.batchSizes.record(tasks.size());
+                    clientBuf.markFlushable(runBatch(tasks, clientBuf));
+
+                    //The listener might be sleeping in select with no timers to wait for, so it has to look at the new ones
+                    for(Task t : tasks) {
+                        if(t.expiresAt() > 0) {
+                            wakeup();
+                            break;
+                        }
                     }
+                }
 
+                clientBuf.writeFully(channel);
+            }
+        } catch (ProtocolException err) {
+            metrics.protocolErrors.increment();
+            System.err.println("[ERROR] " + err.getMessage());
+        } catch (IOException err) {
+            System.err.println("[ERROR] " + err.getMessage());
+        } finally {
+            metrics.connectionsClosed.increment();
+            clientBuf.release();
+        }
+    }
 
-                    //We want to do all the tasks as one unit of work to ensure that when the future is complete
-                    //there won't be more writes to the clients buffer
-                    if(!tasks.isEmpty()) {
-                        var futureResult = worker.submit(() -> {
-                            byte[][] results = new byte[tasks.size()][];
-                            for(int i = 0; i < tasks.size(); i++) {
-                                Task t = tasks.get(i);
-                                switch (t.type()) {
-                                    case GET -> {
-                                        var result = kvStore.get(t.key());
-                                        results[i] = result;
-                                    }
-                                    case PUT -> {
-                                        kvStore.put(t.key(), t.value());
-                                        results[i] = t.value();
-                                    }
-                                    case DELETE -> {
-                                        var result = kvStore.remove(t.key());
-                                        results[i] = result;
-                                    }
-                                }
-
-                            }
-
-                            return new Result(key, results);
-                        });
-
-                        completableTasks.add(futureResult);
-
-                    } //tasks is empty
+    private void register(SocketChannel newConnection) {
+        try {
+            newConnection.configureBlocking(false);
+            newConnection.register(selector, SelectionKey.OP_READ, new ClientBuffer(bufferPool, metrics, compressMinBytes));
+            metrics.connectionsOpened.increment();
+        } catch (IOException err) {
+            System.err.println("[ERROR] " + err.getMessage());
+        }
+    }
 
-                }//Read operation
+    //Takes everything waiting in the accept queue, a storm of connections shouldn't need a trip through select each
+    private void acceptConnections(ServerSocketChannel serverSocket) {
+        try {
+            SocketChannel newConnection;
+            while((newConnection = serverSocket.accept()) != null)
+                register(newConnection);
+        } catch (IOException err) {
+            System.err.println("[ERROR] " + err.getMessage());
+        }
+    }
+
+    /*
+    * Turns the complete messages in the client's input buffer into batches until it runs out of them,
+    * a batch goes to the worker, or the client has too many responses it hasn't read yet
+    * Inline batches are flushed right away, so a deep pipeline keeps cycling through here without the selector
+    */
+    private void processInput(SelectionKey key) {
+        var clientBuf = (ClientBuffer) key.attachment();
+        List<Task> tasks = inlineTasks;
+
+        while(key.isValid()) {
+
+            //Partitioned batches can finish in any order, so a client only ever has one out at a time
+            if(executionMode == ExecutionMode.PARTITIONED && clientBuf.pendingBatches > 0)
+                return;
+
+            if(clientBuf.pendingOutput() > outputHighWatermark) {
+                clientBuf.readPaused = true;
+                updateInterest(key, true);
+                return;
+            }
+
+            tasks.clear();
+
+            //The socket might have multiple messages to read in it
+            try {
+                //With a log conditional writes are applied before they're logged, see WriteAheadLog.append
+                clientBuf.readMessages(tasks, maxBatchSize, writeAheadLog != null);
+                checkWritable(tasks);
+            } catch (ProtocolException err) {
+                metrics.protocolErrors.increment();
+                System.err.println("[ERROR] " + err.getMessage());
+                closeConnection(key);
+                return;
             }
 
+            if(tasks.isEmpty())
+                return;
 
+            metrics.batchSizes.record(tasks.size());
 
-            while(!completableTasks.isEmpty()) {
+            if(canRunInline(clientBuf, tasks)) {
+                int responseBytes;
 
-                var curTask = completableTasks.peek();
+                try {
+                    responseBytes = runBatch(tasks, clientBuf);
+                } catch (IOException err) {
+                    err.printStackTrace();
+                    System.err.println("[ERROR] " + err.getMessage());
+                    closeConnection(key);
+                    return;
+                }
 
-                //it's a single thread worker executor, so the tasks are guaranteed to execute sequentially
-                //a queue is FIFO, so if a task isn't done, the stuff submitted after won't be either
-                if(!curTask.isDone())
-                    break;
+                clientBuf.markFlushable(responseBytes);
+                flushNow(key);
+                continue;
+            }
 
-                //the task we peeked is done, so we remove it
-                completableTasks.poll();
+            if(executionMode == ExecutionMode.PARTITIONED) {
+                if(handsOffConditionals() && tasks.get(0).type().isConditional()) {
+                    handOff(key, clientBuf, new ArrayList<>(tasks));
+                } else if(!dispatch(key, clientBuf, new ArrayList<>(tasks))) {
+                    closeConnection(key);
+                    return;
+                }
 
-                Result result;
+                clientBuf.pendingBatches++;
+                metrics.workerQueueDepth.increment();
+
+                //Nothing more gets read until it's back, updateInterest turns reads back on when it is
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+
+            //The worker keeps the list after this read, so it gets its own copy
+            List<Task> batch = new ArrayList<>(tasks);
+
+            //We want to do all the tasks as one unit of work to ensure that when the result comes back
+            //there won't be more writes to the clients buffer
+            clientBuf.pendingBatches++;
+            metrics.workerQueueDepth.increment();
+
+            worker.execute(() -> {
+                int responseBytes;
 
                 try {
-                    result = curTask.get();
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                    System.out.println("[ERROR] " + e.getMessage());
+                    responseBytes = runBatch(batch, clientBuf);
+                } catch (IOException err) {
+                    err.printStackTrace();
+                    System.err.println("[ERROR] " + err.getMessage());
+                    responseBytes = -1;
+                }
+
+                completedBatches.add(new Result(key, responseBytes));
+                wakeup();
+            });
+
+            //Anything left over waits for this batch to come back
+            return;
+        }
+    }
+
+    //The protocol has no error response, so a write sent to a follower is treated like any other bad request
+    private void checkWritable(List<Task> tasks) throws ProtocolException {
+        if(!readOnly)
+            return;
+
+        for(Task t : tasks) {
+            if(t.type().isMutation())
+                throw new ProtocolException(t.type() + " sent to a read-only follower");
+        }
+    }
+
+    /*
+    * A batch only runs on the listener thread when nothing from the same client is still on the worker,
+    * otherwise its responses could land in the output buffer ahead of the earlier batch's
+    * Batches that have to wait for an fsync still go to the worker so one slow disk doesn't stall every connection
+    */
+    private boolean canRunInline(ClientBuffer clientBuf, List<Task> tasks) {
+        if(executionMode == ExecutionMode.WORKER || clientBuf.pendingBatches > 0)
+            return false;
+
+        if(executionMode == ExecutionMode.PARTITIONED && !ownsAll(tasks))
+            return false;
+
+        return writeAheadLog == null || !writeAheadLog.needsSync(tasks);
+    }
+
+    private int runBatch(List<Task> tasks, ClientBuffer clientBuf) throws IOException {
+        long start = System.nanoTime();
+
+        if(writeAheadLog == null) {
+            int responseBytes = executeTasks(tasks, clientBuf);
+            metrics.batchTimes.record(System.nanoTime() - start);
+            return responseBytes;
+        }
+
+        int[] responseBytes = new int[1];
+
+        //The whole batch is one log write, and batches from every listener waiting on the disk share one fsync
+        //Anything forwarded to us was logged before this batch, so it has to hit the store first too
+        long logPosition = writeAheadLog.append(tasks, () -> {
+            runForwarded();
+            responseBytes[0] = executeTasks(tasks, clientBuf);
+        });
+        writeAheadLog.sync(logPosition);
+
+        metrics.batchTimes.record(System.nanoTime() - start);
+        return responseBytes[0];
+    }
+
+    //Whether every key in tasks is in our partition, scans and stats can run anywhere
+    private boolean ownsAll(List<Task> tasks) {
+        for(Task t : tasks) {
+            if(t.type().isMultiKey()) {
+                for(Task part : t.parts()) {
+                    if(partitions.partitionOf(part.key()) != index)
+                        return false;
+                }
+            } else if(t.key() != null && t.type() != KVMessage.MessageType.SCAN && partitions.partitionOf(t.key()) != index) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * Splits a batch that isn't all ours into units, one per key, and queues each owner's share with it
+    * With a log the batch is logged first and the shares are queued while still holding the log lock,
+    * so every partition applies its keys in the same order the log has them
+    * Batches that need an fsync wait for it on our worker, a listener thread never blocks on the disk
+    * Returns false if the batch couldn't be logged
+    */
+    private boolean dispatch(SelectionKey key, ClientBuffer clientBuf, List<Task> tasks) {
+        for(Task t : tasks)
+            metrics.operation(t.type());
+
+        boolean needsSync = writeAheadLog != null && writeAheadLog.needsSync(tasks);
+        var batch = new PartitionedBatch(key, clientBuf, tasks, needsSync);
+
+        try {
+            if(writeAheadLog == null) {
+                batch.send();
+            } else {
+                long logPosition = writeAheadLog.append(tasks, batch::send);
+
+                if(needsSync) {
+                    worker.execute(() -> {
+                        try {
+                            writeAheadLog.sync(logPosition);
+                        } catch (IOException err) {
+                            System.err.println("[ERROR] " + err.getMessage());
+                            batch.failed = true;
+                        }
+                        batch.partDone();
+                    });
+                }
+            }
+        } catch (IOException err) {
+            err.printStackTrace();
+            System.err.println("[ERROR] " + err.getMessage());
+            return false;
+        }
+
+        //Sending holds one count itself, so the batch can't finish before every share is queued
+        batch.partDone();
+        return true;
+    }
+
+    /*
+    * A dispatched batch is logged before its shares run, which a conditional write can't be since the log records
+    * what it did. With a log they're read one per batch and handed to the owner of their key, which runs and logs it
+    * in one step like any inline batch of its own, then hands the response back
+    */
+    private boolean handsOffConditionals() {
+        return executionMode == ExecutionMode.PARTITIONED && writeAheadLog != null;
+    }
+
+    private void handOff(SelectionKey key, ClientBuffer clientBuf, List<Task> tasks) {
+        var owner = partitionOwners[partitions.partitionOf(tasks.get(0).key())];
+        owner.handOffs.add(new HandOff(this, key, clientBuf, tasks));
+        owner.wakeup();
+    }
+
+    //Only from the loop, never inside an append since this appends itself
+    private void runHandOffs() {
+        HandOff handOff;
+        while((handOff = handOffs.poll()) != null)
+            runHandOff(handOff);
+    }
+
+    private void runHandOff(HandOff handOff) {
+        var origin = handOff.origin();
+        var key = handOff.key();
+        var tasks = handOff.tasks();
+        long start = System.nanoTime();
+        int[] responseBytes = new int[1];
+        long logPosition;
+
+        try {
+            logPosition = writeAheadLog.append(tasks, () -> {
+                runForwarded();
+                responseBytes[0] = executeTasks(tasks, handOff.clientBuf());
+            });
+        } catch (IOException err) {
+            err.printStackTrace();
+            System.err.println("[ERROR] " + err.getMessage());
+            origin.complete(key, -1);
+            return;
+        }
+
+        metrics.batchTimes.record(System.nanoTime() - start);
+
+        if(!writeAheadLog.needsSync(tasks)) {
+            origin.complete(key, responseBytes[0]);
+            return;
+        }
+
+        //Same as a dispatched batch, the fsync is waited on by our worker and not this thread
+        worker.execute(() -> {
+            try {
+                writeAheadLog.sync(logPosition);
+                origin.complete(key, responseBytes[0]);
+            } catch (IOException err) {
+                System.err.println("[ERROR] " + err.getMessage());
+                origin.complete(key, -1);
+            }
+        });
+    }
+
+    private void complete(SelectionKey key, int responseBytes) {
+        completedBatches.add(new Result(key, responseBytes));
+        wakeup();
+    }
+
+    private void forward(Forwarded share) {
+        queue(share);
+        wakeup();
+    }
+
+    //With a log, a share of a batch that has writes is queued under the append lock once it's logged, one that only reads isn't
+    private void queue(Forwarded share) {
+        if(deferred != null)
+            deferred.queued();
+        forwarded.add(share);
+    }
+
+    //Runs every share queued for our partition, listener thread only
+    private void runForwarded() {
+        Forwarded share;
+        while((share = forwarded.poll()) != null) {
+            var batch = share.batch();
+
+            for(int unit : share.units())
+                batch.responses[unit] = runUnit(batch.units.get(unit), batch.quiet[unit], batch.clientBuf.storedValues);
+
+            if(deferred != null)
+                deferred.applied();
+
+            batch.partDone();
+        }
+    }
+
+    //storedValues is the client's, the response is written the way it asked for
+    private byte[] runUnit(Task unit, boolean quiet, boolean storedValues) {
+        //MSET entries don't get a response of their own
+        if(quiet) {
+            kvStore.put(unit.key(), unit.value());
+            return NO_RESPONSE;
+        }
+
+        synchronized (scratch) {
+            scratch.storedValues = storedValues;
+            executeTask(unit, scratch, false);
+            return scratch.takeOutput();
+        }
+    }
+
+    //Writes what it can right away and only asks the selector for OP_WRITE if the socket didn't take everything
+    private void flushNow(SelectionKey key) {
+        var clientBuf = (ClientBuffer) key.attachment();
+
+        try {
+            updateInterest(key, !clientBuf.flush((SocketChannel) key.channel()));
+        } catch (IOException err) {
+            err.printStackTrace();
+            System.err.println("[ERROR] " + err.getMessage());
+            closeConnection(key);
+        }
+    }
+
+    //OP_READ unless reads are paused for backpressure, plus OP_WRITE when there's output the socket hasn't taken
+    private void updateInterest(SelectionKey key, boolean wantWrite) {
+        var clientBuf = (ClientBuffer) key.attachment();
+
+        int ops = clientBuf.readPaused ? 0 : SelectionKey.OP_READ;
+        if(wantWrite)
+            ops |= SelectionKey.OP_WRITE;
+
+        key.interestOps(ops);
+    }
+
+    private void closeConnection(SelectionKey key) {
+        var clientBuf = (ClientBuffer) key.attachment();
+
+        if(key.isValid()) {
+            metrics.connectionsClosed.increment();
+
+            //If the worker still has a batch for this client the buffers get released when it comes back
+            if(clientBuf.pendingBatches == 0)
+                clientBuf.release();
+        }
+
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.err.println("[ERROR] " + e.getMessage());
+        }
+    }
+
+    /*
+    * Runs the batch and writes each response straight into the client's output buffer, returning how many bytes it wrote
+    * GET values are copied by the engine itself, so an off heap engine never has to turn them into a byte[]
+    * Big values from an engine that shares its arrays aren't copied at all, see writeValue
+    */
+    private int executeTasks(List<Task> tasks, ClientBuffer clientBuf) {
+        synchronized (clientBuf) {
+            int start = clientBuf.pendingOutput();
+
+            for(Task t : tasks) {
+                metrics.operation(t.type());
+
+                if(!t.type().isMultiKey()) {
+                    executeTask(t, clientBuf, true);
                     continue;
                 }
 
-                var key = result.key();
-                byte[][] responseBytesList = result.result();
+                //Same trick as a GET, the body length goes in front once every key's response is in
+                int lengthPosition = clientBuf.reserveOutput(4).position();
+                clientBuf.outputByteBuf.position(lengthPosition + 4);
+
+                for(Task part : t.parts()) {
+                    if(t.type() == KVMessage.MessageType.MSET)
+                        kvStore.put(part.key(), part.value());
+                    else
+                        executeTask(part, clientBuf, false);
+                }
+
+                clientBuf.outputByteBuf.putInt(lengthPosition, clientBuf.outputByteBuf.position() - lengthPosition - 4);
+            }
+
+            return clientBuf.pendingOutput() - start;
+        }
+    }
+
+    /*
+    * Writes one chunk of a scan straight from the engine's iterator into the output buffer
+    * The chunk ends at the limit or once it passes scanChunkBytes, so a huge scan neither holds up the loop
+    * nor piles up in memory, the client gets a cursor back and asks for the next chunk when it wants it
+    */
+    private void executeScan(Task t, ClientBuffer clientBuf) {
+        //Body length, status and entry count all go in front once we know them
+        int headerPosition = clientBuf.reserveOutput(9).position();
+        clientBuf.outputByteBuf.position(headerPosition + 9);
+
+        byte status = KVMessage.SCAN_DONE;
+        byte[] cursor = new byte[0];
+        int count = 0;
+
+        if(!kvStore.isOrdered()) {
+            status = KVMessage.SCAN_UNSUPPORTED;
+        } else {
+            int limit = t.limit() > 0 ? t.limit() : Integer.MAX_VALUE;
+            var entries = kvStore.range(t.key(), t.value());
+
+            while(entries.hasNext()) {
+                var entry = entries.next();
+                byte[] key = entry.getKey();
+                byte[] value = servedValue(clientBuf, entry.getValue());
+
+                if(count == limit || (count > 0 && clientBuf.outputByteBuf.position() - headerPosition >= scanChunkBytes)) {
+                    status = KVMessage.SCAN_MORE;
+                    cursor = key;
+                    break;
+                }
+
+                KVMessage.writeMessage(clientBuf.reserveOutput(4 + key.length + value.length), key, value);
+                count++;
+            }
+        }
+
+        var out = clientBuf.reserveOutput(2 + cursor.length);
+        out.putShort((short) cursor.length);
+        out.put(cursor);
+
+        out.putInt(headerPosition, out.position() - headerPosition - 4);
+        out.put(headerPosition + 4, status);
+        out.putInt(headerPosition + 5, count);
+    }
+
+    private static final byte[] NO_RESPONSE = new byte[0];
+
+    /*
+    * A batch split across partitions. Each key is a unit with its own response slot, the owners fill in their units
+    * and whichever thread finishes the last share writes every response into the client's buffer in order,
+    * then hands the batch back to the listener it came from the same way the worker does
+    */
+    private final class PartitionedBatch {
+
+        final SelectionKey key;
 
-                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        final ClientBuffer clientBuf;
 
-                ByteBuffer outputBuffer = ((ClientBuffer)key.attachment()).outputByteBuf;
+        final List<Task> tasks;
 
-                for(var responseByte : responseBytesList) {
-                    if(responseByte == null) {
-                        outputBuffer.putShort((short) -1);
+        //Multi-key tasks are split into their parts, everything else is a unit as is
+        final List<Task> units = new ArrayList<>();
+
+        final boolean[] quiet;
+
+        final byte[][] responses;
+
+        //Units for each partition, null for partitions that have none
+        private final int[][] shares;
+
+        //One per share, one for the fsync if there is one, and one held by dispatch until everything's been sent
+        private final AtomicInteger remaining = new AtomicInteger(1);
+
+        private final long start = System.nanoTime();
+
+        volatile boolean failed = false;
+
+        PartitionedBatch(SelectionKey key, ClientBuffer clientBuf, List<Task> tasks, boolean waitsForSync) {
+            this.key = key;
+            this.clientBuf = clientBuf;
+            this.tasks = tasks;
+
+            List<Boolean> quietUnits = new ArrayList<>();
+            for(Task t : tasks) {
+                if(t.type().isMultiKey()) {
+                    units.addAll(t.parts());
+                    for(int i = 0; i < t.parts().size(); i++)
+                        quietUnits.add(t.type() == KVMessage.MessageType.MSET);
+                } else {
+                    units.add(t);
+                    quietUnits.add(false);
+                }
+            }
+
+            quiet = new boolean[units.size()];
+            responses = new byte[units.size()][];
+
+            int[] owners = new int[units.size()];
+            int[] counts = new int[partitionOwners.length];
+
+            for(int i = 0; i < owners.length; i++) {
+                quiet[i] = quietUnits.get(i);
+
+                Task unit = units.get(i);
+                owners[i] = unit.key() == null || unit.type() == KVMessage.MessageType.SCAN ? index : partitions.partitionOf(unit.key());
+                counts[owners[i]]++;
+            }
+
+            shares = new int[partitionOwners.length][];
+            for(int p = 0; p < shares.length; p++) {
+                if(counts[p] > 0) {
+                    shares[p] = new int[counts[p]];
+                    remaining.incrementAndGet();
+                }
+                counts[p] = 0;
+            }
+
+            for(int i = 0; i < owners.length; i++)
+                shares[owners[i]][counts[owners[i]]++] = i;
+
+            if(waitsForSync)
+                remaining.incrementAndGet();
+        }
+
+        //Queues every other partition's share, then runs ours behind whatever was already queued for us
+        void send() {
+            for(int p = 0; p < shares.length; p++) {
+                if(shares[p] != null && p != index)
+                    partitionOwners[p].forward(new Forwarded(this, shares[p]));
+            }
+
+            if(shares[index] != null) {
+                queue(new Forwarded(this, shares[index]));
+                runForwarded();
+            }
+        }
+
+        void partDone() {
+            if(remaining.decrementAndGet() == 0)
+                finish();
+        }
+
+        private void finish() {
+            int responseBytes = failed ? -1 : writeResponses();
+            metrics.batchTimes.record(System.nanoTime() - start);
+
+            completedBatches.add(new Result(key, responseBytes));
+            wakeup();
+        }
+
+        //Same layout executeTasks writes, multi-key responses get their length in front
+        private int writeResponses() {
+            synchronized (clientBuf) {
+                int begin = clientBuf.outputByteBuf.position();
+                int unit = 0;
+
+                for(Task t : tasks) {
+                    if(!t.type().isMultiKey()) {
+                        clientBuf.reserveOutput(responses[unit].length).put(responses[unit]);
+                        unit++;
                         continue;
                     }
-                    outputBuffer.putShort((short)(responseByte.length & 0xFFFF));
-                    outputBuffer.put(responseByte);
+
+                    int bodyLength = 0;
+                    for(int i = 0; i < t.parts().size(); i++)
+                        bodyLength += responses[unit + i].length;
+
+                    var out = clientBuf.reserveOutput(4 + bodyLength).putInt(bodyLength);
+                    for(int i = 0; i < t.parts().size(); i++)
+                        out.put(responses[unit++]);
                 }
 
-            }//handle completed tasks loop
+                return clientBuf.outputByteBuf.position() - begin;
+            }
+        }
+    }
 
+    //Part of a partitioned batch for the listener that owns those units
+    private record Forwarded(PartitionedBatch batch, int[] units) {}
 
+    //A conditional write another listener read, its response goes to clientBuf and origin gets the result
+    private record HandOff(KVServerListener origin, SelectionKey key, ClientBuffer clientBuf, List<Task> tasks) {}
 
-        }//While loop
+    /*
+    * Runs a single key task and writes its response, caller holds the client buffer's lock
+    * gather lets big values go out without a copy, that can't happen where a length in front still has to be
+    * patched over the response or where the response is taken back out of the buffer
+    */
+    private void executeTask(Task t, ClientBuffer clientBuf, boolean gather) {
+        if(hotKeys != null && t.key() != null && t.type() != KVMessage.MessageType.SCAN)
+            hotKeys.sample(t.key());
+
+        switch (t.type()) {
+            case GET -> {
+                if(hotKeys != null && hotKeys.caching() && getThroughCache(t.key(), clientBuf, gather))
+                    return;
+
+                if(gather && kvStore.sharesValues()) {
+                    writeValue(clientBuf, servedValue(clientBuf, kvStore.get(t.key())), true);
+                    return;
+                }
+
+                //The length goes in front of the value, but we only know it once the value is copied
+                int lengthPosition = clientBuf.reserveOutput(2).position();
+                clientBuf.outputByteBuf.position(lengthPosition + 2);
+
+                int valueLength = kvStore.copyValue(t.key(), clientBuf.outputReserver);
+
+                //A compressed value the client can't read gets taken back out and decoded
+                if(!clientBuf.storedValues && ValueCodec.isEncoded(clientBuf.outputByteBuf, lengthPosition + 2, valueLength)) {
+                    byte[] stored = new byte[valueLength];
+                    clientBuf.outputByteBuf.get(lengthPosition + 2, stored);
+                    clientBuf.outputByteBuf.position(lengthPosition);
+                    writeValue(clientBuf, servedValue(clientBuf, stored), false);
+                    return;
+                }
+
+                clientBuf.outputByteBuf.putShort(lengthPosition, (short) (valueLength & 0xFFFF));
+            }
+            case PUT -> {
+                kvStore.put(t.key(), t.value());
+                writeValue(clientBuf, servedValue(clientBuf, t.value()), gather);
+            }
+            case DELETE -> writeValue(clientBuf, servedValue(clientBuf, kvStore.remove(t.key())), gather);
+            case PUT_TTL -> {
+                kvStore.putWithExpiry(t.key(), t.value(), t.expiresAt());
+                expiryWheel.schedule(t.key(), t.expiresAt());
+                clientBuf.reserveOutput(4).putInt(0);
+            }
+            case CAS, PUT_IF_ABSENT, INCR -> executeConditional(t, clientBuf);
+            case SCAN -> executeScan(t, clientBuf);
+            case HELLO -> clientBuf.reserveOutput(8).putInt(4).putInt(clientBuf.storedValues ? KVMessage.FEATURE_STORED_VALUES : 0);
+            case STATS -> {
+                byte[] stats = serverMetrics.render().getBytes(StandardCharsets.US_ASCII);
+                clientBuf.reserveOutput(4 + stats.length).putInt(stats.length).put(stats);
+            }
+            case HOT_KEYS -> writeHotKeys(clientBuf);
+            case MGET, MSET, MDEL -> throw new IllegalArgumentException(t.type() + " has to be split into its keys");
+            case PREFIX -> throw new IllegalArgumentException("PREFIX is turned into a SCAN when it's read");
+            case DECR -> throw new IllegalArgumentException("DECR is turned into an INCR when it's read");
+        }
+    }
+
+    /*
+    * A GET for a key the hot key cache has or wants, false if it's neither and the GET should go to the store as usual
+    * Keys with a TTL are left out, the store stops returning them at their deadline but nothing is written until the
+    * expiry removes them, so the cache wouldn't know
+    */
+    private boolean getThroughCache(byte[] key, ClientBuffer clientBuf, boolean gather) {
+        int hash = ShardedHashEngine.hash(key);
+        byte[] stored = hotKeys.get(key, hash);
+
+        if(stored != null && evictingCache != null)
+            evictingCache.touch(key, hash);
+
+        if(stored == null) {
+            if(!hotKeys.admits(hash))
+                return false;
+
+            long version = hotKeys.version(hash);
+            stored = kvStore.get(key);
+            if(stored != null && kvStore.deadlineOf(key) == 0)
+                hotKeys.put(key, hash, version, stored);
+        }
 
+        writeValue(clientBuf, servedValue(clientBuf, stored), gather);
+        return true;
     }
-}
 
+    //Every listener's hottest keys in one list, hottest first across all of them
+    private void writeHotKeys(ClientBuffer clientBuf) {
+        record Listed(int listener, HotKeys.SampledKey sampled) {}
+
+        var hotKeys = serverMetrics.hotKeys();
+        List<Listed> listed = new ArrayList<>();
+        for(int i = 0; i < hotKeys.size(); i++) {
+            for(var sampled : hotKeys.get(i))
+                listed.add(new Listed(i, sampled));
+        }
+
+        listed.sort(Comparator.comparingLong((Listed l) -> l.sampled().requests()).reversed());
+
+        int bodyLength = 4;
+        for(var l : listed)
+            bodyLength += 2 + 8 + 2 + l.sampled().key().length;
+
+        var out = clientBuf.reserveOutput(4 + bodyLength).putInt(bodyLength).putInt(listed.size());
+        for(var l : listed) {
+            byte[] key = l.sampled().key();
+            out.putShort((short) l.listener()).putLong(l.sampled().requests()).putShort((short) (key.length & 0xFFFF)).put(key);
+        }
+    }
+
+    /*
+    * The check and the write are one atomic update in the engine, which hands the function whatever is there
+    * and keeps what it returns. Returning the same array back means nothing was written
+    */
+    private void executeConditional(Task t, ClientBuffer clientBuf) {
+        var conditional = t.conditional();
+        byte[][] previous = new byte[1][];
+
+        byte[] result = kvStore.update(t.key(), current -> {
+            previous[0] = current;
+            return switch (t.type()) {
+                case CAS -> Arrays.equals(ValueCodec.decode(current), conditional.expected) ? t.value() : current;
+                case PUT_IF_ABSENT -> current == null ? t.value() : current;
+                default -> increment(current, conditional.delta);
+            };
+        }, t.expiresAt());
+
+        conditional.applied = result != previous[0];
+        conditional.written = result;
+        conditional.expiresAt = conditional.applied ? kvStore.deadlineOf(t.key()) : 0;
+
+        if(conditional.applied && t.expiresAt() > 0)
+            expiryWheel.schedule(t.key(), t.expiresAt());
+
+        byte status = (byte) (conditional.applied ? 1 : 0);
+
+        if(t.type() == KVMessage.MessageType.INCR) {
+            long value = conditional.applied ? Long.parseLong(new String(result, StandardCharsets.US_ASCII)) : 0;
+            clientBuf.reserveOutput(4 + 9).putInt(9).put(status).putLong(value);
+            return;
+        }
+
+        byte[] served = servedValue(clientBuf, previous[0]);
+        int bodyLength = 1 + 2 + (served == null ? 0 : served.length);
+        KVMessage.writeResponse(clientBuf.reserveOutput(4 + bodyLength).putInt(bodyLength).put(status), served);
+    }
+
+    //Counters are stored as ascii decimal so a plain GET reads them, current comes back as it is if it isn't one or the sum overflows
+    private static byte[] increment(byte[] current, long delta) {
+        try {
+            long value = current == null ? 0 : Long.parseLong(new String(current, StandardCharsets.US_ASCII));
+            return Long.toString(Math.addExact(value, delta)).getBytes(StandardCharsets.US_ASCII);
+        } catch (NumberFormatException | ArithmeticException e) {
+            return current;
+        }
+    }
+
+    //What the client gets for a stored value, as is if it asked for stored values and decoded otherwise
+    private byte[] servedValue(ClientBuffer clientBuf, byte[] stored) {
+        if(clientBuf.storedValues || !ValueCodec.isEncoded(stored))
+            return stored;
+
+        if(ValueCodec.isCompressed(stored))
+            metrics.valuesDecompressed.increment();
+        return ValueCodec.decode(stored);
+    }
+
+    //A value response, the length and then the value, which is queued as it is instead of copied when gather allows and it's big enough
+    private void writeValue(ClientBuffer clientBuf, byte[] value, boolean gather) {
+        if(gather && value != null && value.length >= gatherMinBytes) {
+            clientBuf.reserveOutput(2).putShort((short) value.length);
+            clientBuf.appendValue(value);
+            return;
+        }
+
+        KVMessage.writeResponse(clientBuf.reserveOutput(2 + (value == null ? 0 : value.length)), value);
+    }
+}
 
-record Task(KVMessage.MessageType type, byte[] key, byte[] value) {}
 
-record Result(SelectionKey key, byte[][] result) {}
\ No newline at end of file
+record Result(SelectionKey key, int responseBytes) {}
\ No newline at end of file
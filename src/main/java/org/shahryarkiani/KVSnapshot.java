@@ -0,0 +1,334 @@
+package org.shahryarkiani;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+public class KVSnapshot {
+
+    /*
+    * Snapshot format:
+    * | 4 Bytes | 4 Bytes | 8 Bytes     | ...     | 4 Bytes |
+    * | Magic   | Flags   | Entry Count | Records | CRC32C  |
+    *
+    * Records use the KVMessage framing | Key Len | Value Len | Key | Value |, so a snapshot is just
+    * a long run of PUT messages. The checksum covers everything before it
+    *
+    * The SORTED flag is set when the records are in key order, which is the case for ordered engines,
+    * an ordered engine can only bulk load a snapshot that has it
+    *
+    * With the EXPIRIES flag the records are followed by the deadline of every key with a TTL, up to the checksum:
+    * | 8 Bytes Expires At | 2 Bytes Key Len | Key |
+    * Keys whose deadline has passed by the time the snapshot is loaded are dropped
+    * The deadlines are read before the records, a key that expires halfway through would otherwise
+    * have its value in the snapshot but not its deadline, and come back on load without a TTL
+    *
+    * A snapshot named snapshot-N.snap holds every mutation from log segments before N,
+    * restoring means loading it and replaying segments N and later on top
+    *
+    * The PERSISTED flag means the engine already had its entries on disk in files of its own when the snapshot
+    * was taken, so there are no records, only the deadlines and the log position in the name
+    */
+    private static final int MAGIC = 0x4B565331;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int SORTED = 1;
+
+    private static final int EXPIRIES = 2;
+
+    private static final int PERSISTED = 4;
+
+    private static final int TRAILER_SIZE = 4;
+
+    private static final String PREFIX = "snapshot-";
+
+    private static final String SUFFIX = ".snap";
+
+    //Big files get mapped a window at a time, a single MappedByteBuffer can't go past 2GB
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+    /*
+    * Writes entries to a temporary file and renames it into place once it's on disk,
+    * so a crash halfway through never leaves a snapshot that looks complete
+    * withEntries false leaves the records out, for an engine that just persisted them itself
+    */
+    public static Path write(Path directory, long segment, StorageEngine engine, boolean withEntries) throws IOException {
+        Path target = directory.resolve(fileName(segment));
+        Path temp = directory.resolve(fileName(segment) + ".tmp");
+
+        var buf = ByteBuffer.allocateDirect(1024 * 1024);
+        var crc = new CRC32C();
+        long count = 0;
+
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int flags = engine.isOrdered() ? SORTED : 0;
+            if(engine instanceof ExpiringEngine)
+                flags |= EXPIRIES;
+            if(!withEntries)
+                flags |= PERSISTED;
+
+            List<Map.Entry<byte[], Long>> expiries = new ArrayList<>();
+            if(engine instanceof ExpiringEngine expiring)
+                expiring.expiries().forEach(expiries::add);
+
+            buf.putInt(MAGIC);
+            buf.putInt(flags);
+            buf.putLong(0);
+
+            for(var entry : withEntries ? engine.entries() : List.<Map.Entry<byte[], byte[]>>of()) {
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+
+                if(buf.remaining() < 4 + key.length + value.length)
+                    flush(channel, buf, crc);
+
+                KVMessage.writeMessage(buf, key, value);
+                count++;
+            }
+
+            for(var entry : expiries) {
+                byte[] key = entry.getKey();
+
+                if(buf.remaining() < 10 + key.length)
+                    flush(channel, buf, crc);
+
+                buf.putLong(entry.getValue());
+                buf.putShort((short) key.length);
+                buf.put(key);
+            }
+
+            flush(channel, buf, crc);
+
+            //The count is only known at the end, so it gets patched into the header and added to the checksum last
+            var header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(flags).putLong(count).flip();
+            writeFully(channel, header, 0);
+
+            var trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            header.rewind();
+            crc.update(header);
+            trailer.putInt((int) crc.getValue()).flip();
+            writeFully(channel, trailer, channel.size());
+
+            channel.force(true);
+        }
+
+        return Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+    * Memory maps the snapshot and streams the records into the engine's bulk load,
+    * the only per entry work is reading two lengths and copying the key and value out
+    */
+    public static void load(Path file, StorageEngine engine) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if(size < HEADER_SIZE + TRAILER_SIZE)
+                throw new IOException("Snapshot " + file + " is truncated");
+
+            var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if(header.getInt() != MAGIC)
+                throw new IOException("Snapshot " + file + " has a bad magic number");
+            int flags = header.getInt();
+            long count = header.getLong();
+
+            verifyChecksum(channel, size);
+
+            //Loading just the deadlines into an engine that doesn't have the files would quietly lose every key
+            if((flags & PERSISTED) != 0 && !engine.persist())
+                throw new IOException("Snapshot " + file + " only has the deadlines, its entries are in the segment files of kv.engine=lsm");
+
+            var records = new SnapshotIterator(channel, size - TRAILER_SIZE, count);
+            if((flags & PERSISTED) == 0)
+                engine.bulkLoad(count, records, (flags & SORTED) != 0);
+
+            if((flags & EXPIRIES) != 0 && engine instanceof ExpiringEngine expiring)
+                loadExpiries(channel, records.position(), size - TRAILER_SIZE, expiring);
+        }
+    }
+
+    //Reads the deadlines between from and dataEnd in pieces, there's one for every key with a TTL
+    private static void loadExpiries(FileChannel channel, long from, long dataEnd, ExpiringEngine engine) throws IOException {
+        var buf = ByteBuffer.allocate(1024 * 1024);
+        long position = from;
+
+        while(position < dataEnd || buf.position() > 0) {
+            buf.limit((int) Math.min(buf.capacity(), buf.position() + dataEnd - position));
+            while(buf.hasRemaining())
+                position += channel.read(buf, position);
+            buf.flip();
+
+            while(buf.remaining() >= 10 && buf.remaining() >= 10 + (0xFFFF & buf.getShort(buf.position() + 8))) {
+                long expiresAt = buf.getLong();
+                byte[] key = new byte[0xFFFF & buf.getShort()];
+                buf.get(key);
+                engine.restoreExpiry(key, expiresAt);
+            }
+
+            if(buf.hasRemaining() && position == dataEnd)
+                throw new IOException("Snapshot has a truncated expiry record");
+
+            buf.compact();
+        }
+    }
+
+    //Newest complete snapshot in the directory, or null if there isn't one
+    public static Path latest(Path directory) throws IOException {
+        Path latest = null;
+        long latestSegment = -1;
+
+        try (var files = Files.list(directory)) {
+            for(var file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+
+                if(name.startsWith(PREFIX) && name.endsWith(SUFFIX + ".tmp")) {
+                    //Left behind by a crash while writing, it was never renamed so nothing depends on it
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+
+                if(name.startsWith(PREFIX) && name.endsWith(SUFFIX) && segmentOf(file) > latestSegment) {
+                    latest = file;
+                    latestSegment = segmentOf(file);
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    public static void deleteOlderThan(Path directory, long segment) throws IOException {
+        try (var files = Files.list(directory)) {
+            for(var file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if(name.startsWith(PREFIX) && name.endsWith(SUFFIX) && segmentOf(file) < segment)
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public static long segmentOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static String fileName(long segment) {
+        return PREFIX + String.format("%016d", segment) + SUFFIX;
+    }
+
+    private static void verifyChecksum(FileChannel channel, long size) throws IOException {
+        var crc = new CRC32C();
+        long dataEnd = size - TRAILER_SIZE;
+
+        //The header is checksummed last when writing, so the records go first here too
+        for(long position = HEADER_SIZE; position < dataEnd; position += MAP_WINDOW) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, dataEnd - position)));
+        }
+        crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE));
+
+        int expected = channel.map(FileChannel.MapMode.READ_ONLY, dataEnd, TRAILER_SIZE).getInt();
+        if((int) crc.getValue() != expected)
+            throw new IOException("Snapshot checksum mismatch");
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf, CRC32C crc) throws IOException {
+        buf.flip();
+
+        //The header space at the very start is filled in later, so it stays out of the running checksum
+        if(channel.position() == 0) {
+            buf.position(HEADER_SIZE);
+            crc.update(buf);
+            buf.position(0);
+        } else {
+            crc.update(buf);
+            buf.rewind();
+        }
+
+        while(buf.hasRemaining())
+            channel.write(buf);
+
+        buf.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining())
+            position += channel.write(src, position);
+    }
+
+    private static class SnapshotIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+        private final FileChannel channel;
+
+        private final long dataEnd;
+
+        private final long count;
+
+        private long windowStart = HEADER_SIZE;
+
+        private MappedByteBuffer window;
+
+        private long read = 0;
+
+        SnapshotIterator(FileChannel channel, long dataEnd, long count) {
+            this.channel = channel;
+            this.dataEnd = dataEnd;
+            this.count = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return read < count;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            try {
+                if(window == null || window.remaining() < 4)
+                    remap();
+
+                int keyLength = 0xFFFF & window.getShort(window.position());
+                int valueLength = 0xFFFF & window.getShort(window.position() + 2);
+
+                //The record runs past the end of this window, start the next window at the record
+                if(window.remaining() < 4 + keyLength + valueLength)
+                    remap();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            var record = KVMessage.decodeMessage(window);
+            read++;
+
+            return new AbstractMap.SimpleImmutableEntry<>(record[0], record[1]);
+        }
+
+        //File offset just past the last record read, once every record is read that's where the expiries start
+        long position() {
+            return window == null ? HEADER_SIZE : windowStart + window.position();
+        }
+
+        private void remap() throws IOException {
+            if(window != null)
+                windowStart += window.position();
+
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW, dataEnd - windowStart));
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.shahryarkiani;
+
+import java.util.Random;
+
+/*
+* Picks which key the load generator hits next, as an index in [0, keyCount)
+* Implementations are shared by every connection, so next has to be safe to call from several threads
+*/
+public interface KeyDistribution {
+
+    enum Type {
+        //Every key equally likely
+        UNIFORM,
+        //A few keys get most of the traffic, with the skew set by the theta parameter, the way YCSB does it
+        ZIPFIAN,
+        //A fixed fraction of the keys gets a fixed fraction of the traffic, the rest is uniform
+        HOTSET
+    }
+
+    int next(Random random);
+
+    static KeyDistribution create(LoadGeneratorConfig config) {
+        return switch (config.distribution) {
+            case UNIFORM -> random -> random.nextInt(config.keyCount);
+            case ZIPFIAN -> new Zipfian(config.keyCount, config.zipfTheta);
+            case HOTSET -> new HotSet(config.keyCount, config.hotSetFraction, config.hotSetProbability);
+        };
+    }
+
+    /*
+    * Gray et al's "Quickly generating billion-record synthetic databases" generator, same as YCSB's ZipfianGenerator
+    * Index 0 is the hottest key. zeta takes one pass over keyCount up front, after that every pick is constant time
+    */
+    final class Zipfian implements KeyDistribution {
+
+        private final int keyCount;
+
+        private final double theta;
+
+        private final double alpha;
+
+        private final double zetaN;
+
+        private final double eta;
+
+        Zipfian(int keyCount, double theta) {
+            this.keyCount = keyCount;
+            this.theta = theta;
+
+            double zeta2 = zeta(2, theta);
+            zetaN = zeta(keyCount, theta);
+            alpha = 1.0 / (1.0 - theta);
+            eta = (1 - Math.pow(2.0 / keyCount, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        @Override
+        public int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+
+            if(uz < 1.0)
+                return 0;
+
+            if(uz < 1.0 + Math.pow(0.5, theta))
+                return 1;
+
+            return (int) Math.min(keyCount - 1, (long) (keyCount * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for(long i = 1; i <= n; i++)
+                sum += 1 / Math.pow(i, theta);
+            return sum;
+        }
+    }
+
+    //The hot keys are the first hotSetFraction of the key space
+    final class HotSet implements KeyDistribution {
+
+        private final int keyCount;
+
+        private final int hotKeys;
+
+        private final double hotProbability;
+
+        HotSet(int keyCount, double hotSetFraction, double hotProbability) {
+            this.keyCount = keyCount;
+            this.hotKeys = Math.max(1, Math.min(keyCount, (int) (keyCount * hotSetFraction)));
+            this.hotProbability = hotProbability;
+        }
+
+        @Override
+        public int next(Random random) {
+            if(hotKeys == keyCount || random.nextDouble() < hotProbability)
+                return random.nextInt(hotKeys);
+
+            return hotKeys + random.nextInt(keyCount - hotKeys);
+        }
+    }
+
+}
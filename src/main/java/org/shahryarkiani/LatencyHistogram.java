@@ -0,0 +1,94 @@
+package org.shahryarkiani;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+    /*
+    * Same idea as HdrHistogram's log-linear buckets: values under 128 get a bucket each, past that every
+    * power of two range is split into 64 buckets, so any recorded value is off by less than 1/64 (~1.6%)
+    * That's a fixed ~2300 counters for anything up to MAX_VALUE, no matter how many values get recorded
+    *
+    * Counts are atomic so completions can be recorded from whichever thread finishes the request
+    */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    //Anything above this is counted as this, about 18 minutes in nanoseconds
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexFor(MAX_VALUE) + 1);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+
+        counts.incrementAndGet(indexFor(value));
+        totalCount.incrementAndGet();
+        maxValue.accumulateAndGet(value, Math::max);
+    }
+
+    //Adds other's counts to this one, other shouldn't be recorded to while this runs
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if(count != 0)
+                counts.addAndGet(i, count);
+        }
+
+        totalCount.addAndGet(other.totalCount.get());
+        maxValue.accumulateAndGet(other.maxValue.get(), Math::max);
+    }
+
+    public long count() {
+        return totalCount.get();
+    }
+
+    public long max() {
+        return maxValue.get();
+    }
+
+    //Highest value in the bucket that the percentile falls in, like HdrHistogram reports it, 0 if nothing was recorded
+    public long valueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if(total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= target)
+                return Math.min(highestInBucket(i), maxValue.get());
+        }
+
+        return maxValue.get();
+    }
+
+    private static int indexFor(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+
+        //Keep the top 7 bits of the value, the shift says which power of two range it's in
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) ((value >>> shift) - HALF_SUB_BUCKETS);
+    }
+
+    private static long highestInBucket(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long mantissa = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+}
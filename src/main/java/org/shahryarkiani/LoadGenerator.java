@@ -0,0 +1,198 @@
+package org.shahryarkiani;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator implements Runnable {
+
+    /*
+    * Drives a server with connections x pipelineDepth requests in flight and reports latency per operation
+    *
+    * With a target rate it runs open-loop: every request has a time it was supposed to be sent, on a fixed schedule,
+    * and its latency counts from then, not from when it actually went out. If the server stalls, the requests that
+    * pile up behind the full pipeline get charged for the wait, instead of the generator quietly slowing down and
+    * hiding it (coordinated omission). Without a target rate it runs closed-loop, as fast as the pipeline allows
+    */
+    private enum Operation {
+        GET, PUT, DELETE
+    }
+
+    private final String address;
+
+    private final int port;
+
+    private final LoadGeneratorConfig config;
+
+    private final KeyDistribution keys;
+
+    private final String value;
+
+    //One per operation, recorded from every connection's completions
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+
+    private final AtomicLong errors = new AtomicLong();
+
+    public LoadGenerator(String address, int port, LoadGeneratorConfig config) {
+        this.address = address;
+        this.port = port;
+        this.config = config;
+        keys = KeyDistribution.create(config);
+        value = "v".repeat(config.valueSize);
+
+        for(int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    @Override
+    public void run() {
+        if(config.preload)
+            preload();
+
+        System.out.println("[INFO] Running " + config.connections + " connections x " + config.pipelineDepth + " deep, "
+                + (config.targetRate > 0 ? config.targetRate + " requests/s" : "closed-loop") + ", "
+                + config.distribution + " over " + config.keyCount + " keys for " + config.durationSeconds + "s");
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+
+        Thread[] senders = new Thread[config.connections];
+        for(int i = 0; i < senders.length; i++) {
+            senders[i] = new Thread(() -> drive(start, measureStart, end), "kv-load-" + i);
+            senders[i].start();
+        }
+
+        for(var sender : senders) {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        report(TimeUnit.NANOSECONDS.toSeconds(end - measureStart));
+    }
+
+    private void preload() {
+        var client = new KVClient(address, port);
+        Map<String, String> batch = new HashMap<>();
+
+        for(int i = 0; i < config.keyCount; i++) {
+            batch.put(key(i), value);
+            if(batch.size() == 1000) {
+                client.multiPut(batch);
+                batch.clear();
+            }
+        }
+
+        if(!batch.isEmpty())
+            client.multiPut(batch);
+
+        client.close();
+        System.out.println("[INFO] Preloaded " + config.keyCount + " keys");
+    }
+
+    //One connection's sender, completions are recorded by the client's reader thread
+    private void drive(long start, long measureStart, long end) {
+        var client = new KVClient(address, port);
+        var inFlight = new Semaphore(config.pipelineDepth);
+        var random = ThreadLocalRandom.current();
+
+        //Each connection takes an equal share of the target rate
+        long interval = config.targetRate > 0 ? TimeUnit.SECONDS.toNanos(config.connections) / config.targetRate : 0;
+        long intended = start;
+
+        while(true) {
+            long now = System.nanoTime();
+
+            if(interval > 0) {
+                intended += interval;
+                //Running behind means sending right away, the schedule doesn't move back to make up for it
+                while((now = System.nanoTime()) < intended)
+                    LockSupport.parkNanos(intended - now);
+            } else {
+                intended = now;
+            }
+
+            if(intended >= end)
+                break;
+
+            inFlight.acquireUninterruptibly();
+
+            var op = pickOperation(random);
+            String key = key(keys.next(random));
+            long sendTime = interval > 0 ? intended : System.nanoTime();
+            boolean measured = sendTime >= measureStart;
+
+            CompletableFuture<String> response = switch (op) {
+                case GET -> client.getAsync(key);
+                case PUT -> client.putAsync(key, value);
+                case DELETE -> client.deleteAsync(key);
+            };
+
+            response.whenComplete((result, err) -> {
+                if(err != null)
+                    errors.incrementAndGet();
+                else if(measured)
+                    histograms[op.ordinal()].record(System.nanoTime() - sendTime);
+
+                inFlight.release();
+            });
+        }
+
+        //Let whatever is still in flight finish before hanging up
+        inFlight.acquireUninterruptibly(config.pipelineDepth);
+        client.close();
+    }
+
+    private Operation pickOperation(ThreadLocalRandom random) {
+        double roll = random.nextDouble();
+
+        if(roll < config.readRatio)
+            return Operation.GET;
+        if(roll < config.readRatio + config.deleteRatio)
+            return Operation.DELETE;
+        return Operation.PUT;
+    }
+
+    private static String key(int index) {
+        return "key:" + index;
+    }
+
+    private void report(long seconds) {
+        var all = new LatencyHistogram();
+
+        System.out.printf("%-8s %12s %12s %10s %10s %10s %10s%n", "op", "count", "req/s", "p50 us", "p99 us", "p999 us", "max us");
+
+        for(var op : Operation.values()) {
+            var histogram = histograms[op.ordinal()];
+            all.add(histogram);
+            if(histogram.count() > 0)
+                printRow(op.name(), histogram, seconds);
+        }
+
+        printRow("ALL", all, seconds);
+
+        if(errors.get() > 0)
+            System.err.println("[ERROR] " + errors.get() + " requests failed");
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, long seconds) {
+        System.out.printf("%-8s %12d %12d %10.1f %10.1f %10.1f %10.1f%n",
+                name,
+                histogram.count(),
+                histogram.count() / Math.max(1, seconds),
+                histogram.valueAtPercentile(50) / 1000.0,
+                histogram.valueAtPercentile(99) / 1000.0,
+                histogram.valueAtPercentile(99.9) / 1000.0,
+                histogram.max() / 1000.0);
+    }
+
+}
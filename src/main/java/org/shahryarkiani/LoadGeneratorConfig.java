@@ -0,0 +1,70 @@
+package org.shahryarkiani;
+
+public class LoadGeneratorConfig {
+
+    /*
+    * Options for Main's load mode, read from -Dkv.load.* system properties the same way KVServerConfig is
+    */
+
+    int connections = 4;
+
+    //Most requests each connection has in flight at once
+    int pipelineDepth = 16;
+
+    //Requests per second across every connection, 0 runs closed-loop as fast as the pipeline allows
+    long targetRate = 0;
+
+    long durationSeconds = 30;
+
+    //Results from the first part of the run are thrown away while the JIT and the server warm up
+    long warmupSeconds = 5;
+
+    int keyCount = 1_000_000;
+
+    KeyDistribution.Type distribution = KeyDistribution.Type.UNIFORM;
+
+    //Only used by ZIPFIAN, YCSB's default skew
+    double zipfTheta = 0.99;
+
+    //Only used by HOTSET
+    double hotSetFraction = 0.01;
+
+    double hotSetProbability = 0.9;
+
+    int valueSize = 100;
+
+    //The rest of the requests are PUTs
+    double readRatio = 0.9;
+
+    double deleteRatio = 0.0;
+
+    //Writes every key once before the run so GETs don't just measure misses
+    boolean preload = true;
+
+    public static LoadGeneratorConfig fromSystemProperties() {
+        var config = new LoadGeneratorConfig();
+
+        config.connections = Integer.getInteger("kv.load.connections", config.connections);
+        config.pipelineDepth = Integer.getInteger("kv.load.depth", config.pipelineDepth);
+        config.targetRate = Long.getLong("kv.load.rate", config.targetRate);
+        config.durationSeconds = Long.getLong("kv.load.duration.s", config.durationSeconds);
+        config.warmupSeconds = Long.getLong("kv.load.warmup.s", config.warmupSeconds);
+        config.keyCount = Integer.getInteger("kv.load.keys", config.keyCount);
+
+        String distribution = System.getProperty("kv.load.distribution");
+        if(distribution != null)
+            config.distribution = KeyDistribution.Type.valueOf(distribution.toUpperCase());
+
+        config.zipfTheta = Double.parseDouble(System.getProperty("kv.load.zipf.theta", String.valueOf(config.zipfTheta)));
+        config.hotSetFraction = Double.parseDouble(System.getProperty("kv.load.hotset.fraction", String.valueOf(config.hotSetFraction)));
+        config.hotSetProbability = Double.parseDouble(System.getProperty("kv.load.hotset.probability", String.valueOf(config.hotSetProbability)));
+
+        config.valueSize = Integer.getInteger("kv.load.value.size", config.valueSize);
+        config.readRatio = Double.parseDouble(System.getProperty("kv.load.read.ratio", String.valueOf(config.readRatio)));
+        config.deleteRatio = Double.parseDouble(System.getProperty("kv.load.delete.ratio", String.valueOf(config.deleteRatio)));
+        config.preload = Boolean.parseBoolean(System.getProperty("kv.load.preload", String.valueOf(config.preload)));
+
+        return config;
+    }
+
+}
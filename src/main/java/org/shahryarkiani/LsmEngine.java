@@ -0,0 +1,891 @@
+package org.shahryarkiani;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+public class LsmEngine implements StorageEngine {
+
+    /*
+    * A skip list in memory in front of sorted segment files on disk, for stores bigger than the heap
+    *
+    * Writes go to the memtable, a ConcurrentSkipListMap in the same key order as SkipListEngine. Once it passes
+    * memtableBytes it's swapped for an empty one and the flush thread writes it out as a SegmentFile, which is easy
+    * since it's already sorted. Deletes leave a tombstone instead of removing anything, an older segment might
+    * still have the key. Reads go newest to oldest: the memtable, memtables still being flushed, then the segments
+    *
+    * Segments are grouped into runs, everything one flush or one compaction wrote. A run's segments never overlap,
+    * so a lookup checks at most one per run, and a miss there is almost always answered by its Bloom filter
+    * without touching the file. The compaction thread merges stretches of runs of about the same size into one,
+    * which keeps the number of runs logarithmic in the size of the store and drops overwritten values.
+    * Tombstones only go once the merge includes the oldest run, there's nothing left for them to hide after that
+    *
+    * Segment files are named segment-<oldest generation>-<newest generation>-<part>-<parts>.seg, a flush gets the
+    * next generation and a compaction covers the generations of the runs it merged. Files are written as .tmp
+    * and renamed once every part is on disk, so after a crash a run is either all there or not at all,
+    * and a run whose generations are covered by another is a compaction input that never got deleted
+    *
+    * With the write-ahead log on, segments survive restarts. persist flushes the memtable so a snapshot only has
+    * to record the log position and the TTLs, and replaying the log from there puts back what the memtable had.
+    * Without it there's nothing to make them consistent with, so they're cleared on startup
+    */
+    private static final long ENTRY_OVERHEAD = 64;
+
+    //Runs merge once there are enough within this factor of each other in size
+    private static final int SIZE_RATIO = 4;
+
+    //Writers wait for the flush thread once the memtable is this many times over its limit
+    private static final int STALL_FACTOR = 2;
+
+    private static final String PREFIX = "segment-";
+
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+
+    private final long memtableBytes;
+
+    private final long segmentMaxBytes;
+
+    private final int bloomBitsPerKey;
+
+    private final int compactionRuns;
+
+    //Every write holds the read lock, swapping the memtable takes the write lock so no write lands in one being flushed
+    private final ReentrantReadWriteLock switchLock = new ReentrantReadWriteLock();
+
+    //Replaced as a whole under this object's monitor, readers just take whatever is current
+    private volatile State state;
+
+    //Only touched by the flush thread once the constructor is done
+    private long nextGeneration;
+
+    private final ExecutorService flusher;
+
+    private final ExecutorService compactor;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    private final LongAdder flushes = new LongAdder();
+
+    private final LongAdder compactions = new LongAdder();
+
+    private final LongAdder bloomNegatives = new LongAdder();
+
+    private final LongAdder bloomFalsePositives = new LongAdder();
+
+    private final LongAdder segmentHits = new LongAdder();
+
+    public LsmEngine(Path directory, boolean keepSegments, long memtableBytes, long segmentMaxBytes, int bloomBitsPerKey, int compactionRuns) {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        //Offsets in a segment are ints, and a single mapping can't go past 2GB
+        this.segmentMaxBytes = Math.min(segmentMaxBytes, 1L << 30);
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.compactionRuns = Math.max(2, compactionRuns);
+
+        List<Run> runs;
+        try {
+            Files.createDirectories(directory);
+            runs = keepSegments ? openRuns() : deleteSegments();
+        } catch (IOException e) {
+            System.err.println("[ERROR] Unable to open segments in " + directory);
+            throw new RuntimeException(e);
+        }
+
+        nextGeneration = runs.isEmpty() ? 0 : runs.getFirst().maxGeneration() + 1;
+        state = new State(new Memtable(), List.of(), runs, runs.isEmpty() ? 0 : runs.getFirst().liveKeys());
+
+        flusher = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-flush"));
+        compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "lsm-compaction"));
+
+        if(!runs.isEmpty())
+            System.out.println("[INFO] Opened " + runs.size() + " runs of segments from " + directory);
+
+        scheduleCompaction();
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        var current = state;
+
+        byte[] value = current.active().entries.get(key);
+        if(value == null)
+            value = findBelow(current, key);
+
+        return value == SegmentFile.TOMBSTONE ? null : value;
+    }
+
+    //Segment values go straight from the mapping into the response
+    @Override
+    public int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        var current = state;
+
+        byte[] value = current.active().entries.get(key);
+        for(int i = 0; value == null && i < current.flushing().size(); i++)
+            value = current.flushing().get(i).entries.get(key);
+
+        if(value == null) {
+            long hash = SegmentFile.hash(key);
+            for(var run : current.runs()) {
+                var segment = run.segmentFor(key);
+                int record = segment == null ? -1 : find(segment, key, hash);
+                if(record >= 0)
+                    return segment.copyValue(record, reserve);
+            }
+            return -1;
+        }
+
+        if(value == SegmentFile.TOMBSTONE)
+            return -1;
+
+        reserve.apply(value.length).put(value);
+        return value.length;
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return true;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        awaitFlush();
+
+        Memtable active;
+        switchLock.readLock().lock();
+        try {
+            active = state.active();
+            byte[] previous = active.entries.put(key, value);
+
+            //Only the write that first puts the key in this memtable has to look below it, what's there can't change under the read lock
+            if(previous == null)
+                previous = findBelow(state, key);
+            if(previous == null || previous == SegmentFile.TOMBSTONE)
+                active.liveKeys.increment();
+        } finally {
+            switchLock.readLock().unlock();
+        }
+
+        wrote(active, key.length + value.length);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        byte[][] removed = new byte[1][];
+        update(key, current -> {
+            removed[0] = current;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /*
+    * The current value may only be on disk, so it's looked up inside compute on the memtable entry,
+    * which is what makes this atomic with other writes to the key
+    */
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        awaitFlush();
+
+        byte[][] result = new byte[1][];
+        boolean[] written = new boolean[1];
+        int[] added = new int[1];
+        Memtable active;
+
+        switchLock.readLock().lock();
+        try {
+            active = state.active();
+            active.entries.compute(key, (k, current) -> {
+                byte[] visible = current != null ? current : findBelow(state, key);
+                if(visible == SegmentFile.TOMBSTONE)
+                    visible = null;
+
+                byte[] updated = update.apply(visible);
+                result[0] = updated;
+                written[0] = updated != visible;
+                added[0] = (updated != null ? 1 : 0) - (visible != null ? 1 : 0);
+
+                if(updated == visible)
+                    return current;
+                return updated == null ? SegmentFile.TOMBSTONE : updated;
+            });
+
+            //Set by the last try of compute, the one that took. Counted before the memtable can be swapped out for a flush
+            if(added[0] != 0)
+                active.liveKeys.add(added[0]);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+
+        if(written[0])
+            wrote(active, key.length + (result[0] == null ? 0 : result[0].length));
+
+        return result[0];
+    }
+
+    //The runs' count from when they were written, plus what each memtable's writes changed since
+    @Override
+    public long size() {
+        var current = state;
+
+        long size = current.liveKeys() + current.active().liveKeys.sum();
+        for(var memtable : current.flushing())
+            size += memtable.liveKeys.sum();
+
+        return size;
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    //Merges every memtable and run, the newest entry for a key wins and tombstones are skipped
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        var current = state;
+
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        sources.add(current.active().range(from, to));
+        for(var memtable : current.flushing())
+            sources.add(memtable.range(from, to));
+        for(var run : current.runs())
+            sources.add(run.range(from, to));
+
+        return merge(sources, false);
+    }
+
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return () -> range(new byte[0], null);
+    }
+
+    //A snapshot with entries holds the whole store, anything left in the directory from an earlier run is older than it
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        List<Run> stale;
+        synchronized (this) {
+            stale = state.runs();
+            state = new State(state.active(), state.flushing(), List.of(), 0);
+        }
+
+        try {
+            deleteRuns(stale);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        while(entries.hasNext()) {
+            var entry = entries.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /*
+    * Writes out everything in memory and waits until it's on disk, the segments then hold every write
+    * that finished before this was called
+    */
+    @Override
+    public boolean persist() throws IOException {
+        var flushed = flusher.submit(() -> {
+            flush(true);
+            return null;
+        });
+
+        try {
+            flushed.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the memtable to flush", e);
+        }
+
+        scheduleCompaction();
+        return true;
+    }
+
+    public long activeMemtableBytes() {
+        return state.active().bytes.sum();
+    }
+
+    public int flushingMemtables() {
+        return state.flushing().size();
+    }
+
+    public int runCount() {
+        return state.runs().size();
+    }
+
+    public int segmentCount() {
+        int count = 0;
+        for(var run : state.runs())
+            count += run.segments().size();
+        return count;
+    }
+
+    public long segmentBytes() {
+        long bytes = 0;
+        for(var run : state.runs())
+            bytes += run.sizeBytes();
+        return bytes;
+    }
+
+    public long flushes() {
+        return flushes.sum();
+    }
+
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    //Segment lookups the Bloom filter answered without reading a block
+    public long bloomNegatives() {
+        return bloomNegatives.sum();
+    }
+
+    //Segment lookups that read a block and didn't find the key there
+    public long bloomFalsePositives() {
+        return bloomFalsePositives.sum();
+    }
+
+    public long segmentHits() {
+        return segmentHits.sum();
+    }
+
+    //Everything older than the active memtable, newest first, a tombstone comes back as SegmentFile.TOMBSTONE
+    private byte[] findBelow(State current, byte[] key) {
+        for(var memtable : current.flushing()) {
+            byte[] value = memtable.entries.get(key);
+            if(value != null)
+                return value;
+        }
+
+        long hash = SegmentFile.hash(key);
+        for(var run : current.runs()) {
+            var segment = run.segmentFor(key);
+            int record = segment == null ? -1 : find(segment, key, hash);
+            if(record >= 0)
+                return segment.value(record);
+        }
+
+        return null;
+    }
+
+    private int find(SegmentFile segment, byte[] key, long hash) {
+        if(!segment.mightContain(hash)) {
+            bloomNegatives.increment();
+            return -1;
+        }
+
+        int record = segment.find(key);
+        if(record < 0)
+            bloomFalsePositives.increment();
+        else
+            segmentHits.increment();
+
+        return record;
+    }
+
+    private void wrote(Memtable memtable, long bytes) {
+        memtable.bytes.add(bytes + ENTRY_OVERHEAD);
+
+        if(memtable.bytes.sum() >= memtableBytes)
+            scheduleFlush();
+    }
+
+    //Holds writers back while the flush thread is a whole memtable behind, so memory stays bounded
+    private void awaitFlush() {
+        if(state.active().bytes.sum() < memtableBytes * STALL_FACTOR)
+            return;
+
+        synchronized (this) {
+            while(state.active().bytes.sum() >= memtableBytes * STALL_FACTOR) {
+                scheduleFlush();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        if(flushScheduled.compareAndSet(false, true))
+            flusher.execute(this::flushInBackground);
+    }
+
+    private void scheduleCompaction() {
+        if(compactionScheduled.compareAndSet(false, true))
+            compactor.execute(this::compactInBackground);
+    }
+
+    private void flushInBackground() {
+        flushScheduled.set(false);
+        try {
+            flush(false);
+        } catch (IOException | RuntimeException err) {
+            err.printStackTrace();
+            System.err.println("[ERROR] Memtable flush to " + directory + " failed, it stays in memory until the next one | " + err.getMessage());
+        }
+        scheduleCompaction();
+    }
+
+    /*
+    * Flush thread only. Swaps the memtable out if it's full, or if force and it has anything in it,
+    * then writes out every memtable waiting, oldest first so runs stay in order
+    * A memtable whose write failed stays in the list, and goes out with the next flush
+    */
+    private void flush(boolean force) throws IOException {
+        var active = state.active();
+        long bytes = active.bytes.sum();
+
+        if(bytes >= memtableBytes || (force && bytes > 0)) {
+            switchLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    List<Memtable> flushing = new ArrayList<>(state.flushing().size() + 1);
+                    flushing.add(active);
+                    flushing.addAll(state.flushing());
+                    state = new State(new Memtable(), List.copyOf(flushing), state.runs(), state.liveKeys());
+                    notifyAll();
+                }
+            } finally {
+                switchLock.writeLock().unlock();
+            }
+        }
+
+        while(!state.flushing().isEmpty()) {
+            var memtable = state.flushing().getLast();
+            long start = System.nanoTime();
+
+            //Nothing older for a tombstone to hide, and compaction can't add runs, only this thread does
+            boolean oldest = state.runs().isEmpty();
+            long entries = memtable.entries.size();
+            long generation = nextGeneration;
+            long liveKeys = state.liveKeys() + memtable.liveKeys.sum();
+
+            var run = writeRun(memtable.entries.entrySet().iterator(), entries, Math.max(1, memtable.bytes.sum() / Math.max(1, entries)),
+                    generation, generation, oldest, liveKeys);
+            nextGeneration++;
+
+            synchronized (this) {
+                var flushing = new ArrayList<>(state.flushing());
+                flushing.removeLast();
+
+                List<Run> runs = new ArrayList<>(state.runs().size() + 1);
+                if(run != null)
+                    runs.add(run);
+                runs.addAll(state.runs());
+
+                state = new State(state.active(), List.copyOf(flushing), List.copyOf(runs), liveKeys);
+            }
+
+            flushes.increment();
+            System.out.println("[INFO] Flushed " + entries + " entries to " + (run == null ? "nothing" : run.segments().size() + " segments")
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        }
+    }
+
+    private void compactInBackground() {
+        compactionScheduled.set(false);
+        try {
+            List<Run> merge;
+            while(!(merge = pickCompaction(state.runs())).isEmpty())
+                compact(merge);
+        } catch (IOException | RuntimeException err) {
+            err.printStackTrace();
+            System.err.println("[ERROR] Compaction in " + directory + " failed, the runs it was merging are left as they were | " + err.getMessage());
+        }
+    }
+
+    /*
+    * The newest stretch of at least compactionRuns consecutive runs that are all within SIZE_RATIO of each other
+    * Runs are newest first, and only neighbours can merge, otherwise a newer value could end up behind an older one
+    */
+    private List<Run> pickCompaction(List<Run> runs) {
+        for(int start = 0; start + compactionRuns <= runs.size(); start++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            int end = start;
+
+            while(end < runs.size()) {
+                long bytes = runs.get(end).sizeBytes();
+                if(Math.max(max, bytes) > SIZE_RATIO * Math.min(min, bytes))
+                    break;
+
+                min = Math.min(min, bytes);
+                max = Math.max(max, bytes);
+                end++;
+            }
+
+            if(end - start >= compactionRuns)
+                return runs.subList(start, end);
+        }
+
+        return List.of();
+    }
+
+    //Compaction thread only, merges runs into one that replaces them, then deletes their files
+    private void compact(List<Run> merge) throws IOException {
+        long start = System.nanoTime();
+
+        boolean oldest = merge.getLast() == state.runs().getLast();
+
+        long entries = 0;
+        long bytes = 0;
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>(merge.size());
+        for(var run : merge) {
+            entries += run.entryCount();
+            bytes += run.sizeBytes();
+            sources.add(run.range(new byte[0], null));
+        }
+
+        //Merging doesn't change which keys have a value, so the count as of the newest run merged still holds
+        var merged = writeRun(merge(sources, true), entries, Math.max(1, bytes / Math.max(1, entries)),
+                merge.getLast().minGeneration(), merge.getFirst().maxGeneration(), oldest, merge.getFirst().liveKeys());
+
+        boolean replaced = false;
+        synchronized (this) {
+            List<Run> runs = new ArrayList<>(state.runs().size());
+
+            //Flushes only ever add runs in front, so the merged ones are still next to each other
+            for(var run : state.runs()) {
+                if(!merge.contains(run)) {
+                    runs.add(run);
+                } else if(!replaced) {
+                    if(merged != null)
+                        runs.add(merged);
+                    replaced = true;
+                }
+            }
+
+            state = new State(state.active(), state.flushing(), List.copyOf(runs), state.liveKeys());
+        }
+
+        //A bulk load dropped the runs while they were being merged, so the result is stale too
+        if(!replaced && merged != null)
+            deleteRuns(List.of(merged));
+
+        //Readers that picked up the old state keep their mappings, the files only go away once they're unmapped
+        deleteRuns(merge);
+
+        compactions.increment();
+        System.out.println("[INFO] Compacted " + merge.size() + " runs, " + bytes + " bytes into " + (merged == null ? 0 : merged.sizeBytes())
+                + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    /*
+    * Writes entries, which are in key order, as one run of segments of up to segmentMaxBytes each
+    * Returns null if nothing was left to write, which happens when every entry was a tombstone that could go
+    * liveKeys is how many keys have a value once the run is in place, counting every older run, it goes in each segment's footer
+    */
+    private Run writeRun(Iterator<Map.Entry<byte[], byte[]>> entries, long expectedEntries, long averageEntryBytes,
+                         long minGeneration, long maxGeneration, boolean dropTombstones, long liveKeys) throws IOException {
+        List<Path> temps = new ArrayList<>();
+        long remaining = expectedEntries;
+        SegmentFile.Writer writer = null;
+
+        try {
+            while(entries.hasNext()) {
+                var entry = entries.next();
+                if(dropTombstones && entry.getValue() == SegmentFile.TOMBSTONE)
+                    continue;
+
+                if(writer != null && writer.dataBytes() >= segmentMaxBytes) {
+                    remaining -= writer.entries();
+                    writer.finish(liveKeys);
+                    writer.close();
+                    writer = null;
+                }
+
+                if(writer == null) {
+                    var temp = directory.resolve(PREFIX + minGeneration + "-" + maxGeneration + "-" + temps.size() + ".tmp");
+                    temps.add(temp);
+                    long expected = Math.max(1, Math.min(remaining, segmentMaxBytes / averageEntryBytes + 1));
+                    writer = new SegmentFile.Writer(temp, expected, bloomBitsPerKey);
+                }
+
+                writer.add(entry.getKey(), entry.getValue());
+            }
+
+            if(writer != null) {
+                writer.finish(liveKeys);
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException | RuntimeException err) {
+            if(writer != null)
+                writer.close();
+            for(var temp : temps)
+                Files.deleteIfExists(temp);
+            throw err;
+        }
+
+        if(temps.isEmpty())
+            return null;
+
+        //Every part is on disk before any of them gets its real name
+        List<SegmentFile> segments = new ArrayList<>(temps.size());
+        for(int part = 0; part < temps.size(); part++) {
+            var target = directory.resolve(fileName(minGeneration, maxGeneration, part, temps.size()));
+            Files.move(temps.get(part), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            segments.add(SegmentFile.open(target));
+        }
+
+        return new Run(minGeneration, maxGeneration, List.copyOf(segments));
+    }
+
+    /*
+    * The runs left in the directory, newest first. Drops what a crash left behind: temporary files,
+    * runs with parts missing, and compaction inputs whose generations another run covers
+    */
+    private List<Run> openRuns() throws IOException {
+        Map<List<Long>, Path[]> found = new HashMap<>();
+
+        try (var files = Files.list(directory)) {
+            for(var file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+
+                if(name.startsWith(PREFIX) && name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                if(!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+                    continue;
+
+                String[] parts = name.substring(PREFIX.length(), name.length() - SUFFIX.length()).split("-");
+                long min = Long.parseLong(parts[0]);
+                long max = Long.parseLong(parts[1]);
+                int part = Integer.parseInt(parts[2]);
+                int count = Integer.parseInt(parts[3]);
+
+                found.computeIfAbsent(List.of(min, max), k -> new Path[count])[part] = file;
+            }
+        }
+
+        List<Run> runs = new ArrayList<>();
+        for(var entry : found.entrySet()) {
+            long min = entry.getKey().get(0);
+            long max = entry.getKey().get(1);
+            var files = entry.getValue();
+
+            boolean complete = Arrays.stream(files).allMatch(Objects::nonNull);
+            boolean covered = found.keySet().stream().anyMatch(other -> !other.equals(entry.getKey())
+                    && other.get(0) <= min && max <= other.get(1));
+
+            if(!complete || covered) {
+                for(var file : files) {
+                    if(file != null)
+                        Files.deleteIfExists(file);
+                }
+                continue;
+            }
+
+            List<SegmentFile> segments = new ArrayList<>(files.length);
+            for(var file : files)
+                segments.add(SegmentFile.open(file));
+            runs.add(new Run(min, max, List.copyOf(segments)));
+        }
+
+        runs.sort(Comparator.comparingLong(Run::maxGeneration).reversed());
+        return List.copyOf(runs);
+    }
+
+    private List<Run> deleteSegments() throws IOException {
+        try (var files = Files.list(directory)) {
+            for(var file : (Iterable<Path>) files::iterator) {
+                if(file.getFileName().toString().startsWith(PREFIX))
+                    Files.deleteIfExists(file);
+            }
+        }
+        return List.of();
+    }
+
+    private static void deleteRuns(List<Run> runs) throws IOException {
+        for(var run : runs) {
+            for(var segment : run.segments())
+                Files.deleteIfExists(segment.path());
+        }
+    }
+
+    private static String fileName(long minGeneration, long maxGeneration, int part, int parts) {
+        return PREFIX + String.format("%016d-%016d-%04d-%04d", minGeneration, maxGeneration, part, parts) + SUFFIX;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /*
+    * k-way merge where sources come newest first. For a key in several of them only the newest entry is kept,
+    * tombstones included or not depending on keepTombstones
+    */
+    static Iterator<Map.Entry<byte[], byte[]>> merge(List<Iterator<Map.Entry<byte[], byte[]>>> sources, boolean keepTombstones) {
+        record Head(Map.Entry<byte[], byte[]> entry, int age, Iterator<Map.Entry<byte[], byte[]>> rest) {}
+
+        Comparator<Head> order = (a, b) -> {
+            int cmp = SkipListEngine.KEY_ORDER.compare(a.entry().getKey(), b.entry().getKey());
+            return cmp != 0 ? cmp : Integer.compare(a.age(), b.age());
+        };
+
+        var heads = new PriorityQueue<Head>(Math.max(1, sources.size()), order);
+        for(int i = 0; i < sources.size(); i++) {
+            if(sources.get(i).hasNext())
+                heads.add(new Head(sources.get(i).next(), i, sources.get(i)));
+        }
+
+        return new Iterator<>() {
+
+            private Map.Entry<byte[], byte[]> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if(next == null)
+                    throw new NoSuchElementException();
+
+                var entry = next;
+                next = advance();
+                return entry;
+            }
+
+            private Map.Entry<byte[], byte[]> advance() {
+                while(!heads.isEmpty()) {
+                    var head = heads.poll();
+                    byte[] key = head.entry().getKey();
+                    refill(head);
+
+                    //Older entries for the same key
+                    while(!heads.isEmpty() && Arrays.equals(heads.peek().entry().getKey(), key))
+                        refill(heads.poll());
+
+                    if(keepTombstones || head.entry().getValue() != SegmentFile.TOMBSTONE)
+                        return head.entry();
+                }
+                return null;
+            }
+
+            private void refill(Head head) {
+                if(head.rest().hasNext())
+                    heads.add(new Head(head.rest().next(), head.age(), head.rest()));
+            }
+        };
+    }
+
+    private static final class Memtable {
+
+        final ConcurrentSkipListMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(SkipListEngine.KEY_ORDER);
+
+        //Only grows, an overwrite is counted again
+        final LongAdder bytes = new LongAdder();
+
+        //How many keys its writes gave a value, less the ones they took it away from, compared to what's below it
+        final LongAdder liveKeys = new LongAdder();
+
+        Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+            var view = to == null ? entries.tailMap(from, true) : entries.subMap(from, true, to, false);
+            return view.entrySet().iterator();
+        }
+    }
+
+    //Lists are newest first, liveKeys is how many keys have a value in the runs alone
+    private record State(Memtable active, List<Memtable> flushing, List<Run> runs, long liveKeys) {}
+
+    //Segments from one flush or compaction, in key order and not overlapping
+    private record Run(long minGeneration, long maxGeneration, List<SegmentFile> segments) {
+
+        //The one segment whose keys span key, if any
+        SegmentFile segmentFor(byte[] key) {
+            int low = 0;
+            int high = segments.size() - 1;
+
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                var segment = segments.get(mid);
+
+                if(SkipListEngine.KEY_ORDER.compare(key, segment.firstKey()) < 0)
+                    high = mid - 1;
+                else if(SkipListEngine.KEY_ORDER.compare(key, segment.lastKey()) > 0)
+                    low = mid + 1;
+                else
+                    return segment;
+            }
+
+            return null;
+        }
+
+        //One segment after another, skipping the ones that end before from or start at or after to
+        Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+            return new Iterator<>() {
+
+                private int next = 0;
+
+                private Iterator<Map.Entry<byte[], byte[]>> current = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while(!current.hasNext() && next < segments.size()) {
+                        var segment = segments.get(next++);
+                        if(SkipListEngine.KEY_ORDER.compare(segment.lastKey(), from) < 0)
+                            continue;
+                        if(to != null && SkipListEngine.KEY_ORDER.compare(segment.firstKey(), to) >= 0)
+                            break;
+                        current = segment.range(from, to);
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public Map.Entry<byte[], byte[]> next() {
+                    if(!hasNext())
+                        throw new NoSuchElementException();
+                    return current.next();
+                }
+            };
+        }
+
+        long sizeBytes() {
+            long bytes = 0;
+            for(var segment : segments)
+                bytes += segment.sizeBytes();
+            return bytes;
+        }
+
+        //Keys with a value in this run and every older one together, as of when it was written
+        long liveKeys() {
+            return segments.getFirst().liveKeys();
+        }
+
+        long entryCount() {
+            long entries = 0;
+            for(var segment : segments)
+                entries += segment.entryCount();
+            return entries;
+        }
+    }
+
+}
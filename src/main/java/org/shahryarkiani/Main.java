@@ -4,19 +4,29 @@ public class Main {
     public static void main(String[] args) {
 
         if(args.length == 0) {
-            //We should really ask how many threads the user wants for the event loops
-            //Probably core count / 2 would be good
-            var server = new KVServer(8080, 4);
+            //The number of event loops is kv.listeners, one per core by default
+            var config = KVServerConfig.fromSystemProperties();
+            var server = new KVServer(8080, config.listenerCount, config);
             server.run();
         } else if(args.length == 1) {
             try {
                 int port = Integer.parseInt(args[0]);
-                var server = new KVServer(port, 2);
+                var config = KVServerConfig.fromSystemProperties();
+                var server = new KVServer(port, config.listenerCount, config);
                 server.run();
             } catch(NumberFormatException e) {
                 System.err.println("[ERROR] Unable to parse port number");
                 throw new RuntimeException(e);
             }
+        } else if(args.length == 3 && args[0].equals("load")) {
+            //load <address> <port>, everything else comes from -Dkv.load.* properties
+            try {
+                int port = Integer.parseInt(args[2]);
+                new LoadGenerator(args[1], port, LoadGeneratorConfig.fromSystemProperties()).run();
+            } catch (NumberFormatException e) {
+                System.err.println("[ERROR] Unable to parse port number");
+                throw new RuntimeException(e);
+            }
         } else if(args.length == 2) {
             try {
                 int port = Integer.parseInt(args[1]);
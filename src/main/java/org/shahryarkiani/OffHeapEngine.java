@@ -0,0 +1,430 @@
+package org.shahryarkiani;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+public class OffHeapEngine implements StorageEngine {
+
+    /*
+    * Same sharded open addressing layout as ShardedHashEngine, but the index only holds the key's hash
+    * and a handle to a slab chunk, the key and value bytes themselves live in direct memory:
+    * | 2 Bytes | 2 Bytes   | Key Len Bytes | Value Len Bytes |
+    * | Key Len | Value Len | Key           | Value           |
+    *
+    * That's 12 bytes of heap per entry instead of two arrays with their headers, and nothing for G1 to trace
+    *
+    * Reads take the shard's read lock rather than an optimistic read, a writer may free a chunk and have it
+    * reused for another entry, and the lock is what keeps that from happening under a reader that's still copying
+    */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final SlabAllocator allocator = new SlabAllocator();
+
+    private final Shard[] shards;
+
+    private final int shardShift;
+
+    public OffHeapEngine(int shardCount) {
+        int count = 1;
+        while(count < shardCount)
+            count <<= 1;
+
+        shards = new Shard[count];
+        for(int i = 0; i < count; i++)
+            shards[i] = new Shard(INITIAL_CAPACITY);
+
+        shardShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        int hash = ShardedHashEngine.hash(key);
+        var shard = shardFor(hash);
+
+        long stamp = shard.lock.readLock();
+        try {
+            long handle = shard.find(key, hash);
+            return handle == 0 ? null : readValue(handle);
+        } finally {
+            shard.lock.unlockRead(stamp);
+        }
+    }
+
+    //Copies the value from its slab into out under the read lock, without going through a byte[]
+    @Override
+    public int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        int hash = ShardedHashEngine.hash(key);
+        var shard = shardFor(hash);
+
+        long stamp = shard.lock.readLock();
+        try {
+            long handle = shard.find(key, hash);
+            if(handle == 0)
+                return -1;
+
+            var slab = allocator.slab(handle);
+            int offset = SlabAllocator.offset(handle);
+            int valueLength = valueLength(slab, offset);
+
+            var out = reserve.apply(valueLength);
+            out.put(out.position(), slab, offset + 4 + keyLength(slab, offset), valueLength);
+            out.position(out.position() + valueLength);
+
+            return valueLength;
+        } finally {
+            shard.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        int hash = ShardedHashEngine.hash(key);
+
+        //The chunk gets filled before taking the shard lock, so writers only hold it for the index update
+        long handle = writeChunk(key, value);
+
+        long previous = shardFor(hash).put(key, hash, handle);
+        if(previous != 0)
+            freeChunk(previous);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        int hash = ShardedHashEngine.hash(key);
+        var shard = shardFor(hash);
+
+        long stamp = shard.lock.writeLock();
+        try {
+            long handle = shard.remove(key, hash);
+            if(handle == 0)
+                return null;
+
+            byte[] value = readValue(handle);
+            freeChunk(handle);
+            return value;
+        } finally {
+            shard.lock.unlockWrite(stamp);
+        }
+    }
+
+    //update gets a copy of the value, and a new one goes in a chunk of its own, all under the shard's write lock
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        int hash = ShardedHashEngine.hash(key);
+        var shard = shardFor(hash);
+
+        long stamp = shard.lock.writeLock();
+        try {
+            long handle = shard.find(key, hash);
+            byte[] current = handle == 0 ? null : readValue(handle);
+            byte[] next = update.apply(current);
+
+            if(next == current)
+                return current;
+
+            if(next == null) {
+                shard.remove(key, hash);
+                freeChunk(handle);
+            } else {
+                long previous = shard.insert(key, hash, writeChunk(key, next));
+                if(previous != 0)
+                    freeChunk(previous);
+            }
+
+            return next;
+        } finally {
+            shard.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for(var shard : shards)
+            size += shard.size;
+        return size;
+    }
+
+    public long reservedBytes() {
+        return allocator.reservedBytes();
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return false;
+    }
+
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return () -> new Iterator<>() {
+
+            private int nextShard = 0;
+
+            private Iterator<Map.Entry<byte[], byte[]>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while(!current.hasNext() && nextShard < shards.length)
+                    current = copyEntries(shards[nextShard++]).iterator();
+
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        int perShard = (int) Math.min(Integer.MAX_VALUE / 2, count / shards.length + 1);
+        for(var shard : shards)
+            shard.ensureCapacity(perShard);
+
+        while(entries.hasNext()) {
+            var entry = entries.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private List<Map.Entry<byte[], byte[]>> copyEntries(Shard shard) {
+        long stamp = shard.lock.readLock();
+        try {
+            var t = shard.table;
+            List<Map.Entry<byte[], byte[]>> copy = new ArrayList<>(shard.size);
+
+            for(long handle : t.handles) {
+                if(handle == 0)
+                    continue;
+
+                var slab = allocator.slab(handle);
+                int offset = SlabAllocator.offset(handle);
+                int keyLength = keyLength(slab, offset);
+
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength(slab, offset)];
+                slab.get(offset + 4, key);
+                slab.get(offset + 4 + keyLength, value);
+
+                copy.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            }
+
+            return copy;
+        } finally {
+            shard.lock.unlockRead(stamp);
+        }
+    }
+
+    //Allocates a chunk and fills it in, it isn't in any shard yet
+    private long writeChunk(byte[] key, byte[] value) {
+        long handle = allocator.allocate(4 + key.length + value.length);
+        var slab = allocator.slab(handle);
+        int offset = SlabAllocator.offset(handle);
+
+        slab.putShort(offset, (short) key.length);
+        slab.putShort(offset + 2, (short) value.length);
+        slab.put(offset + 4, key);
+        slab.put(offset + 4 + key.length, value);
+
+        return handle;
+    }
+
+    //Caller holds the shard's lock, so the chunk can't be freed and reused while it's copied
+    private byte[] readValue(long handle) {
+        var slab = allocator.slab(handle);
+        int offset = SlabAllocator.offset(handle);
+
+        byte[] value = new byte[valueLength(slab, offset)];
+        slab.get(offset + 4 + keyLength(slab, offset), value);
+        return value;
+    }
+
+    private void freeChunk(long handle) {
+        var slab = allocator.slab(handle);
+        int offset = SlabAllocator.offset(handle);
+        allocator.free(handle, 4 + keyLength(slab, offset) + valueLength(slab, offset));
+    }
+
+    private Shard shardFor(int hash) {
+        if(shards.length == 1)
+            return shards[0];
+        return shards[hash >>> shardShift];
+    }
+
+    private static int keyLength(ByteBuffer slab, int offset) {
+        return 0xFFFF & slab.getShort(offset);
+    }
+
+    private static int valueLength(ByteBuffer slab, int offset) {
+        return 0xFFFF & slab.getShort(offset + 2);
+    }
+
+    private static final class Table {
+
+        final int[] hashes;
+
+        final long[] handles;
+
+        final int mask;
+
+        Table(int capacity) {
+            hashes = new int[capacity];
+            handles = new long[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private final class Shard {
+
+        private final StampedLock lock = new StampedLock();
+
+        private Table table;
+
+        private int size;
+
+        Shard(int capacity) {
+            table = new Table(capacity);
+        }
+
+        //Caller holds the lock, returns 0 if the key isn't there
+        long find(byte[] key, int hash) {
+            var t = table;
+            int slot = hash & t.mask;
+
+            while(t.handles[slot] != 0) {
+                if(t.hashes[slot] == hash && keyEquals(t.handles[slot], key))
+                    return t.handles[slot];
+                slot = (slot + 1) & t.mask;
+            }
+
+            return 0;
+        }
+
+        //Returns the handle that was replaced, or 0
+        long put(byte[] key, int hash, long handle) {
+            long stamp = lock.writeLock();
+            try {
+                return insert(key, hash, handle);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        //Same as put for a caller that already holds the write lock
+        long insert(byte[] key, int hash, long handle) {
+            var t = table;
+            int slot = hash & t.mask;
+
+            while(t.handles[slot] != 0) {
+                if(t.hashes[slot] == hash && keyEquals(t.handles[slot], key)) {
+                    long previous = t.handles[slot];
+                    t.handles[slot] = handle;
+                    return previous;
+                }
+                slot = (slot + 1) & t.mask;
+            }
+
+            t.hashes[slot] = hash;
+            t.handles[slot] = handle;
+
+            if(++size > t.handles.length * LOAD_FACTOR)
+                table = rehash(t, t.handles.length * 2);
+
+            return 0;
+        }
+
+        //Caller holds the write lock, the chunk is still allocated when this returns
+        long remove(byte[] key, int hash) {
+            var t = table;
+            int slot = hash & t.mask;
+
+            while(t.handles[slot] != 0) {
+                if(t.hashes[slot] == hash && keyEquals(t.handles[slot], key)) {
+                    long handle = t.handles[slot];
+                    deleteSlot(t, slot);
+                    size--;
+                    return handle;
+                }
+                slot = (slot + 1) & t.mask;
+            }
+
+            return 0;
+        }
+
+        void ensureCapacity(int entries) {
+            long stamp = lock.writeLock();
+            try {
+                int needed = INITIAL_CAPACITY;
+                while(needed * LOAD_FACTOR < entries)
+                    needed <<= 1;
+
+                if(needed > table.handles.length)
+                    table = rehash(table, needed);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private boolean keyEquals(long handle, byte[] key) {
+            var slab = allocator.slab(handle);
+            int offset = SlabAllocator.offset(handle);
+
+            if(keyLength(slab, offset) != key.length)
+                return false;
+
+            for(int i = 0; i < key.length; i++) {
+                if(slab.get(offset + 4 + i) != key[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        //Backward shift deletion, same as ShardedHashEngine
+        private static void deleteSlot(Table t, int hole) {
+            int slot = (hole + 1) & t.mask;
+
+            while(t.handles[slot] != 0) {
+                int home = t.hashes[slot] & t.mask;
+
+                if(((slot - home) & t.mask) >= ((slot - hole) & t.mask)) {
+                    t.hashes[hole] = t.hashes[slot];
+                    t.handles[hole] = t.handles[slot];
+                    hole = slot;
+                }
+
+                slot = (slot + 1) & t.mask;
+            }
+
+            t.handles[hole] = 0;
+        }
+
+        private static Table rehash(Table old, int capacity) {
+            var t = new Table(capacity);
+
+            for(int i = 0; i < old.handles.length; i++) {
+                if(old.handles[i] == 0)
+                    continue;
+
+                int slot = old.hashes[i] & t.mask;
+                while(t.handles[slot] != 0)
+                    slot = (slot + 1) & t.mask;
+
+                t.hashes[slot] = old.hashes[i];
+                t.handles[slot] = old.handles[i];
+            }
+
+            return t;
+        }
+    }
+
+}
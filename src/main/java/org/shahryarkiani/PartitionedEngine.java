@@ -0,0 +1,167 @@
+package org.shahryarkiani;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+public class PartitionedEngine implements StorageEngine {
+
+    /*
+    * The store split by key hash into one engine per listener, for the PARTITIONED execution mode
+    *
+    * In that mode a listener only ever runs requests for keys in its own partition and forwards the rest
+    * to the listener that owns them, so every partition has exactly one writer and a hot key's cache lines
+    * stay on the core that owns it instead of bouncing between all of them
+    *
+    * The partitions are still the normal thread safe engines. Nothing contends on them, but snapshots, STATS
+    * and scans read them from other threads, and replay and bulk loads go through here before any listener runs
+    */
+    private final StorageEngine[] partitions;
+
+    public PartitionedEngine(int count, Supplier<StorageEngine> partition) {
+        partitions = new StorageEngine[count];
+        for(int i = 0; i < count; i++)
+            partitions[i] = partition.get();
+    }
+
+    //Which partition, and so which listener, owns key
+    public int partitionOf(byte[] key) {
+        return partitionOf(ShardedHashEngine.hash(key), partitions.length);
+    }
+
+    /*
+    * The engines inside pick shards with the top bits of the same hash and slots with the low bits,
+    * so it's mixed again first, otherwise every partition would only ever use a few of its shards
+    */
+    static int partitionOf(int hash, int count) {
+        int h = hash * 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (int) (((h & 0xFFFFFFFFL) * count) >>> 32);
+    }
+
+    public int partitionCount() {
+        return partitions.length;
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return partitions[partitionOf(key)].get(key);
+    }
+
+    @Override
+    public int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        return partitions[partitionOf(key)].copyValue(key, reserve);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        partitions[partitionOf(key)].put(key, value);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        return partitions[partitionOf(key)].remove(key);
+    }
+
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        return partitions[partitionOf(key)].update(key, update);
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for(var partition : partitions)
+            size += partition.size();
+        return size;
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return partitions[0].sharesValues();
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return partitions[0].isOrdered();
+    }
+
+    //Each partition is in key order on its own, so a scan merges them as it goes
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        List<Iterator<Map.Entry<byte[], byte[]>>> ranges = new ArrayList<>(partitions.length);
+        for(var partition : partitions)
+            ranges.add(partition.range(from, to));
+
+        return merge(ranges);
+    }
+
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        if(isOrdered())
+            return () -> range(new byte[0], null);
+
+        return () -> new Iterator<>() {
+
+            private int next = 0;
+
+            private Iterator<Map.Entry<byte[], byte[]>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while(!current.hasNext() && next < partitions.length)
+                    current = partitions[next++].entries().iterator();
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    //Entries land in different partitions, so this can't hand the sorted input straight to one of them
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        while(entries.hasNext()) {
+            var entry = entries.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    //k-way merge on the head of each iterator, keys never repeat since every key lives in one partition
+    private static Iterator<Map.Entry<byte[], byte[]>> merge(List<Iterator<Map.Entry<byte[], byte[]>>> ranges) {
+        record Head(Map.Entry<byte[], byte[]> entry, Iterator<Map.Entry<byte[], byte[]>> rest) {}
+
+        var heads = new PriorityQueue<Head>(Math.max(1, ranges.size()), (a, b) -> SkipListEngine.KEY_ORDER.compare(a.entry().getKey(), b.entry().getKey()));
+        for(var range : ranges) {
+            if(range.hasNext())
+                heads.add(new Head(range.next(), range));
+        }
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                var head = heads.poll();
+                if(head == null)
+                    throw new NoSuchElementException();
+
+                if(head.rest().hasNext())
+                    heads.add(new Head(head.rest().next(), head.rest()));
+
+                return head.entry();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,214 @@
+package org.shahryarkiani;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class ReplicationFollower implements Runnable {
+
+    /*
+    * Keeps kvStore a copy of a leader's store, see ReplicationLeader for the stream it reads
+    *
+    * Every connection starts from the leader's copy of the store, loaded over what we had, and then batches are applied
+    * in the order they were logged. If the leader goes quiet or the connection drops it keeps reconnecting,
+    * and the store keeps serving the last state it had in the meantime
+    *
+    * The old state isn't cleared first, that would have reads finding nothing until the copy was loaded. While it loads
+    * each key is either what we had or what the leader sent, and once it's done the keys the leader didn't send are deleted.
+    * That means remembering every key the leader sent until then
+    *
+    * The listeners only serve reads while this is running, so this thread is the store's only writer
+    * apart from TTL expiry, and deadlines come from the leader so both sides expire keys at the same time
+    */
+    private static final long RETRY_MILLIS = 1000;
+
+    //Missing this many heartbeats in a row counts as the leader being gone
+    private static final int MISSED_HEARTBEATS = 30;
+
+    private final ExpiringEngine kvStore;
+
+    private final String host;
+
+    private final int port;
+
+    //Every mutation goes through here, so TTLs get scheduled the same way a replayed log's do
+    private final WriteAheadLog.Mutation apply;
+
+    private volatile boolean connected = false;
+
+    private volatile long bootstraps = 0;
+
+    //Log position of the last batch applied, and the leader's own position the last time it told us
+    private volatile long appliedPosition = 0;
+
+    private volatile long leaderPosition = 0;
+
+    //When the leader logged the last batch we applied
+    private volatile long appliedLoggedAt = 0;
+
+    public ReplicationFollower(ExpiringEngine kvStore, String leader, WriteAheadLog.Mutation apply) {
+        this.kvStore = kvStore;
+        this.apply = apply;
+
+        int split = leader.lastIndexOf(':');
+        if(split < 0)
+            throw new IllegalArgumentException("Expected host:port for the leader, got " + leader);
+
+        host = leader.substring(0, split);
+        port = Integer.parseInt(leader.substring(split + 1));
+    }
+
+    public boolean connected() {
+        return connected;
+    }
+
+    public long bootstraps() {
+        return bootstraps;
+    }
+
+    public long appliedPosition() {
+        return appliedPosition;
+    }
+
+    //How many bytes of the leader's log we haven't applied yet, -1 while disconnected
+    public long lagBytes() {
+        return connected ? Math.max(0, leaderPosition - appliedPosition) : -1;
+    }
+
+    /*
+    * How far behind we are in time, counted from when the leader logged the last batch we applied
+    * 0 once we've applied everything the leader says it has, -1 while disconnected
+    */
+    public long lagMillis() {
+        if(!connected)
+            return -1;
+        if(appliedPosition >= leaderPosition)
+            return 0;
+        return Math.max(0, System.currentTimeMillis() - appliedLoggedAt);
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                follow();
+            } catch (EOFException err) {
+                System.err.println("[ERROR] The leader at " + host + ":" + port + " closed the connection");
+            } catch (IOException err) {
+                System.err.println("[ERROR] Lost the leader at " + host + ":" + port + " | " + err.getMessage());
+            }
+
+            connected = false;
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        try (var socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setSoTimeout((int) (ReplicationLeader.HEARTBEAT_MILLIS * MISSED_HEARTBEATS));
+            socket.setTcpNoDelay(true);
+
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+            long start = System.nanoTime();
+
+            byte[] body = new byte[64 * 1024];
+            boolean loaded = false;
+
+            //Deadlines from the leader's copy, they arrive before the entries they belong to
+            Map<ByteKey, Long> expiries = new HashMap<>();
+
+            //Every key in the leader's copy, null once it's loaded
+            Set<ByteKey> sent = new HashSet<>();
+
+            while(true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+
+                if(length < 0)
+                    throw new IOException("Bad frame length " + length);
+
+                if(body.length < length)
+                    body = new byte[Math.max(length, body.length * 2)];
+
+                in.readFully(body, 0, length);
+                var frame = ByteBuffer.wrap(body, 0, length);
+
+                switch (type) {
+                    case ReplicationLeader.EXPIRIES -> {
+                        while(frame.hasRemaining()) {
+                            long expiresAt = frame.getLong();
+                            byte[] key = new byte[0xFFFF & frame.getShort()];
+                            frame.get(key);
+                            expiries.put(ByteKey.of(key), expiresAt);
+                        }
+                    }
+                    case ReplicationLeader.ENTRIES -> {
+                        while(frame.hasRemaining()) {
+                            var entry = KVMessage.decodeMessage(frame);
+                            var key = ByteKey.of(entry[0]);
+                            Long expiresAt = expiries.remove(key);
+                            sent.add(key);
+                            apply.apply(entry[0], entry[1], expiresAt == null ? 0 : expiresAt);
+                        }
+                    }
+                    case ReplicationLeader.SNAPSHOT_END -> {
+                        //Whatever's left was for keys that were gone by the time the leader got to them
+                        expiries.clear();
+
+                        removeUnsent(sent);
+                        sent = null;
+
+                        appliedPosition = frame.getLong();
+                        leaderPosition = appliedPosition;
+                        loaded = true;
+                        connected = true;
+                        bootstraps++;
+
+                        System.out.println("[INFO] Loaded " + kvStore.size() + " keys from the leader at " + host + ":" + port
+                                + " in " + (System.nanoTime() - start) / 1_000_000 + "ms, following from log position " + appliedPosition);
+                    }
+                    case ReplicationLeader.BATCH -> {
+                        if(!loaded)
+                            throw new IOException("Got a batch before the leader's copy of the store");
+
+                        long position = frame.getLong();
+                        leaderPosition = frame.getLong();
+                        long loggedAt = frame.getLong();
+
+                        WriteAheadLog.applyRecords(frame, apply);
+
+                        appliedLoggedAt = loggedAt;
+                        appliedPosition = position;
+                    }
+                    case ReplicationLeader.HEARTBEAT -> leaderPosition = Math.max(appliedPosition, frame.getLong());
+                    default -> throw new IOException("Unknown replication frame type " + type);
+                }
+            }
+        }
+    }
+
+    //Keys the leader deleted while we were gone would otherwise stick around forever
+    private void removeUnsent(Set<ByteKey> sent) {
+        for(var entry : kvStore.entries()) {
+            if(!sent.contains(ByteKey.of(entry.getKey())))
+                kvStore.remove(entry.getKey());
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package org.shahryarkiani;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicationLeader implements Runnable {
+
+    /*
+    * Serves followers on the replication port, each one gets a thread of its own
+    *
+    * A follower is sent a copy of the store and then every batch the write-ahead log takes from then on,
+    * in log order. It subscribes to the log before the copy starts, so the batches it's sent start right where
+    * the store stood at that point. The copy walks the store while writes keep going, same as a snapshot,
+    * so it can also pick up some newer writes. That's fine since the batches after it get applied on top
+    * and put those keys back in the same final state
+    *
+    * Deadlines go first, for the same reason snapshots read them first: a key that expires while the entries
+    * are being sent would otherwise arrive without its deadline, and nothing in the log would ever remove it
+    *
+    * Stream format, leader to follower, every frame is | 1 Byte Type | 4 Bytes Body Len | Body |
+    * EXPIRIES     | 8 Bytes Expires At | 2 Bytes Key Len | Key |, repeated
+    * ENTRIES      | Records, the same PUT framing snapshots use |
+    * SNAPSHOT_END | 8 Bytes Position | the log position the batches pick up from
+    * BATCH        | 8 Bytes Position | 8 Bytes Leader Position | 8 Bytes Logged At | Records, as in the log |
+    * HEARTBEAT    | 8 Bytes Leader Position | 8 Bytes Sent At |
+    *
+    * Position is where the log ends after that batch, leader position is where it ended when the frame was sent,
+    * so the follower knows how far behind it is. Times are wall clock millis
+    * Nothing goes the other way, the follower just reads
+    */
+    static final byte ENTRIES = 1;
+
+    static final byte EXPIRIES = 2;
+
+    static final byte SNAPSHOT_END = 3;
+
+    static final byte BATCH = 4;
+
+    static final byte HEARTBEAT = 5;
+
+    //Idle followers get a heartbeat this often, they treat a few seconds of silence as a dead leader
+    static final long HEARTBEAT_MILLIS = 100;
+
+    private static final int ENTRIES_FRAME_BYTES = 1024 * 1024;
+
+    private final ExpiringEngine kvStore;
+
+    private final WriteAheadLog writeAheadLog;
+
+    private final ServerSocketChannel socket;
+
+    private final long maxLagBytes;
+
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+
+    public ReplicationLeader(ExpiringEngine kvStore, WriteAheadLog writeAheadLog, String bindAddress, int port, long maxLagBytes) {
+        this.kvStore = kvStore;
+        this.writeAheadLog = writeAheadLog;
+        this.maxLagBytes = maxLagBytes;
+
+        try {
+            socket = ServerSocketChannel.open();
+            socket.bind(new InetSocketAddress(bindAddress, port));
+        } catch (IOException e) {
+            System.err.println("[ERROR] Unable to open replication port " + port);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int followerCount() {
+        return followers.size();
+    }
+
+    public long position() {
+        return writeAheadLog.position();
+    }
+
+    @Override
+    public void run() {
+        try {
+            System.out.println("[INFO] Accepting followers on " + socket.getLocalAddress());
+        } catch (IOException ignored) {
+        }
+
+        while(true) {
+            SocketChannel channel;
+            try {
+                channel = socket.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException err) {
+                err.printStackTrace();
+                System.err.println("[ERROR] " + err.getMessage());
+                continue;
+            }
+
+            var follower = new Follower(channel);
+            var thread = new Thread(follower, "replication-" + channel.socket().getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private final class Follower implements Runnable, WriteAheadLog.Subscriber {
+
+        private final SocketChannel channel;
+
+        private final DataOutputStream out;
+
+        //Batches logged since this follower subscribed that haven't gone out yet
+        private final LinkedBlockingQueue<Batch> pending = new LinkedBlockingQueue<>();
+
+        private final AtomicLong pendingBytes = new AtomicLong();
+
+        //Set from the append path, the follower's thread notices and hangs up
+        private volatile boolean tooFarBehind = false;
+
+        Follower(SocketChannel channel) {
+            this.channel = channel;
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        }
+
+        //Called under the log's append lock, so only a copy and a queue push
+        @Override
+        public void batchLogged(ByteBuffer records, long position) {
+            if(tooFarBehind)
+                return;
+
+            byte[] copy = new byte[records.remaining()];
+            records.get(copy);
+
+            if(pendingBytes.addAndGet(copy.length) > maxLagBytes) {
+                tooFarBehind = true;
+                return;
+            }
+
+            pending.add(new Batch(position, System.currentTimeMillis(), copy));
+        }
+
+        @Override
+        public void run() {
+            String address = channel.socket().getRemoteSocketAddress().toString();
+            followers.add(this);
+
+            try (channel) {
+                long position = writeAheadLog.subscribe(this);
+
+                long start = System.nanoTime();
+                long keys = sendStore(position);
+                System.out.println("[INFO] Sent " + keys + " keys to follower " + address + " in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+
+                while(!tooFarBehind) {
+                    var batch = pending.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+                    if(batch == null) {
+                        out.writeByte(HEARTBEAT);
+                        out.writeInt(16);
+                        out.writeLong(writeAheadLog.position());
+                        out.writeLong(System.currentTimeMillis());
+                        out.flush();
+                        continue;
+                    }
+
+                    //Everything that's queued goes out in one flush
+                    do {
+                        pendingBytes.addAndGet(-batch.records().length);
+
+                        out.writeByte(BATCH);
+                        out.writeInt(24 + batch.records().length);
+                        out.writeLong(batch.position());
+                        out.writeLong(writeAheadLog.position());
+                        out.writeLong(batch.loggedAt());
+                        out.write(batch.records());
+                    } while((batch = pending.poll()) != null);
+
+                    out.flush();
+                }
+
+                System.err.println("[ERROR] Follower " + address + " fell more than " + maxLagBytes + " bytes behind, dropping it");
+            } catch (IOException err) {
+                System.out.println("[INFO] Follower " + address + " disconnected | " + err.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                writeAheadLog.unsubscribe(this);
+                followers.remove(this);
+            }
+        }
+
+        //The copy of the store, everything up to position is in it. Returns how many keys were sent
+        private long sendStore(long position) throws IOException {
+            var frame = ByteBuffer.allocate(ENTRIES_FRAME_BYTES);
+            long keys = 0;
+
+            for(var entry : kvStore.expiries()) {
+                byte[] key = entry.getKey();
+
+                if(frame.remaining() < 10 + key.length)
+                    sendFrame(EXPIRIES, frame);
+
+                frame.putLong(entry.getValue());
+                frame.putShort((short) key.length);
+                frame.put(key);
+            }
+            sendFrame(EXPIRIES, frame);
+
+            for(var entry : kvStore.entries()) {
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+
+                if(frame.remaining() < 4 + key.length + value.length)
+                    sendFrame(ENTRIES, frame);
+
+                KVMessage.writeMessage(frame, key, value);
+                keys++;
+            }
+            sendFrame(ENTRIES, frame);
+
+            out.writeByte(SNAPSHOT_END);
+            out.writeInt(8);
+            out.writeLong(position);
+            out.flush();
+
+            return keys;
+        }
+
+        private void sendFrame(byte type, ByteBuffer frame) throws IOException {
+            if(frame.position() == 0)
+                return;
+
+            out.writeByte(type);
+            out.writeInt(frame.position());
+            out.write(frame.array(), 0, frame.position());
+            frame.clear();
+        }
+    }
+
+    private record Batch(long position, long loggedAt, byte[] records) {}
+
+}
@@ -0,0 +1,444 @@
+package org.shahryarkiani;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+public class SegmentFile {
+
+    /*
+    * An immutable sorted file of entries, what LsmEngine flushes memtables into and merges during compaction
+    *
+    * Segment format:
+    * | Data Blocks | Block Index | Last Key | Bloom Filter | Footer |
+    *
+    * Blocks are runs of records in key order, a new one starts once the current one passes BLOCK_BYTES
+    * Records use the KVMessage framing | Key Len | Value Len | Key | Value |, with a value length of 0xFFFF
+    * for a tombstone, which hides the key in every older segment until compaction drops it
+    *
+    * Index   | 2 Bytes Key Len | First Key In Block | 4 Bytes Block Offset |, one per block
+    * Last Key | 2 Bytes Key Len | Key |
+    * Bloom   | 8 Bytes |, one long per 64 bits
+    * Footer  | 4 Index Offset | 4 Block Count | 4 Last Key Offset | 4 Bloom Offset | 4 Bloom Words | 4 Bloom Hashes
+    *         | 8 Entry Count | 8 Tombstone Count | 8 Live Keys | 4 Magic |
+    *
+    * Live Keys isn't about this segment, it's how many keys had a value across its run and every older run
+    * once the run was written, so LsmEngine can count the store on startup without reading it
+    *
+    * The whole file is memory mapped and only the positions of the index entries are kept on the heap,
+    * 4 bytes per block. A lookup checks the Bloom filter, binary searches the index and scans one block,
+    * so a key that isn't here usually costs a few bit tests and one that is costs a single block read
+    */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    static final int BLOCK_BYTES = 4096;
+
+    private static final int MAGIC = 0x4B565347;
+
+    private static final int FOOTER_SIZE = 52;
+
+    private static final int TOMBSTONE_LENGTH = 0xFFFF;
+
+    private final Path path;
+
+    private final MappedByteBuffer map;
+
+    private final int indexOffset;
+
+    //Where each block's index entry starts
+    private final int[] blocks;
+
+    private final int bloomOffset;
+
+    private final long bloomBits;
+
+    private final int bloomHashes;
+
+    private final long entries;
+
+    private final long tombstones;
+
+    private final long liveKeys;
+
+    private final byte[] firstKey;
+
+    private final byte[] lastKey;
+
+    private SegmentFile(Path path, MappedByteBuffer map) throws IOException {
+        this.path = path;
+        this.map = map;
+
+        int footer = map.capacity() - FOOTER_SIZE;
+        if(footer < 0 || map.getInt(footer + 48) != MAGIC)
+            throw new IOException("Segment " + path + " has a bad footer");
+
+        indexOffset = map.getInt(footer);
+        blocks = new int[map.getInt(footer + 4)];
+        int lastKeyOffset = map.getInt(footer + 8);
+        bloomOffset = map.getInt(footer + 12);
+        bloomBits = map.getInt(footer + 16) * 64L;
+        bloomHashes = map.getInt(footer + 20);
+        entries = map.getLong(footer + 24);
+        tombstones = map.getLong(footer + 32);
+        liveKeys = map.getLong(footer + 40);
+
+        int position = indexOffset;
+        for(int i = 0; i < blocks.length; i++) {
+            blocks[i] = position;
+            position += 2 + (0xFFFF & map.getShort(position)) + 4;
+        }
+
+        if(blocks.length == 0 || position != lastKeyOffset)
+            throw new IOException("Segment " + path + " has a corrupt block index");
+
+        firstKey = readKey(indexOffset);
+        lastKey = readKey(lastKeyOffset);
+    }
+
+    //Segments are never written to once they're opened, so the mapping is all there is to keep
+    public static SegmentFile open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Segment " + path + " is too big to map");
+
+            return new SegmentFile(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public long sizeBytes() {
+        return map.capacity();
+    }
+
+    public long entryCount() {
+        return entries;
+    }
+
+    public long tombstoneCount() {
+        return tombstones;
+    }
+
+    public long liveKeys() {
+        return liveKeys;
+    }
+
+    public byte[] firstKey() {
+        return firstKey;
+    }
+
+    public byte[] lastKey() {
+        return lastKey;
+    }
+
+    //64 bit hash of a key, computed once per lookup and shared by every segment's filter
+    static long hash(byte[] key) {
+        long h = 0xCBF29CE484222325L;
+        for(byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+
+        //FNV mixes the low bits well and the high bits badly, the filter uses both halves
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //False means the key is definitely not in this segment
+    public boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for(int i = 0; i < bloomHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bloomBits;
+            if((map.getLong(bloomOffset + (int) (bit >>> 6) * 8) & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    //Position of key's record, or -1 if it isn't in this segment
+    public int find(byte[] key) {
+        if(compareKey(indexOffset + 2, 0xFFFF & map.getShort(indexOffset), key) > 0)
+            return -1;
+
+        int block = blockFor(key);
+        int position = blockOffset(block);
+        int end = block + 1 < blocks.length ? blockOffset(block + 1) : indexOffset;
+
+        while(position < end) {
+            int keyLength = 0xFFFF & map.getShort(position);
+            int cmp = compareKey(position + 4, keyLength, key);
+
+            if(cmp == 0)
+                return position;
+            if(cmp > 0)
+                return -1;
+
+            position = nextRecord(position);
+        }
+
+        return -1;
+    }
+
+    public boolean isTombstone(int record) {
+        return (0xFFFF & map.getShort(record + 2)) == TOMBSTONE_LENGTH;
+    }
+
+    //The record's value, TOMBSTONE for a tombstone
+    public byte[] value(int record) {
+        int valueLength = 0xFFFF & map.getShort(record + 2);
+        if(valueLength == TOMBSTONE_LENGTH)
+            return TOMBSTONE;
+
+        byte[] value = new byte[valueLength];
+        map.get(record + 4 + (0xFFFF & map.getShort(record)), value);
+        return value;
+    }
+
+    //Straight from the mapping into the response, -1 for a tombstone
+    public int copyValue(int record, IntFunction<ByteBuffer> reserve) {
+        int valueLength = 0xFFFF & map.getShort(record + 2);
+        if(valueLength == TOMBSTONE_LENGTH)
+            return -1;
+
+        var dst = reserve.apply(valueLength);
+        dst.put(dst.position(), map, record + 4 + (0xFFFF & map.getShort(record)), valueLength);
+        dst.position(dst.position() + valueLength);
+        return valueLength;
+    }
+
+    /*
+    * Records with from <= key < to in key order, tombstones included as TOMBSTONE, to can be null for no upper bound
+    * Keys and values are copied out as they're reached
+    */
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        return new Iterator<>() {
+
+            private int position = blockOffset(blockFor(from));
+
+            private Map.Entry<byte[], byte[]> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if(next == null)
+                    throw new NoSuchElementException();
+
+                var entry = next;
+                next = advance();
+                return entry;
+            }
+
+            private Map.Entry<byte[], byte[]> advance() {
+                while(position < indexOffset) {
+                    int record = position;
+                    int keyLength = 0xFFFF & map.getShort(record);
+                    position = nextRecord(record);
+
+                    if(compareKey(record + 4, keyLength, from) < 0)
+                        continue;
+                    if(to != null && compareKey(record + 4, keyLength, to) >= 0) {
+                        position = indexOffset;
+                        return null;
+                    }
+
+                    return new AbstractMap.SimpleImmutableEntry<>(readKey(record, keyLength), value(record));
+                }
+                return null;
+            }
+        };
+    }
+
+    //Last block whose first key is <= key, the first block if key comes before all of them
+    private int blockFor(byte[] key) {
+        int low = 0;
+        int high = blocks.length - 1;
+
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(compareKey(blocks[mid] + 2, 0xFFFF & map.getShort(blocks[mid]), key) <= 0)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        return low;
+    }
+
+    private int blockOffset(int block) {
+        return map.getInt(blocks[block] + 2 + (0xFFFF & map.getShort(blocks[block])));
+    }
+
+    private int nextRecord(int record) {
+        int valueLength = 0xFFFF & map.getShort(record + 2);
+        return record + 4 + (0xFFFF & map.getShort(record)) + (valueLength == TOMBSTONE_LENGTH ? 0 : valueLength);
+    }
+
+    //Same order as SkipListEngine.KEY_ORDER, with the left side read straight out of the mapping
+    private int compareKey(int position, int length, byte[] key) {
+        int len = Math.min(length, key.length);
+
+        for(int i = 0; i < len; i++) {
+            int cmp = Byte.compare(map.get(position + i), key[i]);
+            if(cmp != 0)
+                return cmp;
+        }
+
+        return Integer.compare(length, key.length);
+    }
+
+    private byte[] readKey(int lengthPosition) {
+        byte[] key = new byte[0xFFFF & map.getShort(lengthPosition)];
+        map.get(lengthPosition + 2, key);
+        return key;
+    }
+
+    private byte[] readKey(int record, int keyLength) {
+        byte[] key = new byte[keyLength];
+        map.get(record + 4, key);
+        return key;
+    }
+
+    /*
+    * Writes a segment from entries added in key order. The filter is sized up front from expectedEntries,
+    * going over it only makes false positives more likely. Nothing is readable until finish has forced it to disk
+    */
+    static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+
+        private final DataOutputStream out;
+
+        private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream index = new DataOutputStream(indexBytes);
+
+        private final long[] bloom;
+
+        private final int bloomHashes;
+
+        private int position = 0;
+
+        private int blockStart = -1;
+
+        private int blockCount = 0;
+
+        private long entries = 0;
+
+        private long tombstones = 0;
+
+        private byte[] lastKey;
+
+        Writer(Path file, long expectedEntries, int bloomBitsPerKey) throws IOException {
+            long bits = Math.max(64, expectedEntries * bloomBitsPerKey);
+            bloom = new long[(int) Math.min(Integer.MAX_VALUE / 8, (bits + 63) / 64)];
+            //k = bits per key * ln 2 is what minimizes false positives
+            bloomHashes = Math.max(1, (int) Math.round(bloomBitsPerKey * 0.693));
+
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+        }
+
+        //value is TOMBSTONE for a tombstone
+        void add(byte[] key, byte[] value) throws IOException {
+            if(blockStart < 0 || position - blockStart >= BLOCK_BYTES) {
+                index.writeShort(key.length);
+                index.write(key);
+                index.writeInt(position);
+                blockStart = position;
+                blockCount++;
+            }
+
+            boolean tombstone = value == TOMBSTONE;
+
+            out.writeShort(key.length);
+            out.writeShort(tombstone ? TOMBSTONE_LENGTH : value.length);
+            out.write(key);
+            if(!tombstone)
+                out.write(value);
+
+            position += 4 + key.length + (tombstone ? 0 : value.length);
+            entries++;
+            if(tombstone)
+                tombstones++;
+
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long bits = bloom.length * 64L;
+            for(int i = 0; i < bloomHashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+
+            lastKey = key;
+        }
+
+        //Bytes of records written so far
+        int dataBytes() {
+            return position;
+        }
+
+        long entries() {
+            return entries;
+        }
+
+        void finish(long liveKeys) throws IOException {
+            int indexOffset = position;
+            out.write(indexBytes.toByteArray());
+
+            int lastKeyOffset = indexOffset + indexBytes.size();
+            out.writeShort(lastKey.length);
+            out.write(lastKey);
+
+            int bloomOffset = lastKeyOffset + 2 + lastKey.length;
+            for(long word : bloom)
+                out.writeLong(word);
+
+            out.writeInt(indexOffset);
+            out.writeInt(blockCount);
+            out.writeInt(lastKeyOffset);
+            out.writeInt(bloomOffset);
+            out.writeInt(bloom.length);
+            out.writeInt(bloomHashes);
+            out.writeLong(entries);
+            out.writeLong(tombstones);
+            out.writeLong(liveKeys);
+            out.writeInt(MAGIC);
+
+            out.flush();
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+package org.shahryarkiani;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /*
+    * Counters for the whole server, each listener gets its own set so the hot path never shares a cache line
+    * with another listener, and the listener and its worker only ever bump LongAdders or histogram buckets
+    *
+    * Nothing is aggregated until somebody asks, through the STATS command or JMX
+    */
+    private final StorageEngine kvStore;
+
+    private final Listener[] listeners;
+
+    private final long startTime = System.currentTimeMillis();
+
+    //Both null unless this server is replicating, only one is ever set
+    private ReplicationLeader replicationLeader;
+
+    private ReplicationFollower replicationFollower;
+
+    public ServerMetrics(StorageEngine kvStore, int listenerCount) {
+        this.kvStore = kvStore;
+
+        listeners = new Listener[listenerCount];
+        for(int i = 0; i < listenerCount; i++)
+            listeners[i] = new Listener();
+    }
+
+    //Called before the server starts, so the listeners always see these set
+    public void trackReplication(ReplicationLeader leader, ReplicationFollower follower) {
+        replicationLeader = leader;
+        replicationFollower = follower;
+    }
+
+    public Listener listener(int index) {
+        return listeners[index];
+    }
+
+    //Each listener's hottest keys as it last published them, by listener index
+    public List<List<HotKeys.SampledKey>> hotKeys() {
+        List<List<HotKeys.SampledKey>> hotKeys = new ArrayList<>(listeners.length);
+        for(var listener : listeners)
+            hotKeys.add(listener.hotKeys == null ? List.of() : listener.hotKeys.top());
+        return hotKeys;
+    }
+
+    /*
+    * Every metric as a "name value" line, server wide totals first and then each listener's own,
+    * latencies are in microseconds
+    */
+    public String render() {
+        var out = new StringBuilder(4096);
+
+        line(out, "uptime_ms", System.currentTimeMillis() - startTime);
+        line(out, "keys", kvStore.size());
+        line(out, "heap_used_bytes", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        line(out, "direct_used_bytes", directMemoryUsed());
+        line(out, "listeners", listeners.length);
+
+        line(out, "connections_open", getOpenConnections());
+        line(out, "operations", getOperations());
+        line(out, "bytes_in", getBytesIn());
+        line(out, "bytes_out", getBytesOut());
+        line(out, "protocol_errors", getProtocolErrors());
+
+        if(kvStore instanceof ExpiringEngine expiring) {
+            line(out, "keys_with_ttl", expiring.keysWithExpiry());
+            line(out, "keys_expired", expiring.expiredKeys());
+        }
+
+        if(replicationLeader != null) {
+            line(out, "replication_followers", replicationLeader.followerCount());
+            line(out, "replication_position", replicationLeader.position());
+        }
+
+        //Lags are -1 while the follower isn't connected to its leader
+        if(replicationFollower != null) {
+            line(out, "replication_connected", replicationFollower.connected() ? 1 : 0);
+            line(out, "replication_bootstraps", replicationFollower.bootstraps());
+            line(out, "replication_applied_position", replicationFollower.appliedPosition());
+            line(out, "replication_lag_bytes", replicationFollower.lagBytes());
+            line(out, "replication_lag_ms", replicationFollower.lagMillis());
+        }
+
+        var engine = kvStore instanceof ExpiringEngine expiring ? expiring.inner() : kvStore;
+        if(engine instanceof CachingEngine cache) {
+            line(out, "cache_max_bytes", cache.maxBytes());
+            line(out, "cache_used_bytes", cache.usedBytes());
+            line(out, "cache_hits", cache.hits());
+            line(out, "cache_misses", cache.misses());
+            line(out, "cache_evictions", cache.evictions());
+            line(out, "cache_rejections", cache.rejections());
+            engine = cache.inner();
+        }
+
+        if(engine instanceof VersionedEngine versioned)
+            engine = versioned.inner();
+
+        //Bloom negatives are segment lookups answered without reading the file, false positives read a block for nothing
+        if(engine instanceof LsmEngine lsm) {
+            line(out, "lsm_memtable_bytes", lsm.activeMemtableBytes());
+            line(out, "lsm_memtables_flushing", lsm.flushingMemtables());
+            line(out, "lsm_runs", lsm.runCount());
+            line(out, "lsm_segments", lsm.segmentCount());
+            line(out, "lsm_segment_bytes", lsm.segmentBytes());
+            line(out, "lsm_flushes", lsm.flushes());
+            line(out, "lsm_compactions", lsm.compactions());
+            line(out, "lsm_segment_hits", lsm.segmentHits());
+            line(out, "lsm_bloom_negatives", lsm.bloomNegatives());
+            line(out, "lsm_bloom_false_positives", lsm.bloomFalsePositives());
+        }
+
+        for(int i = 0; i < listeners.length; i++)
+            listeners[i].render(out, "listener." + i + ".");
+
+        return out.toString();
+    }
+
+    @Override
+    public long getKeyCount() {
+        return kvStore.size();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        long open = 0;
+        for(var listener : listeners)
+            open += listener.connectionsOpened.sum() - listener.connectionsClosed.sum();
+        return open;
+    }
+
+    @Override
+    public long getOperations() {
+        long ops = 0;
+        for(var listener : listeners) {
+            for(var count : listener.operations)
+                ops += count.sum();
+        }
+        return ops;
+    }
+
+    @Override
+    public long getBytesIn() {
+        long bytes = 0;
+        for(var listener : listeners)
+            bytes += listener.bytesIn.sum();
+        return bytes;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long bytes = 0;
+        for(var listener : listeners)
+            bytes += listener.bytesOut.sum();
+        return bytes;
+    }
+
+    @Override
+    public long getProtocolErrors() {
+        long errors = 0;
+        for(var listener : listeners)
+            errors += listener.protocolErrors.sum();
+        return errors;
+    }
+
+    @Override
+    public String getStats() {
+        return render();
+    }
+
+    //Slabs, pooled client buffers and everything else allocated with allocateDirect
+    private static long directMemoryUsed() {
+        for(var pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if(pool.getName().equals("direct"))
+                return pool.getMemoryUsed();
+        }
+        return -1;
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    //One listener's counters, bumped by the listener thread and its worker
+    public static final class Listener {
+
+        final LongAdder[] operations = new LongAdder[KVMessage.MessageType.values().length];
+
+        final LongAdder connectionsOpened = new LongAdder();
+
+        final LongAdder connectionsClosed = new LongAdder();
+
+        final LongAdder bytesIn = new LongAdder();
+
+        final LongAdder bytesOut = new LongAdder();
+
+        //Part of bytesOut that went to the socket straight from stored values without being copied into an output buffer
+        final LongAdder bytesGathered = new LongAdder();
+
+        final LongAdder protocolErrors = new LongAdder();
+
+        //Values stored compressed as they were read, and how many bytes smaller that made them
+        final LongAdder valuesCompressed = new LongAdder();
+
+        final LongAdder valueBytesSaved = new LongAdder();
+
+        //Compressed values decoded on the way out because the client didn't ask for stored values
+        final LongAdder valuesDecompressed = new LongAdder();
+
+        //GETs answered from the listener's hot key cache, not found there, and found there but written since
+        final LongAdder hotCacheHits = new LongAdder();
+
+        final LongAdder hotCacheMisses = new LongAdder();
+
+        final LongAdder hotCacheStale = new LongAdder();
+
+        //Set before the listener starts, null in VIRTUAL_THREADS mode or with sampling and the cache both off
+        HotKeys hotKeys;
+
+        //Batches handed to the worker, or split across partitions, that haven't come back yet
+        final LongAdder workerQueueDepth = new LongAdder();
+
+        //Messages per batch, a batch is what one read turned into, up to the batch limit
+        final LatencyHistogram batchSizes = new LatencyHistogram();
+
+        //Nanoseconds to run a batch, including the log write and fsync when there is one
+        final LatencyHistogram batchTimes = new LatencyHistogram();
+
+        Listener() {
+            for(int i = 0; i < operations.length; i++)
+                operations[i] = new LongAdder();
+        }
+
+        void operation(KVMessage.MessageType type) {
+            operations[type.ordinal()].increment();
+        }
+
+        private void render(StringBuilder out, String prefix) {
+            for(var type : KVMessage.MessageType.values()) {
+                //PREFIX turns into a SCAN and DECR into an INCR as soon as they're read, so they're counted there
+                if(type != KVMessage.MessageType.PREFIX && type != KVMessage.MessageType.DECR)
+                    line(out, prefix + "ops_" + type.name().toLowerCase(), operations[type.ordinal()].sum());
+            }
+
+            line(out, prefix + "connections_open", connectionsOpened.sum() - connectionsClosed.sum());
+            line(out, prefix + "connections_accepted", connectionsOpened.sum());
+            line(out, prefix + "bytes_in", bytesIn.sum());
+            line(out, prefix + "bytes_out", bytesOut.sum());
+            line(out, prefix + "bytes_out_gathered", bytesGathered.sum());
+            line(out, prefix + "protocol_errors", protocolErrors.sum());
+            line(out, prefix + "values_compressed", valuesCompressed.sum());
+            line(out, prefix + "value_bytes_saved", valueBytesSaved.sum());
+            line(out, prefix + "values_decompressed", valuesDecompressed.sum());
+            line(out, prefix + "worker_queue_depth", workerQueueDepth.sum());
+            line(out, prefix + "hot_cache_hits", hotCacheHits.sum());
+            line(out, prefix + "hot_cache_misses", hotCacheMisses.sum());
+            line(out, prefix + "hot_cache_stale", hotCacheStale.sum());
+
+            line(out, prefix + "batches", batchSizes.count());
+            line(out, prefix + "batch_size_p50", batchSizes.valueAtPercentile(50));
+            line(out, prefix + "batch_size_p99", batchSizes.valueAtPercentile(99));
+            line(out, prefix + "batch_size_max", batchSizes.max());
+
+            line(out, prefix + "batch_time_us_p50", batchTimes.valueAtPercentile(50) / 1000);
+            line(out, prefix + "batch_time_us_p99", batchTimes.valueAtPercentile(99) / 1000);
+            line(out, prefix + "batch_time_us_p999", batchTimes.valueAtPercentile(99.9) / 1000);
+            line(out, prefix + "batch_time_us_max", batchTimes.max() / 1000);
+        }
+    }
+
+}
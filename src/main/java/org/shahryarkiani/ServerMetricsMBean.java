@@ -0,0 +1,20 @@
+package org.shahryarkiani;
+
+//What ServerMetrics shows over JMX, totals across every listener, getStats has the per-listener breakdown
+public interface ServerMetricsMBean {
+
+    long getKeyCount();
+
+    long getOpenConnections();
+
+    long getOperations();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getProtocolErrors();
+
+    String getStats();
+
+}
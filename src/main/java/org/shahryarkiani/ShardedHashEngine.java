@@ -0,0 +1,355 @@
+package org.shahryarkiani;
+
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+public class ShardedHashEngine implements StorageEngine {
+
+    /*
+    * The key is hashed once per operation, the top bits pick the shard and the low bits pick the
+    * starting slot inside that shard's table. Each shard is an open addressing table with linear probing,
+    * so a lookup is a couple of array reads instead of log(n) comparator calls through skip list nodes
+    *
+    * Writers take the shard's write lock, readers use an optimistic read and only fall back to the
+    * read lock when a writer touched the shard while they were probing
+    */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Shard[] shards;
+
+    private final int shardShift;
+
+    public ShardedHashEngine(int shardCount) {
+        int count = 1;
+        while(count < shardCount)
+            count <<= 1;
+
+        shards = new Shard[count];
+        for(int i = 0; i < count; i++)
+            shards[i] = new Shard(INITIAL_CAPACITY);
+
+        //With a single shard this shifts by 32, which Java treats as 0, so it's special cased in shardFor
+        shardShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        int hash = hash(key);
+        return shardFor(hash).get(key, hash);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        int hash = hash(key);
+        shardFor(hash).put(key, hash, value);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        int hash = hash(key);
+        return shardFor(hash).remove(key, hash);
+    }
+
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        int hash = hash(key);
+        return shardFor(hash).update(key, hash, update);
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for(var shard : shards)
+            size += shard.size;
+        return size;
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return true;
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return false;
+    }
+
+    //Copies one shard at a time under its read lock, so only a single shard's entries are ever duplicated
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return () -> new Iterator<>() {
+
+            private int nextShard = 0;
+
+            private Iterator<Map.Entry<byte[], byte[]>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while(!current.hasNext() && nextShard < shards.length)
+                    current = shards[nextShard++].copyEntries().iterator();
+
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        //Size every shard up front so loading doesn't keep rehashing
+        int perShard = (int) Math.min(Integer.MAX_VALUE / 2, count / shards.length + 1);
+        for(var shard : shards)
+            shard.ensureCapacity(perShard);
+
+        while(entries.hasNext()) {
+            var entry = entries.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private Shard shardFor(int hash) {
+        if(shards.length == 1)
+            return shards[0];
+        return shards[hash >>> shardShift];
+    }
+
+    //Arrays.hashCode is vectorized, the multiply and shift spread it so both ends of the hash are usable
+    static int hash(byte[] key) {
+        int h = Arrays.hashCode(key) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table {
+
+        final int[] hashes;
+
+        final byte[][] keys;
+
+        final byte[][] values;
+
+        final int mask;
+
+        Table(int capacity) {
+            hashes = new int[capacity];
+            keys = new byte[capacity][];
+            values = new byte[capacity][];
+            mask = capacity - 1;
+        }
+    }
+
+    private static final class Shard {
+
+        private final StampedLock lock = new StampedLock();
+
+        //All three arrays live in one object, so an optimistic reader never mixes arrays from before and after a resize
+        private Table table;
+
+        private int size;
+
+        Shard(int capacity) {
+            table = new Table(capacity);
+        }
+
+        byte[] get(byte[] key, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            byte[] value = find(table, key, hash);
+
+            if(lock.validate(stamp))
+                return value;
+
+            stamp = lock.readLock();
+            try {
+                return find(table, key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        byte[] put(byte[] key, int hash, byte[] value) {
+            long stamp = lock.writeLock();
+            try {
+                return insert(key, hash, value);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        byte[] remove(byte[] key, int hash) {
+            long stamp = lock.writeLock();
+            try {
+                return delete(key, hash);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        //The whole read, update and write happens under the write lock, so update only ever runs once
+        byte[] update(byte[] key, int hash, UnaryOperator<byte[]> update) {
+            long stamp = lock.writeLock();
+            try {
+                byte[] current = find(table, key, hash);
+                byte[] next = update.apply(current);
+
+                if(next == current)
+                    return current;
+
+                if(next == null)
+                    delete(key, hash);
+                else
+                    insert(key, hash, next);
+
+                return next;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        //Caller holds the write lock, returns the value that was replaced
+        private byte[] insert(byte[] key, int hash, byte[] value) {
+            var t = table;
+            int slot = hash & t.mask;
+
+            while(t.keys[slot] != null) {
+                if(t.hashes[slot] == hash && Arrays.equals(t.keys[slot], key)) {
+                    byte[] previous = t.values[slot];
+                    t.values[slot] = value;
+                    return previous;
+                }
+                slot = (slot + 1) & t.mask;
+            }
+
+            t.hashes[slot] = hash;
+            t.values[slot] = value;
+            t.keys[slot] = key;
+
+            if(++size > t.keys.length * LOAD_FACTOR)
+                table = rehash(t, t.keys.length * 2);
+
+            return null;
+        }
+
+        //Caller holds the write lock, returns the value that was removed
+        private byte[] delete(byte[] key, int hash) {
+            var t = table;
+            int slot = hash & t.mask;
+
+            while(t.keys[slot] != null) {
+                if(t.hashes[slot] == hash && Arrays.equals(t.keys[slot], key)) {
+                    byte[] previous = t.values[slot];
+                    deleteSlot(t, slot);
+                    size--;
+                    return previous;
+                }
+                slot = (slot + 1) & t.mask;
+            }
+
+            return null;
+        }
+
+        void ensureCapacity(int entries) {
+            long stamp = lock.writeLock();
+            try {
+                int needed = INITIAL_CAPACITY;
+                while(needed * LOAD_FACTOR < entries)
+                    needed <<= 1;
+
+                if(needed > table.keys.length)
+                    table = rehash(table, needed);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        List<Map.Entry<byte[], byte[]>> copyEntries() {
+            long stamp = lock.readLock();
+            try {
+                var t = table;
+                List<Map.Entry<byte[], byte[]>> copy = new ArrayList<>(size);
+
+                for(int i = 0; i < t.keys.length; i++) {
+                    if(t.keys[i] != null)
+                        copy.add(new AbstractMap.SimpleImmutableEntry<>(t.keys[i], t.values[i]));
+                }
+
+                return copy;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /*
+        * Can run concurrently with a writer when called optimistically, so it has to cope with torn state
+        * The probe is capped at the table length, a half shifted cluster could otherwise look like it never ends
+        */
+        private static byte[] find(Table t, byte[] key, int hash) {
+            int slot = hash & t.mask;
+
+            for(int probes = 0; probes <= t.mask; probes++) {
+                byte[] candidate = t.keys[slot];
+                if(candidate == null)
+                    return null;
+
+                if(t.hashes[slot] == hash && Arrays.equals(candidate, key))
+                    return t.values[slot];
+
+                slot = (slot + 1) & t.mask;
+            }
+
+            return null;
+        }
+
+        /*
+        * Backward shift deletion, every entry after the hole that could have lived in it moves up,
+        * so probes never need tombstones and the table doesn't slowly fill with dead slots
+        */
+        private static void deleteSlot(Table t, int hole) {
+            int slot = (hole + 1) & t.mask;
+
+            while(t.keys[slot] != null) {
+                int home = t.hashes[slot] & t.mask;
+
+                //Distance from home to the hole must be smaller than from home to the slot for the entry to move
+                if(((slot - home) & t.mask) >= ((slot - hole) & t.mask)) {
+                    t.hashes[hole] = t.hashes[slot];
+                    t.keys[hole] = t.keys[slot];
+                    t.values[hole] = t.values[slot];
+                    hole = slot;
+                }
+
+                slot = (slot + 1) & t.mask;
+            }
+
+            t.keys[hole] = null;
+            t.values[hole] = null;
+        }
+
+        private static Table rehash(Table old, int capacity) {
+            var t = new Table(capacity);
+
+            for(int i = 0; i < old.keys.length; i++) {
+                if(old.keys[i] == null)
+                    continue;
+
+                int slot = old.hashes[i] & t.mask;
+                while(t.keys[slot] != null)
+                    slot = (slot + 1) & t.mask;
+
+                t.hashes[slot] = old.hashes[i];
+                t.keys[slot] = old.keys[i];
+                t.values[slot] = old.values[i];
+            }
+
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.shahryarkiani;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.UnaryOperator;
+
+public class SkipListEngine implements StorageEngine {
+
+    //Lexicographic order using signed bytes, shorter keys sort before longer keys with the same prefix
+    static final Comparator<byte[]> KEY_ORDER = (a, b) -> {
+        int len = Math.min(a.length, b.length);
+
+        for(int i = 0; i < len; i++) {
+            int cmp = Byte.compare(a[i], b[i]);
+            if(cmp != 0)
+                return cmp;
+        }
+
+
+        return Integer.compare(a.length, b.length);
+    };
+
+    //Smallest key greater than every key starting with prefix, or null if there isn't one
+    static byte[] prefixEnd(byte[] prefix) {
+        for(int i = prefix.length - 1; i >= 0; i--) {
+            if(prefix[i] != Byte.MAX_VALUE) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
+        }
+
+        return null;
+    }
+
+    //Only replaced by bulkLoad, which runs before the listener threads are started
+    private ConcurrentSkipListMap<byte[], byte[]> kvStore;
+
+    public SkipListEngine() {
+        kvStore = new ConcurrentSkipListMap<>(KEY_ORDER);
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return kvStore.get(key);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        kvStore.put(key, value);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        return kvStore.remove(key);
+    }
+
+    //replace and putIfAbsent compare values with equals, which for byte[] is identity, compute works for all of them
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        return kvStore.compute(key, (k, current) -> update.apply(current));
+    }
+
+    @Override
+    public long size() {
+        return kvStore.size();
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return true;
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return kvStore.entrySet();
+    }
+
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        //subMap throws on an empty range, a cursor can easily end up past the end of one
+        if(to != null && KEY_ORDER.compare(from, to) >= 0)
+            return Collections.emptyIterator();
+
+        var view = to == null ? kvStore.tailMap(from, true) : kvStore.subMap(from, true, to, false);
+        return view.entrySet().iterator();
+    }
+
+    /*
+    * Sorted input goes through the skip list's copy constructor, which links nodes in one pass
+    * instead of searching for every insertion point
+    */
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        if(sorted && kvStore.isEmpty()) {
+            kvStore = new ConcurrentSkipListMap<>(new SortedEntries(count, entries));
+            return;
+        }
+
+        while(entries.hasNext()) {
+            var entry = entries.next();
+            kvStore.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /*
+    * Just enough of a SortedMap over an iterator for ConcurrentSkipListMap's copy constructor,
+    * which only asks for the comparator and walks entrySet once
+    */
+    private static class SortedEntries extends AbstractMap<byte[], byte[]> implements SortedMap<byte[], byte[]> {
+
+        private final long count;
+
+        private final Iterator<Entry<byte[], byte[]>> entries;
+
+        SortedEntries(long count, Iterator<Entry<byte[], byte[]>> entries) {
+            this.count = count;
+            this.entries = entries;
+        }
+
+        @Override
+        public Comparator<? super byte[]> comparator() {
+            return KEY_ORDER;
+        }
+
+        @Override
+        public Set<Entry<byte[], byte[]>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<byte[], byte[]>> iterator() {
+                    return entries;
+                }
+
+                @Override
+                public int size() {
+                    return (int) Math.min(count, Integer.MAX_VALUE);
+                }
+            };
+        }
+
+        @Override
+        public SortedMap<byte[], byte[]> subMap(byte[] fromKey, byte[] toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<byte[], byte[]> headMap(byte[] toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<byte[], byte[]> tailMap(byte[] fromKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] firstKey() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] lastKey() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.shahryarkiani;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class SlabAllocator {
+
+    /*
+    * Hands out chunks of direct memory for the off heap engine, so the GC never sees keys or values
+    *
+    * Memory comes in 1MB slabs, each slab is carved into equal chunks of one size class the first
+    * time that class needs room. Size classes grow by 25% from 32 bytes, so an entry wastes at most
+    * about a fifth of its chunk, and freed chunks go on their class's free list to be reused as is
+    *
+    * A chunk is named by a handle, the slab index in the high 32 bits and the offset in the low 32 bits
+    * Slab 0 is never used, so a handle of 0 can mean "empty" in the engine's index
+    */
+    static final int SLAB_SIZE = 1 << 20;
+
+    private static final int MIN_CHUNK = 32;
+
+    //Largest possible entry: 4 byte header, 0xFFFF byte key, 0xFFFE byte value
+    private static final int MAX_CHUNK = 4 + 0xFFFF + 0xFFFE;
+
+    private final int[] classSizes;
+
+    private final SizeClass[] classes;
+
+    //Replaced wholesale when a slab is added, so readers never need a lock to find a slab
+    private volatile ByteBuffer[] slabs = new ByteBuffer[1];
+
+    public SlabAllocator() {
+        int[] sizes = new int[64];
+        int count = 0;
+
+        for(int size = MIN_CHUNK; ; size = ((size + size / 4) + 7) & ~7) {
+            sizes[count++] = Math.min(size, MAX_CHUNK);
+            if(size >= MAX_CHUNK)
+                break;
+        }
+
+        classSizes = Arrays.copyOf(sizes, count);
+        classes = new SizeClass[count];
+        for(int i = 0; i < count; i++)
+            classes[i] = new SizeClass(classSizes[i]);
+    }
+
+    public long allocate(int size) {
+        return classes[classFor(size)].allocate();
+    }
+
+    //size has to be the same size the chunk was allocated with
+    public void free(long handle, int size) {
+        classes[classFor(size)].free(handle);
+    }
+
+    public ByteBuffer slab(long handle) {
+        return slabs[(int) (handle >>> 32)];
+    }
+
+    public static int offset(long handle) {
+        return (int) handle;
+    }
+
+    //Bytes of direct memory reserved so far, free chunks included
+    public long reservedBytes() {
+        return (long) (slabs.length - 1) * SLAB_SIZE;
+    }
+
+    private int classFor(int size) {
+        int index = Arrays.binarySearch(classSizes, size);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private synchronized int addSlab() {
+        var current = slabs;
+        var grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        slabs = grown;
+        return current.length;
+    }
+
+    private final class SizeClass {
+
+        private final int chunkSize;
+
+        private long[] freeList = new long[16];
+
+        private int freeCount = 0;
+
+        //The slab this class is currently carving chunks out of, 0 until it needs its first one
+        private int slab = 0;
+
+        private int nextOffset = SLAB_SIZE;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized long allocate() {
+            if(freeCount > 0)
+                return freeList[--freeCount];
+
+            if(nextOffset + chunkSize > SLAB_SIZE) {
+                slab = addSlab();
+                nextOffset = 0;
+            }
+
+            long handle = ((long) slab << 32) | nextOffset;
+            nextOffset += chunkSize;
+
+            return handle;
+        }
+
+        synchronized void free(long handle) {
+            if(freeCount == freeList.length)
+                freeList = Arrays.copyOf(freeList, freeList.length * 2);
+
+            freeList[freeCount++] = handle;
+        }
+    }
+
+}
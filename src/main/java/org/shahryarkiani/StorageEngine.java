@@ -0,0 +1,99 @@
+package org.shahryarkiani;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/*
+* What the listeners, the write-ahead log replay and snapshots need from the store
+* Implementations have to be safe to call from every listener's worker at once
+*/
+public interface StorageEngine {
+
+    enum Type {
+        //Ordered by a lexicographic byte comparator, the original store
+        SKIP_LIST,
+        //Sharded open addressing, no ordering but far cheaper point operations
+        HASH,
+        //HASH with keys and values kept in direct memory slabs instead of on the heap
+        OFF_HEAP,
+        //A skip list flushed to sorted segment files as it fills up, for stores that don't fit in memory
+        LSM
+    }
+
+    byte[] get(byte[] key);
+
+    /*
+    * Copies the value for key into the buffer reserve returns and gives back its length, or -1 if the key isn't there
+    * reserve is called with the value's length and returns a buffer with at least that much room left
+    * The default goes through get, engines that don't keep values as byte[] can skip that copy
+    */
+    default int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        byte[] value = get(key);
+        if(value == null)
+            return -1;
+
+        reserve.apply(value.length).put(value);
+        return value.length;
+    }
+
+    /*
+    * Whether get hands back the stored array itself instead of a copy, callers must never write to it
+    * Lets a big value be sent to the socket as it is rather than copied into a response first
+    */
+    default boolean sharesValues() {
+        return false;
+    }
+
+    void put(byte[] key, byte[] value);
+
+    //Returns the removed value, or null if the key wasn't there
+    byte[] remove(byte[] key);
+
+    /*
+    * Atomically sets key to update applied to its current value (null if it isn't there) and returns what it ends up as
+    * Handing back the current value itself leaves the key alone, null removes it
+    * update may be called again if another write gets in first, only the last call's result counts
+    */
+    byte[] update(byte[] key, UnaryOperator<byte[]> update);
+
+    //May be slightly off while writes are in flight
+    long size();
+
+    //Whether entries() comes back sorted by key, and range can be used
+    boolean isOrdered();
+
+    /*
+    * Entries with from <= key < to in key order, to can be null for no upper bound
+    * Weakly consistent like entries(), and nothing is copied up front, so a scan can stop part way for free
+    * Only ordered engines support this
+    */
+    default Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        throw new UnsupportedOperationException("Range scans need an ordered engine");
+    }
+
+    /*
+    * Every entry in the store, used for snapshots
+    * Like ConcurrentSkipListMap's iterators this is weakly consistent, it never throws because of
+    * concurrent writes but may or may not reflect writes made after it was created
+    */
+    Iterable<Map.Entry<byte[], byte[]>> entries();
+
+    /*
+    * Fills an empty engine from a snapshot before any listener can see it
+    * sorted is true when the entries come in key order, count is how many there are
+    */
+    void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted);
+
+    /*
+    * Engines that keep their entries in files of their own write out whatever is only in memory and return true,
+    * a snapshot then doesn't need the entries. The rest return false and get snapshotted as usual
+    */
+    default boolean persist() throws IOException {
+        return false;
+    }
+
+}
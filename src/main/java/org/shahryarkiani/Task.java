@@ -0,0 +1,19 @@
+package org.shahryarkiani;
+
+import java.util.List;
+
+//Multi-key tasks have no key or value of their own, just a single key task per entry in parts
+//A SCAN covers key (inclusive) to value (exclusive, null for no end) and only uses limit, 0 or less is no limit
+//A PUT_TTL's expiresAt is wall clock millis, worked out when it's read so the log holds the same deadline we used
+//Conditional writes carry the rest of what they need, and what they did, in conditional. PUT_IF_ABSENT uses expiresAt too
+record Task(KVMessage.MessageType type, byte[] key, byte[] value, List<Task> parts, int limit, long expiresAt, Conditional conditional) {
+
+    Task(KVMessage.MessageType type, byte[] key, byte[] value) {
+        this(type, key, value, null, 0, 0, null);
+    }
+
+    Task(KVMessage.MessageType type, List<Task> parts) {
+        this(type, null, null, parts, 0, 0, null);
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.shahryarkiani;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class TimingWheel {
+
+    /*
+    * Hierarchical hashed timing wheel (Varghese and Lauck), each listener owns one for the TTLs it was sent
+    *
+    * Time moves in ticks of tickMillis. There are 4 levels of 256 slots, level 0 slots are one tick wide,
+    * level 1 slots are 256 ticks wide and so on, so together they cover 2^32 ticks without a slot per tick
+    * A timer goes in the lowest level whose range reaches its deadline, that's one shift and one list push,
+    * and when the lower levels wrap around the next slot up is emptied back down into them (cascading)
+    * A timer is cascaded at most once per level, so both scheduling and expiring are O(1) however many there are
+    *
+    * schedule is safe from any thread, it only pushes onto an inbox. Everything else belongs to the owning listener,
+    * which calls advance once per loop iteration. advance expires at most a fixed number of keys per call
+    * and carries the rest over, so a million keys with the same deadline never stall one iteration of the loop
+    *
+    * Overwriting a key with a new TTL doesn't find its old timer, that one stays in the wheel and does nothing
+    * when it fires since the key's deadline has moved on
+    */
+    private static final int LEVELS = 4;
+
+    private static final int SLOT_BITS = 8;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    //Anything further out than this sits in the top level and gets placed again when it cascades
+    private static final long MAX_TICKS = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+    //Called for each timer that comes due, the engine checks the deadline is still current
+    public interface Expirer {
+        boolean expire(byte[] key, long expiresAt);
+    }
+
+    private final long tickMillis;
+
+    private final ConcurrentLinkedQueue<Timer> inbox = new ConcurrentLinkedQueue<>();
+
+    //Each slot is the head of a singly linked list of timers
+    private final Timer[][] wheels = new Timer[LEVELS][SLOTS];
+
+    //Due timers that haven't been handed to the expirer yet because the last advance ran out of budget
+    private Timer due;
+
+    //Timers sitting in a slot, not counting due or the inbox
+    private long inWheels = 0;
+
+    private long currentTick;
+
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    public void schedule(byte[] key, long expiresAt) {
+        inbox.add(new Timer(key, expiresAt));
+    }
+
+    //Owner only, false while anything is waiting to expire
+    public boolean isEmpty() {
+        return inWheels == 0 && due == null && inbox.isEmpty();
+    }
+
+    //Owner only, whether the last advance stopped at its limit with due timers left over
+    public boolean hasDue() {
+        return due != null;
+    }
+
+    public long tickMillis() {
+        return tickMillis;
+    }
+
+    /*
+    * Moves the wheel up to now and expires at most maxExpired of the timers that are due, owner only
+    * Returns how many keys were actually removed
+    */
+    public int advance(long now, int maxExpired, Expirer expirer) {
+        Timer timer;
+        while((timer = inbox.poll()) != null)
+            place(timer);
+
+        long nowTick = now / tickMillis;
+
+        //Nothing left in the slots, skip straight there instead of stepping through every empty tick
+        if(inWheels == 0)
+            currentTick = Math.max(currentTick, nowTick);
+
+        while(currentTick < nowTick) {
+            currentTick++;
+            cascade();
+            collect(wheels[0], (int) (currentTick & SLOT_MASK));
+        }
+
+        int removed = 0;
+        int handled = 0;
+
+        while(due != null && handled < maxExpired) {
+            timer = due;
+            due = timer.next;
+            timer.next = null;
+            handled++;
+
+            if(expirer.expire(timer.key, timer.expiresAt))
+                removed++;
+        }
+
+        return removed;
+    }
+
+    //At the start of each lap of a level, the matching slot of the level above gets spread back out below it
+    private void cascade() {
+        for(int level = 1; level < LEVELS; level++) {
+            if((currentTick & ((1L << (level * SLOT_BITS)) - 1)) != 0)
+                return;
+
+            int slot = (int) ((currentTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+            Timer timer = wheels[level][slot];
+            wheels[level][slot] = null;
+
+            while(timer != null) {
+                Timer next = timer.next;
+                timer.next = null;
+                inWheels--;
+                place(timer);
+                timer = next;
+            }
+        }
+    }
+
+    //Level 0 slots only ever hold timers for the tick they're emptied on
+    private void collect(Timer[] level, int slot) {
+        Timer timer = level[slot];
+        level[slot] = null;
+
+        while(timer != null) {
+            Timer next = timer.next;
+            timer.next = due;
+            due = timer;
+            inWheels--;
+            timer = next;
+        }
+    }
+
+    private void place(Timer timer) {
+        //Rounded up, a key is never removed before its deadline
+        long dueTick = timer.expiresAt / tickMillis + (timer.expiresAt % tickMillis == 0 ? 0 : 1);
+        long ticks = Math.min(dueTick - currentTick, MAX_TICKS);
+
+        if(ticks <= 0) {
+            timer.next = due;
+            due = timer;
+            return;
+        }
+
+        long target = currentTick + ticks;
+
+        int level = 0;
+        while(ticks >= 1L << ((level + 1) * SLOT_BITS))
+            level++;
+
+        int slot = (int) ((target >>> (level * SLOT_BITS)) & SLOT_MASK);
+        timer.next = wheels[level][slot];
+        wheels[level][slot] = timer;
+        inWheels++;
+    }
+
+    private static final class Timer {
+
+        final byte[] key;
+
+        final long expiresAt;
+
+        Timer next;
+
+        Timer(byte[] key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
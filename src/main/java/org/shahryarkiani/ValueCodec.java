@@ -0,0 +1,310 @@
+package org.shahryarkiani;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+public final class ValueCodec {
+
+    /*
+    * How values are kept once they've been read off the wire: in the store, the log, snapshots and the replication stream
+    *
+    * A value at least minBytes long is compressed with an LZ4 style block codec if that makes it smaller,
+    * and stored as a frame that says so. Everything else is stored exactly as it was sent
+    * | 4 Bytes | 1 Byte | 4 Bytes Raw Len | Compressed Bytes |
+    * | Magic   | LZ4    | Raw Len        | Block            |
+    *
+    * A value that happens to start with the magic is stored in a frame too, so a stored value is always
+    * unambiguous: it's a frame if and only if it starts with the magic
+    * | 4 Bytes | 1 Byte   | Value Len Bytes |
+    * | Magic   | Escaped  | Value           |
+    *
+    * Clients that asked for stored values get them like this and decode them with decode, everyone else
+    * gets them decoded by the server. Text values never start with a 0 byte, so escaping is practically never needed
+    */
+    static final int MAGIC = 0x004B565A;
+
+    static final byte ESCAPED = 0;
+
+    static final byte LZ4 = 1;
+
+    private static final int ESCAPED_HEADER_LENGTH = 5;
+
+    private static final int LZ4_HEADER_LENGTH = 9;
+
+    //The block format needs the last 5 bytes to be literals and the last match to start 12 bytes before the end
+    private static final int MIN_MATCH = 4;
+
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    private static final int MAX_OFFSET = 65535;
+
+    private static final int HASH_BITS = 12;
+
+    //Whole words out of a byte[] in one read, for hashing and comparing matches
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    //Positions seen so far by hash of the 4 bytes there, reused by every value a thread compresses
+    private static final ThreadLocal<int[]> HASH_TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    private ValueCodec() {}
+
+    public static boolean isEncoded(byte[] stored) {
+        return stored != null && stored.length >= ESCAPED_HEADER_LENGTH && readInt(stored, 0) == MAGIC;
+    }
+
+    //Same check on a stored value that was copied into a buffer at pos
+    public static boolean isEncoded(ByteBuffer buffer, int pos, int length) {
+        return length >= ESCAPED_HEADER_LENGTH && buffer.getInt(pos) == MAGIC;
+    }
+
+    /*
+    * The stored form of value, which is value itself unless it's compressed or escaped
+    * minBytes of 0 turns compression off, values that start with the magic still get escaped
+    */
+    public static byte[] encode(byte[] value, int minBytes) {
+        if(minBytes > 0 && value.length >= minBytes && value.length >= MATCH_FIND_LIMIT + 1) {
+            byte[] compressed = compress(value);
+            if(compressed != null)
+                return compressed;
+        }
+
+        if(!isEncoded(value))
+            return value;
+
+        byte[] escaped = new byte[ESCAPED_HEADER_LENGTH + value.length];
+        writeInt(escaped, 0, MAGIC);
+        escaped[4] = ESCAPED;
+        System.arraycopy(value, 0, escaped, ESCAPED_HEADER_LENGTH, value.length);
+        return escaped;
+    }
+
+    //The value a stored form stands for, stored itself if it isn't a frame. Throws if the frame is corrupt
+    public static byte[] decode(byte[] stored) {
+        if(!isEncoded(stored))
+            return stored;
+
+        if(stored[4] == ESCAPED) {
+            byte[] value = new byte[stored.length - ESCAPED_HEADER_LENGTH];
+            System.arraycopy(stored, ESCAPED_HEADER_LENGTH, value, 0, value.length);
+            return value;
+        }
+
+        if(stored[4] != LZ4 || stored.length < LZ4_HEADER_LENGTH)
+            throw new IllegalArgumentException("Unknown value frame type " + stored[4]);
+
+        int rawLength = readInt(stored, 5);
+        if(rawLength < 0)
+            throw new IllegalArgumentException("Corrupt compressed value, raw length " + rawLength);
+
+        byte[] value = new byte[rawLength];
+        decompress(stored, LZ4_HEADER_LENGTH, stored.length, value);
+        return value;
+    }
+
+    //Whether the stored form is compressed, as opposed to kept as is or only escaped
+    public static boolean isCompressed(byte[] stored) {
+        return isEncoded(stored) && stored[4] == LZ4;
+    }
+
+    /*
+    * Greedy LZ4 block compression with a single hash table probe per position, it skips ahead faster the longer it goes
+    * without a match so incompressible input costs little. Returns null unless the frame comes out smaller than src
+    */
+    private static byte[] compress(byte[] src) {
+        int[] table = HASH_TABLES.get();
+        Arrays.fill(table, -1);
+
+        //Anything that doesn't fit in the value's own length isn't worth storing
+        byte[] dst = new byte[src.length];
+        writeInt(dst, 0, MAGIC);
+        dst[4] = LZ4;
+        writeInt(dst, 5, src.length);
+
+        int op = LZ4_HEADER_LENGTH;
+        int anchor = 0;
+        int ip = 0;
+        int matchLimit = src.length - LAST_LITERALS;
+        int findLimit = src.length - MATCH_FIND_LIMIT;
+        int misses = 0;
+
+        while(ip < findLimit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+
+            if(ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip += 1 + (misses++ >>> 6);
+                continue;
+            }
+
+            misses = 0;
+
+            //The match might have started before where we found it
+            while(ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int matchLength = matchLength(src, ip + MIN_MATCH, ref + MIN_MATCH, matchLimit) + MIN_MATCH;
+
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            if(op < 0)
+                return null;
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        op = writeSequence(src, anchor, src.length - anchor, 0, 0, dst, op);
+        if(op < 0 || op >= src.length)
+            return null;
+
+        return Arrays.copyOf(dst, op);
+    }
+
+    //How many bytes match from a and b on, stopping at limit, 8 at a time while it can
+    private static int matchLength(byte[] src, int a, int b, int limit) {
+        int start = a;
+
+        while(a + 8 <= limit) {
+            long diff = (long) LONGS.get(src, a) ^ (long) LONGS.get(src, b);
+            if(diff != 0)
+                return a - start + Long.numberOfLeadingZeros(diff) / 8;
+            a += 8;
+            b += 8;
+        }
+
+        while(a < limit && src[a] == src[b]) {
+            a++;
+            b++;
+        }
+
+        return a - start;
+    }
+
+    //One token, its literals and, unless matchLength is 0 for the last sequence, the match. -1 if it doesn't fit
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength, byte[] dst, int op) {
+        int needed = 1 + literalLength + literalLength / 255 + 1 + (matchLength > 0 ? 2 + matchLength / 255 + 1 : 0);
+        if(op + needed > dst.length)
+            return -1;
+
+        int tokenPosition = op++;
+        int token = Math.min(literalLength, 15) << 4;
+
+        if(literalLength >= 15)
+            op = writeLength(dst, op, literalLength - 15);
+
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+
+        if(matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+
+            int extra = matchLength - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if(extra >= 15)
+                op = writeLength(dst, op, extra - 15);
+        }
+
+        dst[tokenPosition] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while(length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    //Decodes the block in src[ip, end) into all of dst, checking every length against both arrays
+    private static void decompress(byte[] src, int ip, int end, byte[] dst) {
+        int op = 0;
+
+        while(true) {
+            if(ip >= end)
+                throw new IllegalArgumentException("Corrupt compressed value, truncated block");
+
+            int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if(literalLength == 15) {
+                int next;
+                do {
+                    if(ip >= end)
+                        throw new IllegalArgumentException("Corrupt compressed value, truncated length");
+                    next = src[ip++] & 0xFF;
+                    literalLength += next;
+                } while(next == 255);
+            }
+
+            if(literalLength > end - ip || literalLength > dst.length - op)
+                throw new IllegalArgumentException("Corrupt compressed value, literals out of bounds");
+
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            //The last sequence is only literals
+            if(ip == end)
+                break;
+
+            if(end - ip < 2)
+                throw new IllegalArgumentException("Corrupt compressed value, truncated offset");
+
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+
+            if(offset == 0 || offset > op)
+                throw new IllegalArgumentException("Corrupt compressed value, offset " + offset + " out of bounds");
+
+            int matchLength = token & 15;
+            if(matchLength == 15) {
+                int next;
+                do {
+                    if(ip >= end)
+                        throw new IllegalArgumentException("Corrupt compressed value, truncated length");
+                    next = src[ip++] & 0xFF;
+                    matchLength += next;
+                } while(next == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            if(matchLength > dst.length - op)
+                throw new IllegalArgumentException("Corrupt compressed value, match out of bounds");
+
+            //Overlapping matches repeat what they just wrote, so they have to go a byte at a time
+            int ref = op - offset;
+            if(offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                for(int i = 0; i < matchLength; i++)
+                    dst[op++] = dst[ref++];
+            }
+        }
+
+        if(op != dst.length)
+            throw new IllegalArgumentException("Corrupt compressed value, expected " + dst.length + " bytes, got " + op);
+    }
+
+    private static int readInt(byte[] src, int pos) {
+        return (int) INTS.get(src, pos);
+    }
+
+    private static void writeInt(byte[] dst, int pos, int value) {
+        INTS.set(dst, pos, value);
+    }
+
+}
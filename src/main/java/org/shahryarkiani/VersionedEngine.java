@@ -0,0 +1,124 @@
+package org.shahryarkiani;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+public class VersionedEngine implements StorageEngine {
+
+    /*
+    * Wraps another engine and moves a version on after every write, so copies of values kept outside the store,
+    * the listeners' hot key caches, can tell whether they're still current
+    *
+    * Versions are kept per stripe of the key hash rather than per key, so a write also invalidates copies of
+    * the other keys in its stripe, which only costs them a trip to the engine. Each stripe has a cache line to itself,
+    * writes to one stripe never slow down readers checking another
+    *
+    * A reader takes the version before reading the value and the writer moves it after writing,
+    * so a copy can be thrown away for a write it already saw but never kept through one it didn't
+    *
+    * It sits under the cache and expiry so their evictions and expiries count as writes too,
+    * and so do the log replay and a follower applying its leader's stream
+    */
+    private static final int STRIPES = 4096;
+
+    //8 longs to a 64 byte line
+    private static final int STRIDE = 8;
+
+    private final StorageEngine inner;
+
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES * STRIDE);
+
+    public VersionedEngine(StorageEngine inner) {
+        this.inner = inner;
+    }
+
+    //The version of hash's stripe, take it before reading the value it's meant to cover
+    public long version(int hash) {
+        return versions.get(stripeOf(hash));
+    }
+
+    //The slots in the listeners' caches come from the low bits, so stripes are picked with mixed ones
+    private static int stripeOf(int hash) {
+        return ((hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(STRIPES))) * STRIDE;
+    }
+
+    private void written(byte[] key) {
+        versions.getAndIncrement(stripeOf(ShardedHashEngine.hash(key)));
+    }
+
+    @Override
+    public byte[] get(byte[] key) {
+        return inner.get(key);
+    }
+
+    @Override
+    public int copyValue(byte[] key, IntFunction<ByteBuffer> reserve) {
+        return inner.copyValue(key, reserve);
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        inner.put(key, value);
+        written(key);
+    }
+
+    @Override
+    public byte[] remove(byte[] key) {
+        byte[] removed = inner.remove(key);
+        written(key);
+        return removed;
+    }
+
+    @Override
+    public byte[] update(byte[] key, UnaryOperator<byte[]> update) {
+        byte[] result = inner.update(key, update);
+        written(key);
+        return result;
+    }
+
+    @Override
+    public long size() {
+        return inner.size();
+    }
+
+    @Override
+    public boolean sharesValues() {
+        return inner.sharesValues();
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return inner.isOrdered();
+    }
+
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> range(byte[] from, byte[] to) {
+        return inner.range(from, to);
+    }
+
+    @Override
+    public Iterable<Map.Entry<byte[], byte[]>> entries() {
+        return inner.entries();
+    }
+
+    //Only before any listener runs, so there's nothing cached yet to invalidate
+    @Override
+    public void bulkLoad(long count, Iterator<Map.Entry<byte[], byte[]>> entries, boolean sorted) {
+        inner.bulkLoad(count, entries, sorted);
+    }
+
+    @Override
+    public boolean persist() throws IOException {
+        return inner.persist();
+    }
+
+    public StorageEngine inner() {
+        return inner;
+    }
+
+}
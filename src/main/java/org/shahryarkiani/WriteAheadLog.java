@@ -0,0 +1,581 @@
+package org.shahryarkiani;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+public class WriteAheadLog implements Closeable {
+
+    public enum FsyncPolicy {
+        //Every batch is on disk before its responses are built, batches waiting at the same time share one force
+        BATCH,
+        //A background thread forces the log every fsyncIntervalMillis, a crash loses at most that window
+        INTERVAL,
+        //Leave it to the OS to flush the page cache
+        NEVER
+    }
+
+    /*
+    * Log format, one entry per batch of tasks:
+    * | 4 Bytes   | 4 Bytes | Batch Len Bytes                |
+    * | Batch Len | CRC32C  | Records                        |
+    *
+    * Every record is a type byte and then the KVMessage framing | Type | Key Len | Value Len | Key | Value |
+    * and only PUTs and DELETEs are logged, a Value Len of 0xFFFF is a DELETE just like on the wire
+    *
+    * A PUT with a TTL is logged as | RECORD_EXPIRING | 8 Bytes Expires At | PUT message |, everything else is RECORD_PLAIN.
+    * The type byte keeps the record format from depending on keys never being empty
+    * The deadline is wall clock millis, not the TTL that was sent, so replaying it later doesn't give the key a fresh TTL
+    *
+    * Conditional writes are logged as the PUT they turned into, with the key's deadline if it has one,
+    * and not at all if they didn't write anything. Replay never has to work out whether a CAS would have won
+    *
+    * The checksum is there so replay can tell a batch that was only partially written when we crashed
+    * apart from a complete one, the torn tail gets cut off and we keep appending after the last good batch
+    *
+    * The log is split into numbered segment files so a snapshot can drop everything older than it,
+    * positions handed out by append are logical and keep counting up across segments
+    */
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte RECORD_PLAIN = 0;
+
+    private static final byte RECORD_EXPIRING = 1;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    //What replay hands each record to, value is null for a DELETE and expiresAt is 0 unless the PUT had a TTL
+    public interface Mutation {
+        void apply(byte[] key, byte[] value, long expiresAt);
+    }
+
+    //Sees the records of every batch right after it's applied, called while holding the append lock so it has to be quick
+    public interface Subscriber {
+        void batchLogged(ByteBuffer records, long position);
+    }
+
+    /*
+    * For whatever is handed logged mutations while the append lock is held but applies them later, in the order it got them.
+    * PARTITIONED listeners get their share of other listeners' batches this way
+    * Shares of batches with nothing to log are queued without the append lock, from any listener at once,
+    * so both counts go up atomically. They count everything queued, whether it was logged or not
+    */
+    public static final class Deferred {
+
+        private final AtomicLong queued = new AtomicLong();
+
+        private final AtomicLong applied = new AtomicLong();
+
+        public void queued() {
+            queued.incrementAndGet();
+        }
+
+        public void applied() {
+            applied.incrementAndGet();
+        }
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final List<Deferred> deferred = new CopyOnWriteArrayList<>();
+
+    private final Path directory;
+
+    //The segment we're appending to, only swapped by roll while holding both locks
+    private FileChannel channel;
+
+    private long segment;
+
+    private final FsyncPolicy policy;
+
+    private final ScheduledExecutorService syncer;
+
+    //Locks rather than monitors, a virtual thread waiting on a monitor pins its carrier thread for the whole fsync
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    //Both of these are only touched while holding appendLock
+    private final CRC32C checksum = new CRC32C();
+    private ByteBuffer batchBuf = ByteBuffer.allocateDirect(64 * 1024);
+
+    private volatile long writePosition;
+
+    //Set if a failed write left bytes in the segment we couldn't take back out, nothing more can be appended after those
+    private IOException failed;
+
+    private volatile long syncedPosition;
+
+    public WriteAheadLog(Path directory, FsyncPolicy policy, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+
+        var segments = listSegments(directory);
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        channel = openSegment(segment);
+        channel.position(channel.size());
+
+        writePosition = 0;
+        syncedPosition = 0;
+
+        if(policy == FsyncPolicy.INTERVAL) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wal-fsync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::forceQuietly, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /*
+    * Feeds every mutation logged in segments >= fromSegment to apply in order, the value is null for a DELETE
+    * This has to run before the first append, it also drops a torn batch at the end of a segment
+    */
+    public long replay(long fromSegment, Mutation apply) throws IOException {
+        long records = 0;
+
+        for(long seg : listSegments(directory)) {
+            if(seg < fromSegment)
+                continue;
+
+            if(seg == segment) {
+                records += replaySegment(channel, apply);
+                channel.position(channel.size());
+            } else {
+                try (var segmentChannel = FileChannel.open(segmentPath(seg), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    records += replaySegment(segmentChannel, apply);
+                }
+            }
+        }
+
+        return records;
+    }
+
+    private long replaySegment(FileChannel segmentChannel, Mutation apply) throws IOException {
+        long position = 0;
+        long size = segmentChannel.size();
+        long records = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer body = ByteBuffer.allocate(64 * 1024);
+        CRC32C crc = new CRC32C();
+
+        while(position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segmentChannel, header, position);
+            header.flip();
+
+            int batchLength = header.getInt();
+            int expectedChecksum = header.getInt();
+
+            if(batchLength <= 0 || position + HEADER_SIZE + batchLength > size)
+                break;
+
+            if(body.capacity() < batchLength)
+                body = ByteBuffer.allocate(batchLength);
+
+            body.clear().limit(batchLength);
+            readFully(segmentChannel, body, position + HEADER_SIZE);
+            body.flip();
+
+            crc.reset();
+            crc.update(body.array(), 0, batchLength);
+            if((int) crc.getValue() != expectedChecksum)
+                break;
+
+            records += applyRecords(body, apply);
+
+            position += HEADER_SIZE + batchLength;
+        }
+
+        if(position != size) {
+            System.err.println("[ERROR] Write-ahead log has a torn batch at offset " + position + ", discarding " + (size - position) + " bytes");
+            segmentChannel.truncate(position);
+        }
+
+        return records;
+    }
+
+    /*
+    * Logs the PUTs and DELETEs in tasks as a single write and then runs apply, all while holding the log lock
+    * Applying under the lock keeps the order in the log the same as the order mutations hit the store,
+    * otherwise two listeners writing the same key could replay to a different value than the one we served
+    *
+    * Conditional writes are the exception, they're logged as what they did so apply has to run first. The listeners
+    * put them in a batch of their own when there's a log, so nothing else in the batch is applied ahead of its record.
+    * Nothing is acknowledged before this returns, so if the write fails the batch's connection is closed without an answer
+    *
+    * Returns the log position to pass to sync, or -1 if there was nothing to log
+    */
+    public long append(List<Task> tasks, Runnable apply) throws IOException {
+        if(!hasMutations(tasks)) {
+            apply.run();
+            return -1;
+        }
+
+        boolean applyFirst = hasConditional(tasks);
+
+        appendLock.lock();
+        try {
+            if(failed != null)
+                throw new IOException("Write-ahead log is unusable after an earlier write failed", failed);
+
+            if(applyFirst)
+                apply.run();
+
+            batchBuf.clear();
+            batchBuf.position(HEADER_SIZE);
+
+            for(Task t : tasks) {
+                if(t.type().isMultiKey()) {
+                    for(Task part : t.parts())
+                        writeRecord(part);
+                } else {
+                    writeRecord(t);
+                }
+            }
+
+            int batchLength = batchBuf.position() - HEADER_SIZE;
+
+            //Only conditional writes that didn't write anything, replay would take an empty batch for a torn one
+            if(batchLength == 0)
+                return writePosition;
+
+            batchBuf.flip();
+            batchBuf.position(HEADER_SIZE);
+            checksum.reset();
+            checksum.update(batchBuf);
+
+            batchBuf.putInt(0, batchLength);
+            batchBuf.putInt(4, (int) checksum.getValue());
+            batchBuf.position(0);
+
+            long start = channel.position();
+            try {
+                while(batchBuf.hasRemaining())
+                    channel.write(batchBuf);
+            } catch (IOException e) {
+                discardPartialWrite(start, e);
+                throw e;
+            }
+
+            writePosition += HEADER_SIZE + batchLength;
+
+            if(!applyFirst)
+                apply.run();
+
+            for(var subscriber : subscribers)
+                subscriber.batchLogged(batchBuf.duplicate().position(HEADER_SIZE), writePosition);
+
+            return writePosition;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /*
+    * Cuts off whatever part of a batch made it into the segment before the write failed. Replay stops at the first torn batch,
+    * so leaving it there would lose every batch appended after it, acknowledged or not. Caller holds appendLock
+    */
+    private void discardPartialWrite(long start, IOException cause) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            failed = cause;
+            System.err.println("[ERROR] Unable to discard a partly written batch, refusing further writes to the log");
+        }
+    }
+
+    //Has to be registered before anything is appended, see Deferred
+    public Deferred deferred() {
+        var d = new Deferred();
+        deferred.add(d);
+        return d;
+    }
+
+    /*
+    * From the returned position on, subscriber gets every batch that's logged
+    * Everything logged before it is already applied to the store when this returns
+    */
+    public long subscribe(Subscriber subscriber) throws IOException {
+        long position;
+        long[] pending;
+
+        appendLock.lock();
+        try {
+            subscribers.add(subscriber);
+            position = writePosition;
+            pending = pendingApplies();
+        } finally {
+            appendLock.unlock();
+        }
+
+        awaitApplied(pending);
+        return position;
+    }
+
+    //How many shares each Deferred had been handed so far, caller holds appendLock so every logged one is in the count
+    private long[] pendingApplies() {
+        long[] pending = new long[deferred.size()];
+        for(int i = 0; i < pending.length; i++)
+            pending[i] = deferred.get(i).queued.get();
+        return pending;
+    }
+
+    /*
+    * Waits until each Deferred has applied as many as it had been handed, every counted share is queued by then so that covers all of them
+    * Can't be done holding the append lock, the listeners that have to do the applying might be waiting for it
+    */
+    private void awaitApplied(long[] pending) throws IOException {
+        for(int i = 0; i < pending.length; i++) {
+            while(deferred.get(i).applied.get() < pending[i]) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for logged mutations to be applied");
+                }
+            }
+        }
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    //Caller holds appendLock, multi-key tasks are logged as their single key parts so replay doesn't need to know about them
+    private void writeRecord(Task t) {
+        if(!t.type().isMutation())
+            return;
+
+        byte[] value;
+        long expiresAt;
+
+        if(t.type().isConditional()) {
+            if(!t.conditional().applied)
+                return;
+
+            value = t.conditional().written;
+            expiresAt = t.conditional().expiresAt;
+        } else {
+            value = t.type() == KVMessage.MessageType.DELETE ? null : t.value();
+            expiresAt = t.type() == KVMessage.MessageType.PUT_TTL ? t.expiresAt() : 0;
+        }
+
+        ensureCapacity(1 + 8 + 4 + t.key().length + (value == null ? 0 : value.length));
+
+        if(expiresAt > 0) {
+            batchBuf.put(RECORD_EXPIRING);
+            batchBuf.putLong(expiresAt);
+        } else {
+            batchBuf.put(RECORD_PLAIN);
+        }
+
+        KVMessage.writeMessage(batchBuf, t.key(), value);
+    }
+
+    //Whether appending tasks would make sync block on the disk
+    public boolean needsSync(List<Task> tasks) {
+        return policy == FsyncPolicy.BATCH && hasMutations(tasks);
+    }
+
+    /*
+    * Blocks until everything up to position is on disk, under the BATCH policy
+    * Whoever gets the lock forces everything written so far, so the listeners that were waiting
+    * behind it usually find their batch already synced and skip their own force
+    */
+    public void sync(long position) throws IOException {
+        if(policy != FsyncPolicy.BATCH || position <= syncedPosition)
+            return;
+
+        syncLock.lock();
+        try {
+            if(position <= syncedPosition)
+                return;
+
+            long target = writePosition;
+            channel.force(false);
+            syncedPosition = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    //Feeds every record in a batch body to apply, returns how many there were. Followers apply the batches they're sent with this too
+    static long applyRecords(ByteBuffer body, Mutation apply) {
+        long records = 0;
+
+        while(body.hasRemaining()) {
+            byte type = body.get();
+            long expiresAt = switch (type) {
+                case RECORD_PLAIN -> 0;
+                case RECORD_EXPIRING -> body.getLong();
+                //The batch passed its checksum, so this is a log from a version that wrote records differently
+                default -> throw new IllegalArgumentException("Unknown write-ahead log record type " + type);
+            };
+
+            var record = KVMessage.decodeMessage(body);
+            apply.apply(record[0], record[1], expiresAt);
+            records++;
+        }
+
+        return records;
+    }
+
+    /*
+    * Closes the current segment and starts appending to a new one, returning the new segment number
+    * Every mutation in an older segment has already been applied to the store when this returns,
+    * so a snapshot started afterwards plus the segments from the returned one on covers everything
+    */
+    public long roll() throws IOException {
+        long rolled;
+        long[] pending;
+
+        appendLock.lock();
+        syncLock.lock();
+        try {
+            channel.force(false);
+            syncedPosition = writePosition;
+            channel.close();
+
+            segment++;
+            channel = openSegment(segment);
+
+            rolled = segment;
+            pending = pendingApplies();
+        } finally {
+            syncLock.unlock();
+            appendLock.unlock();
+        }
+
+        awaitApplied(pending);
+        return rolled;
+    }
+
+    //Logical position of the end of the log, it only moves when something gets appended
+    public long position() {
+        return writePosition;
+    }
+
+    //Called once a snapshot covering everything before segment is safely on disk
+    public void deleteSegmentsBefore(long segment) throws IOException {
+        for(long seg : listSegments(directory)) {
+            if(seg < segment)
+                Files.deleteIfExists(segmentPath(seg));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(syncer != null)
+            syncer.shutdown();
+
+        appendLock.lock();
+        syncLock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+        } finally {
+            syncLock.unlock();
+            appendLock.unlock();
+        }
+    }
+
+    private void forceQuietly() {
+        try {
+            syncLock.lock();
+            try {
+                long target = writePosition;
+                if(target > syncedPosition) {
+                    channel.force(false);
+                    syncedPosition = target;
+                }
+            } finally {
+                syncLock.unlock();
+            }
+        } catch (IOException err) {
+            System.err.println("[ERROR] Unable to fsync write-ahead log | " + err.getMessage());
+        }
+    }
+
+    private FileChannel openSegment(long seg) throws IOException {
+        return FileChannel.open(segmentPath(seg), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(long seg) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%016d", seg) + SEGMENT_SUFFIX);
+    }
+
+    //Segment numbers present in the directory, oldest first
+    private static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+
+        try (var files = Files.list(directory)) {
+            for(var file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+
+        segments.sort(null);
+        return segments;
+    }
+
+    private void ensureCapacity(int recordLength) {
+        if(batchBuf.remaining() >= recordLength)
+            return;
+
+        var bigger = ByteBuffer.allocateDirect(Math.max(batchBuf.capacity() * 2, batchBuf.position() + recordLength));
+        batchBuf.flip();
+        bigger.put(batchBuf);
+        batchBuf = bigger;
+    }
+
+    private static void readFully(FileChannel segmentChannel, ByteBuffer dst, long position) throws IOException {
+        while(dst.hasRemaining()) {
+            int read = segmentChannel.read(dst, position);
+            if(read == -1)
+                throw new IOException("Unexpected end of write-ahead log");
+            position += read;
+        }
+    }
+
+    private static boolean hasConditional(List<Task> tasks) {
+        for(Task t : tasks) {
+            if(t.type().isConditional())
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean hasMutations(List<Task> tasks) {
+        for(Task t : tasks) {
+            if(t.type().isMutation())
+                return true;
+        }
+        return false;
+    }
+
+}